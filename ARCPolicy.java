@@ -0,0 +1,212 @@
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive Replacement Cache (Megiddo and Modha). Resident pages are
+ * split between T1, pages used once recently, and T2, pages used at
+ * least twice. Ghost lists B1 and B2 remember the keys of pages
+ * recently evicted from each. A page coming back from B1 means T1 was
+ * too small and a page coming back from B2 means T2 was; the target
+ * size of T1 moves accordingly, so the policy tunes itself between
+ * recency and frequency as the workload changes.
+ *
+ * The buffer manager asks for a victim before it says which page is
+ * coming in, so the choice between T1 and T2 uses the target size
+ * only, not whether the incoming page is in B2. Pages brought in with
+ * a hint other than RANDOM are kept on a separate cold list, replaced
+ * before anything else and left out of the ghost lists, until they
+ * are used normally. Pages read ahead join T1 and are left out of
+ * the ghost lists too if they leave unused; their first use keeps
+ * them in T1.
+ */
+public class ARCPolicy implements ReplacementPolicy
+{
+    private final ReentrantLock lock;
+    private FrameStates frames;
+    private int capacity;
+
+    // Target size of T1.
+    private int target;
+
+    private FrameList cold;
+    private FrameList t1;
+    private FrameList t2;
+    private FrameList free;
+    private LinkedHashSet<Long> b1;
+    private LinkedHashSet<Long> b2;
+
+    // Frames read ahead and not used since.
+    private boolean[] speculative;
+
+    public ARCPolicy()
+    {
+        lock = new ReentrantLock();
+    }
+
+    public void attach(FrameStates frames)
+    {
+        if (this.frames != null)
+            throw new IllegalStateException("Policy already in use");
+        this.frames = frames;
+
+        capacity = frames.length();
+        target = 0;
+        cold = new FrameList(capacity);
+        t1 = new FrameList(capacity);
+        t2 = new FrameList(capacity);
+        free = new FrameList(capacity);
+        for (int i = 0; i < capacity; i++)
+            free.addLast(i);
+        b1 = new LinkedHashSet<Long>();
+        b2 = new LinkedHashSet<Long>();
+        speculative = new boolean[capacity];
+    }
+
+    public void loaded(int frame, long pageKey, AccessHint hint)
+    {
+        lock.lock();
+        try
+        {
+            free.remove(frame);
+            if (hint != AccessHint.RANDOM)
+                cold.addLast(frame);
+            else if (b1.contains(pageKey))
+            {
+                int delta = b1.size() >= b2.size() ? 1 : b2.size() / b1.size();
+                target = Math.min(capacity, target + delta);
+                b1.remove(pageKey);
+                t2.addLast(frame);
+            }
+            else if (b2.contains(pageKey))
+            {
+                int delta = b2.size() >= b1.size() ? 1 : b1.size() / b2.size();
+                target = Math.max(0, target - delta);
+                b2.remove(pageKey);
+                t2.addLast(frame);
+            }
+            else
+                t1.addLast(frame);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void prefetched(int frame, long pageKey)
+    {
+        lock.lock();
+        try
+        {
+            free.remove(frame);
+            t1.addLast(frame);
+            speculative[frame] = true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void hit(int frame, AccessHint hint)
+    {
+        lock.lock();
+        try
+        {
+            boolean firstUse = speculative[frame];
+            speculative[frame] = false;
+            if (hint != AccessHint.RANDOM)
+            {
+                if (firstUse)
+                {
+                    t1.remove(frame);
+                    cold.addLast(frame);
+                }
+            }
+            else if (firstUse)
+                t1.addLast(frame);
+            else if (cold.contains(frame))
+            {
+                cold.remove(frame);
+                t1.addLast(frame);
+            }
+            else if (t1.contains(frame) || t2.contains(frame))
+            {
+                t1.remove(frame);
+                t2.addLast(frame);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void unpinned(int frame, AccessHint hint)
+    {
+    }
+
+    public int victim()
+    {
+        lock.lock();
+        try
+        {
+            int frame = free.claimFirst(frames);
+            if (frame < 0)
+                frame = cold.claimFirst(frames);
+            if (frame >= 0)
+                return frame;
+            boolean fromT1 = t1.size() > 0 && t1.size() > target;
+            frame = (fromT1 ? t1 : t2).claimFirst(frames);
+            if (frame < 0)
+                frame = (fromT1 ? t2 : t1).claimFirst(frames);
+            return frame;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void evicted(int frame, long pageKey)
+    {
+        lock.lock();
+        try
+        {
+            if (cold.contains(frame))
+                cold.remove(frame);
+            else if (t1.contains(frame) && speculative[frame])
+                t1.remove(frame);
+            else if (t1.contains(frame))
+            {
+                t1.remove(frame);
+                b1.add(pageKey);
+            }
+            else
+            {
+                t2.remove(frame);
+                b2.add(pageKey);
+            }
+            speculative[frame] = false;
+            free.addLast(frame);
+
+            // Keep |T1| + |B1| <= c and the whole directory <= 2c.
+            while (t1.size() + b1.size() > capacity && !b1.isEmpty())
+                removeOldest(b1);
+            while (t1.size() + t2.size() + b1.size() + b2.size() >
+                   2 * capacity && !b2.isEmpty())
+                removeOldest(b2);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private static void removeOldest(LinkedHashSet<Long> ghosts)
+    {
+        Iterator<Long> oldest = ghosts.iterator();
+        oldest.next();
+        oldest.remove();
+    }
+}
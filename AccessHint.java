@@ -0,0 +1,26 @@
+/**
+ * How a caller is about to use a page, passed to the buffer manager so
+ * that pages read by large scans do not push out pages that are used
+ * over and over.
+ */
+public enum AccessHint
+{
+    /**
+     * Ordinary use; the page may well be needed again. This is what
+     * the pinPage() and unpinPage() methods without a hint assume.
+     */
+    RANDOM,
+
+    /**
+     * Part of a sequential scan. Pages read for scans are recycled
+     * through a small ring of frames instead of taking frames from the
+     * rest of the pool, and are not marked as recently used.
+     */
+    SEQUENTIAL,
+
+    /**
+     * The page is needed this one time. It is replaced before pages
+     * used normally.
+     */
+    ONCE
+}
@@ -0,0 +1,119 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Random;
+
+/**
+ * Micro-benchmark for finding free runs in a fragmented space map.
+ * Compares the FreeSpaceIndex search used by DBFile.allocatePages with
+ * the linear scan it replaced. The map is filled so that free runs are
+ * at most 15 pages long everywhere except for one 64-page run at the
+ * end of the file, which is the worst case for the linear scan.
+ *
+ * Usage: java AllocBenchmark [numPages ...]
+ */
+public class AllocBenchmark
+{
+    private static final String MAPFILE = "__allocbench.map";
+    private static final int[] RUN_SIZES = {1, 8, 16, 64};
+
+    /**
+     * The allocation search DBFile used before the free space index:
+     * try every starting position and check every page of the run.
+     */
+    static int linearScan(SpaceMap map, int runSize)
+    {
+        for (int i=0; i < map.size() - (runSize-1); i++)
+        {
+            int currentRunSize = 0;
+            for (int j=i; j < i + runSize; j++)
+            {
+                if (map.isAllocated(j))
+                    break;
+                else
+                    currentRunSize++;
+            }
+            if (currentRunSize == runSize)
+                return i;
+        }
+        return -1;
+    }
+
+    static SpaceMap fragmentedMap(FileChannel channel, int numPages)
+        throws IOException
+    {
+        SpaceMap map = SpaceMap.create(channel, numPages, Page.PAGESIZE);
+        map.set(0, numPages, true);
+        Random random = new Random(42);
+        int page = 0;
+        while (page < numPages - 128)
+        {
+            int free = 1 + random.nextInt(15);
+            map.set(page, free, false);
+            page += free + 1 + random.nextInt(4);
+        }
+        map.set(numPages - 64, 64, false);
+        return map;
+    }
+
+    /**
+     * Times one search and returns the average nanoseconds per call.
+     */
+    static double time(SpaceMap map, int runSize, boolean indexed,
+                       int iterations)
+    {
+        int found = 0;
+        long start = System.nanoTime();
+        for (int i=0; i < iterations; i++)
+            found += indexed ? map.findFreeRun(0, runSize)
+                             : linearScan(map, runSize);
+        long elapsed = System.nanoTime() - start;
+        if (found == Integer.MIN_VALUE)
+            System.out.println(found);
+        return (double)elapsed / iterations;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int[] sizes = {1 << 16, 1 << 20, 1 << 22};
+        if (args.length > 0)
+        {
+            sizes = new int[args.length];
+            for (int i=0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.printf("%10s %8s %16s %16s %10s%n", "pages", "run",
+                          "scan ns/op", "index ns/op", "speedup");
+        for (int numPages : sizes)
+        {
+            try (FileChannel channel =
+                 FileChannel.open(Paths.get(MAPFILE),
+                                  StandardOpenOption.CREATE,
+                                  StandardOpenOption.TRUNCATE_EXISTING,
+                                  StandardOpenOption.READ,
+                                  StandardOpenOption.WRITE))
+            {
+                SpaceMap map = fragmentedMap(channel, numPages);
+                for (int runSize : RUN_SIZES)
+                {
+                    if (linearScan(map, runSize) !=
+                        map.findFreeRun(0, runSize))
+                        throw new IllegalStateException("Searches disagree");
+
+                    // Size the scan so that each measurement takes
+                    // roughly the same amount of work.
+                    int scanIters = Math.max(1, (1 << 24) / numPages);
+                    time(map, runSize, false, scanIters);
+                    double scan = time(map, runSize, false, scanIters);
+                    time(map, runSize, true, 100000);
+                    double indexed = time(map, runSize, true, 100000);
+                    System.out.printf("%10d %8d %16.1f %16.1f %9.0fx%n",
+                                      numPages, runSize, scan, indexed,
+                                      scan / indexed);
+                }
+            }
+        }
+        Files.deleteIfExists(Paths.get(MAPFILE));
+    }
+}
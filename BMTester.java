@@ -202,6 +202,8 @@ public class BMTester
                 if (!readBack.regionMatches(0,orig,0,orig.length()))
                     throw new TestFailedException("Page content incorrect");
             }
+	    file.close();
+
 	    //should throw page pinned exception.
 	    //bufMgr.freePage(0, filename);
 
@@ -218,6 +220,1380 @@ public class BMTester
     }
 
 
+    //-----------------------------------------------------------
+    // test 4
+    //      Testing the write-ahead log: recovery after a crash,
+    //      abort, and discarding records at a checkpoint
+    //------------------------------------------------------------
+    public static class Test4 implements Testable
+    {
+        private static String pageText(Page page, int length)
+        {
+            return new String(page.data, 0, length);
+        }
+
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 4 -------");
+            String logName = filename + ".wal";
+            new File(logName).delete();
+
+            // Allocate some pages, and get them onto disk along with
+            // the space map, so that recovery can read them.
+            bufMgr.newPage(5,filename);
+            bufMgr.unpinPage(0,filename,false);
+            WriteAheadLog log = new WriteAheadLog(logName);
+            bufMgr.setLog(log);
+            bufMgr.checkpoint();
+
+            byte[] committed = "committed change".getBytes();
+            byte[] uncommitted = "uncommitted change".getBytes();
+
+            // The committed change stays in the pool only, so it must
+            // be redone; the uncommitted one reaches the disk, so it
+            // must be undone.
+            WriteAheadLog.Transaction tx1 = log.begin();
+            bufMgr.pinPage(1,filename,false);
+            bufMgr.update(tx1,1,filename,0,committed);
+            bufMgr.unpinPage(1,filename,false);
+            bufMgr.commit(tx1);
+
+            WriteAheadLog.Transaction tx2 = log.begin();
+            Page page = bufMgr.pinPage(2,filename,false);
+            byte[] original = new byte[uncommitted.length];
+            System.arraycopy(page.data,0,original,0,original.length);
+            bufMgr.update(tx2,2,filename,0,uncommitted);
+            bufMgr.unpinPage(2,filename,false);
+            bufMgr.flushPage(2,filename);
+
+            DBFile file = new DBFile(filename);
+            page = new Page();
+            file.readPage(2,page);
+            file.close();
+            if (!pageText(page,uncommitted.length)
+                .equals(new String(uncommitted)))
+                throw new TestFailedException("Uncommitted change not " +
+                                              "flushed");
+
+            // Crash: open the log again without closing it, which
+            // recovers the database. Nothing was left unwritten in
+            // the old log, so closing it afterwards writes nothing.
+            WriteAheadLog recovered = new WriteAheadLog(logName);
+            bufMgr.setLog(null);
+            log.close();
+
+            file = new DBFile(filename);
+            file.readPage(1,page);
+            System.out.println("PAGE[1]: " +
+                               pageText(page,committed.length));
+            if (!pageText(page,committed.length)
+                .equals(new String(committed)))
+                throw new TestFailedException("Committed change not " +
+                                              "redone");
+            file.readPage(2,page);
+            System.out.println("PAGE[2]: " +
+                               pageText(page,original.length));
+            if (!pageText(page,original.length)
+                .equals(new String(original)))
+                throw new TestFailedException("Uncommitted change not " +
+                                              "undone");
+            file.close();
+            recovered.close();
+
+            // A running transaction keeps its records past a
+            // checkpoint; once it has aborted, the next checkpoint
+            // discards everything before its redo point.
+            BufferManager recoveredMgr =
+                new BufferManager(bufMgr.poolSize());
+            log = new WriteAheadLog(logName);
+            recoveredMgr.setLog(log);
+            WriteAheadLog.Transaction tx3 = log.begin();
+            long first = log.endLsn();
+            page = recoveredMgr.pinPage(3,filename,false);
+            System.arraycopy(page.data,0,original,0,original.length);
+            recoveredMgr.update(tx3,3,filename,0,uncommitted);
+            recoveredMgr.unpinPage(3,filename,false);
+
+            recoveredMgr.checkpoint();
+            System.out.println("log starts at " + log.startLsn() +
+                               ", transaction at " + first);
+            if (log.startLsn() != first)
+                throw new TestFailedException("Checkpoint discarded " +
+                                              "records of a running " +
+                                              "transaction");
+
+            recoveredMgr.abort(tx3);
+            if (!tx3.isEnded())
+                throw new TestFailedException("Transaction not ended");
+            page = recoveredMgr.pinPage(3,filename,false);
+            if (!pageText(page,original.length)
+                .equals(new String(original)))
+                throw new TestFailedException("Aborted change not undone");
+            recoveredMgr.unpinPage(3,filename,false);
+
+            long redoLsn = recoveredMgr.checkpoint();
+            System.out.println("log starts at " + log.startLsn() +
+                               ", redo point at " + redoLsn);
+            if (log.startLsn() != redoLsn || redoLsn <= first)
+                throw new TestFailedException("Checkpoint kept records " +
+                                              "it did not need");
+
+            recoveredMgr.setLog(null);
+            recoveredMgr.close();
+            log.close();
+            new File(logName).delete();
+            System.out.println();
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 5
+    //      Testing page checksums and the double-write buffer:
+    //      a damaged page is reported, and a torn page is restored
+    //------------------------------------------------------------
+    public static class Test5 implements Testable
+    {
+        // Flips a byte of a page in the data file, behind the back of
+        // any DBFile.
+        private static void damage(String name, int pageNum)
+            throws IOException
+        {
+            java.nio.channels.FileChannel channel =
+                java.nio.channels.FileChannel.open(
+                    java.nio.file.Paths.get(name),
+                    java.nio.file.StandardOpenOption.READ,
+                    java.nio.file.StandardOpenOption.WRITE);
+            try
+            {
+                long position = (long)pageNum * Page.PAGESIZE + 10;
+                java.nio.ByteBuffer b = java.nio.ByteBuffer.allocate(1);
+                channel.read(b, position);
+                b.put(0, (byte)~b.get(0));
+                b.rewind();
+                channel.write(b, position);
+                channel.force(false);
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 5 -------");
+            String name = filename + "_protected";
+            byte[] data = "This is test 5".getBytes();
+
+            // A page damaged on disk fails its checksum.
+            DBFile file = new DBFile(name,10,Page.PAGESIZE,
+                                     PageProtection.CHECKSUMS);
+            file.allocatePages(3);
+            Page page = new Page();
+            System.arraycopy(data,0,page.data,0,data.length);
+            file.writePage(1,page);
+            file.sync();
+            file.close();
+            damage(name,1);
+            file = new DBFile(name);
+            try
+            {
+                file.readPage(1,page);
+                throw new TestFailedException("Damaged page read back");
+            }
+            catch (DBFile.BadChecksumException e)
+            {
+                System.out.println("caught: " + e.getMessage());
+            }
+            file.close();
+            DBFile.erase(name);
+
+            // A page torn after its copy reached the double-write
+            // buffer is restored from the copy when the database is
+            // opened again.
+            file = new DBFile(name,10,Page.PAGESIZE,
+                              PageProtection.DOUBLE_WRITE);
+            file.allocatePages(3);
+            file.sync();
+            page = new Page();
+            System.arraycopy(data,0,page.data,0,data.length);
+            file.writePage(2,page);
+            file.close();
+            if (new File(name + ".dwb").length() == 0)
+                throw new TestFailedException("No copy in the " +
+                                              "double-write buffer");
+            damage(name,2);
+            file = new DBFile(name);
+            page = new Page();
+            file.readPage(2,page);
+            String readBack = new String(page.data,0,data.length);
+            System.out.println("PAGE[2]: " + readBack);
+            if (!readBack.equals(new String(data)))
+                throw new TestFailedException("Torn page not restored");
+            if (new File(name + ".dwb").length() != 0)
+                throw new TestFailedException("Double-write buffer not " +
+                                              "emptied");
+            file.close();
+            DBFile.erase(name);
+            System.out.println();
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 6
+    //      Testing compressed databases: pages that do and do not
+    //      compress read back the same after reopening, and extents
+    //      given up are reused
+    //------------------------------------------------------------
+    public static class Test6 implements Testable
+    {
+        // Fills a page with text for even page numbers, which
+        // compresses well, and with random bytes for odd ones, which
+        // does not compress at all.
+        private static void fill(Page page, int pageNum, int round)
+        {
+            if (pageNum % 2 == 0)
+            {
+                byte[] text = ("This is test 6 for page " + pageNum +
+                               " round " + round + ". ").getBytes();
+                for (int i=0; i < page.data.length; i++)
+                    page.data[i] = text[i % text.length];
+            }
+            else
+                new java.util.Random(pageNum * 1000 + round)
+                    .nextBytes(page.data);
+        }
+
+        private static void check(DBFile file, int numPages, int round)
+            throws IOException
+        {
+            Page expected = new Page();
+            Page page = new Page();
+            for (int i=0; i < numPages; i++)
+            {
+                fill(expected,i,round);
+                file.readPage(i,page);
+                if (!java.util.Arrays.equals(page.data,expected.data))
+                    throw new TestFailedException("Page " + i +
+                                                  " content incorrect");
+            }
+        }
+
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 6 -------");
+            String name = filename + "_compressed";
+            int numPages = 10;
+
+            DBFile file = new DBFile(name,2*numPages,Page.PAGESIZE,
+                                     PageProtection.NONE,true);
+            file.allocatePages(numPages);
+            Page page = new Page();
+            for (int i=0; i < numPages; i++)
+            {
+                fill(page,i,0);
+                file.writePage(i,page);
+            }
+            file.close();
+
+            file = new DBFile(name);
+            if (!file.isCompressed())
+                throw new TestFailedException("Database not compressed");
+            check(file,numPages,0);
+            long length = new File(name).length();
+            System.out.println("data file: " + length + " bytes for " +
+                               numPages + " pages");
+            if (length >= (long)numPages * Page.PAGESIZE)
+                throw new TestFailedException("Pages not compressed");
+
+            // Each round writes every page to a new extent. Once the
+            // database is synced, the extents given up are reused, so
+            // the data file never needs more than two extents a page.
+            for (int round=1; round <= 30; round++)
+            {
+                for (int i=0; i < numPages; i++)
+                {
+                    fill(page,i,round);
+                    file.writePage(i,page);
+                }
+                file.sync();
+            }
+            length = new File(name).length();
+            System.out.println("data file: " + length + " bytes after " +
+                               "rewriting");
+            if (length > 2L * numPages * Page.PAGESIZE)
+                throw new TestFailedException("Extents not reused");
+            file.close();
+
+            file = new DBFile(name);
+            check(file,numPages,30);
+            file.close();
+            DBFile.erase(name);
+
+            // Sectors are counted in an int, which bounds the size.
+            try
+            {
+                new DBFile(name,ExtentStore.MAX_PAGES + 1,Page.PAGESIZE,
+                           PageProtection.NONE,true).close();
+                throw new TestFailedException("Oversized database made");
+            }
+            catch (IllegalArgumentException e)
+            {
+            }
+            if (new File(name).exists())
+                throw new TestFailedException("Oversized database left");
+            System.out.println();
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 7
+    //      Testing the compressed cache behind the pool, and the
+    //      fast codec it compresses pages with
+    //------------------------------------------------------------
+    public static class Test7 implements Testable
+    {
+        // Compresses a buffer of the given size with compressFast and
+        // checks that it decompresses to the same bytes.
+        private static void roundTrip(byte[] page, String what)
+            throws Exception
+        {
+            byte[] out = new byte[page.length];
+            int n = PageCodec.compressFast(java.nio.ByteBuffer.wrap(page),
+                                           out);
+            System.out.println(what + " " + page.length + " bytes: " +
+                               (n < 0 ? "incompressible"
+                                : "compressed to " + n));
+            if (n < 0)
+                return;
+            byte[] back = new byte[page.length];
+            PageCodec.decompressFast(out,n,java.nio.ByteBuffer.wrap(back));
+            if (!java.util.Arrays.equals(page,back))
+                throw new TestFailedException("Codec round trip failed " +
+                                              "for " + what);
+        }
+
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 7 -------");
+            java.util.Random random = new java.util.Random(7);
+            for (int size : new int[] {Page.MIN_PAGESIZE,
+                                       Page.MAX_PAGESIZE})
+            {
+                byte[] page = new byte[size];
+                byte[] text = "This is test 7. ".getBytes();
+                for (int i=0; i < size; i++)
+                    page[i] = text[i % text.length];
+                roundTrip(page,"text");
+
+                // Mostly text with random bytes mixed in, so that
+                // matches and literals alternate.
+                for (int i=0; i < size; i+=random.nextInt(64) + 1)
+                    page[i] = (byte)random.nextInt();
+                roundTrip(page,"mixed");
+
+                random.nextBytes(page);
+                roundTrip(page,"random");
+            }
+
+            // Pages replaced in the pool while clean go to the cache,
+            // and pinning them again finds them there.
+            bufMgr.setCompressedCache(1 << 20);
+            int numPages = 2 * bufMgr.poolSize();
+            bufMgr.newPage(numPages,filename);
+            bufMgr.unpinPage(0,filename,false);
+            for (int i=0; i < bufMgr.poolSize(); i++)
+            {
+                Page page = bufMgr.pinPage(i,filename,false);
+                byte[] data = ("This is test 7 for page " + i).getBytes();
+                System.arraycopy(data,0,page.data,0,data.length);
+                bufMgr.unpinPage(i,filename,true);
+            }
+            bufMgr.flushAllPages();
+
+            for (int i=bufMgr.poolSize(); i < numPages; i++)
+            {
+                bufMgr.pinPage(i,filename,false);
+                bufMgr.unpinPage(i,filename,false);
+            }
+
+            long hits = bufMgr.stats().compressedHits();
+            for (int i=0; i < bufMgr.poolSize(); i++)
+            {
+                Page page = bufMgr.pinPage(i,filename,false);
+                String readBack = new String(page.data);
+                String orig = "This is test 7 for page " + i;
+                if (!readBack.regionMatches(0,orig,0,orig.length()))
+                    throw new TestFailedException("Page content incorrect");
+                bufMgr.unpinPage(i,filename,false);
+            }
+            hits = bufMgr.stats().compressedHits() - hits;
+            System.out.println("compressed hits: " + hits);
+            if (hits != bufMgr.poolSize())
+                throw new TestFailedException("Pages not found in the " +
+                                              "compressed cache");
+            System.out.println();
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 8
+    //      Testing the replacement policies: each replaces the page
+    //      it should, and each copes with a pool of pinned pages
+    //------------------------------------------------------------
+    public static class Test8 implements Testable
+    {
+        private static final int POOL = 4;
+
+        private static void use(BufferManager mgr, String filename,
+                                int... pageIds)
+            throws IOException
+        {
+            for (int pageId : pageIds)
+            {
+                if (mgr.pinPage(pageId,filename,false) == null)
+                    throw new TestFailedException("Unable to pin page");
+                mgr.unpinPage(pageId,filename,false);
+            }
+        }
+
+        private static void expect(BufferManager mgr, String filename,
+                                   String policy, int[] resident,
+                                   int[] replaced)
+        {
+            for (int pageId : resident)
+                if (mgr.findFrame(pageId,filename) < 0)
+                    throw new TestFailedException(policy + " replaced page "
+                                                  + pageId);
+            for (int pageId : replaced)
+                if (mgr.findFrame(pageId,filename) >= 0)
+                    throw new TestFailedException(policy + " kept page " +
+                                                  pageId);
+            System.out.println(policy + ": replaced the right pages");
+        }
+
+        // With every frame pinned no page can be pinned; once one is
+        // unpinned, its frame is the one reused.
+        private static void poolFull(BufferManager mgr, String filename,
+                                     String policy)
+            throws IOException
+        {
+            for (int i=0; i < POOL; i++)
+                if (mgr.pinPage(20 + i,filename,false) == null)
+                    throw new TestFailedException("Unable to pin page");
+            if (mgr.pinPage(20 + POOL,filename,false) != null)
+                throw new TestFailedException(policy + " pinned page in " +
+                                              "full buffer");
+            int frame = mgr.findFrame(21,filename);
+            mgr.unpinPage(21,filename,false);
+            if (mgr.pinPage(20 + POOL,filename,false) == null)
+                throw new TestFailedException(policy + " found no frame " +
+                                              "after unpin");
+            if (mgr.findFrame(20 + POOL,filename) != frame)
+                throw new TestFailedException(policy + " reused a pinned " +
+                                              "frame");
+            for (int i=0; i <= POOL; i++)
+                if (i != 1)
+                    mgr.unpinPage(20 + i,filename,false);
+            System.out.println(policy + ": handled a full pool");
+        }
+
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 8 -------");
+            bufMgr.newPage(30,filename);
+            bufMgr.unpinPage(0,filename,false);
+            bufMgr.flushAllPages();
+
+            // Clock gives a page used since the hand last passed a
+            // second chance: the first miss clears every reference
+            // bit and replaces page 0, then page 1 is used again, so
+            // the next miss passes over it and replaces page 2.
+            BufferManager mgr = new BufferManager(POOL,new ClockPolicy());
+            use(mgr,filename,0,1,2,3,4,1,5);
+            expect(mgr,filename,"Clock",new int[] {1,3,4,5},
+                   new int[] {0,2});
+            poolFull(mgr,filename,"Clock");
+            mgr.close();
+
+            // LRU-2 replaces pages used once before pages used twice,
+            // however recent their use: page 3, then page 4, although
+            // 4 was used last.
+            mgr = new BufferManager(POOL,new LRUKPolicy());
+            use(mgr,filename,0,1,2,3,0,1,2,4);
+            expect(mgr,filename,"LRU-2",new int[] {0,1,2,4},
+                   new int[] {3});
+            use(mgr,filename,5);
+            expect(mgr,filename,"LRU-2",new int[] {0,1,2,5},
+                   new int[] {3,4});
+            poolFull(mgr,filename,"LRU-2");
+            mgr.close();
+
+            // 2Q replaces pages seen once in the order they came in;
+            // page 0 comes back soon after it left, so it goes to the
+            // main queue, and a scan then passes it by.
+            mgr = new BufferManager(POOL,new TwoQueuePolicy());
+            use(mgr,filename,0,1,2,3,4);
+            expect(mgr,filename,"2Q",new int[] {1,2,3,4},
+                   new int[] {0});
+            use(mgr,filename,0,5,6,7,8,9,10,11,12);
+            expect(mgr,filename,"2Q",new int[] {0,10,11,12},
+                   new int[] {1,2,3,4,5,6,7,8,9});
+            poolFull(mgr,filename,"2Q");
+            mgr.close();
+
+            // ARC keeps pages used twice, in T2, over pages used once,
+            // in T1, so a scan replaces only the latter.
+            mgr = new BufferManager(POOL,new ARCPolicy());
+            use(mgr,filename,0,1,0,1,2,3,4);
+            expect(mgr,filename,"ARC",new int[] {0,1,3,4},
+                   new int[] {2});
+            use(mgr,filename,5,6,7,8,9);
+            expect(mgr,filename,"ARC",new int[] {0,1,8,9},
+                   new int[] {2,3,4,5,6,7});
+            poolFull(mgr,filename,"ARC");
+            mgr.close();
+            System.out.println();
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 9
+    //      Testing pinRun and unpinRun over a run that is partly in
+    //      the pool
+    //------------------------------------------------------------
+    public static class Test9 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 9 -------");
+            bufMgr.newPage(20,filename);
+            bufMgr.unpinPage(0,filename,false);
+            for (int i=0; i < 10; i++)
+            {
+                Page page = bufMgr.pinPage(i,filename,false);
+                byte[] data = ("This is test 9 for page " + i).getBytes();
+                System.arraycopy(data,0,page.data,0,data.length);
+                bufMgr.unpinPage(i,filename,true);
+            }
+            bufMgr.flushAllPages();
+
+            // Empty the pool, then bring back two pages of the run.
+            BufferManager mgr = new BufferManager(NUMBUF);
+            mgr.pinPage(3,filename,false);
+            mgr.unpinPage(3,filename,false);
+            mgr.pinPage(5,filename,false);
+            mgr.unpinPage(5,filename,false);
+            int frame3 = mgr.findFrame(3,filename);
+            int frame5 = mgr.findFrame(5,filename);
+
+            long pagesRead = mgr.stats().files().get(filename).pagesRead();
+            Page[] pages = mgr.pinRun(filename,2,6);
+            if (pages == null || pages.length != 6)
+                throw new TestFailedException("Unable to pin run");
+            for (int i=0; i < 6; i++)
+            {
+                String readBack = new String(pages[i].data);
+                String orig = "This is test 9 for page " + (i + 2);
+                System.out.println("PAGE[" + (i + 2) + "]: " +
+                                   readBack.substring(0,orig.length()));
+                if (!readBack.regionMatches(0,orig,0,orig.length()))
+                    throw new TestFailedException("Page content incorrect");
+            }
+            pagesRead =
+                mgr.stats().files().get(filename).pagesRead() - pagesRead;
+            if (pagesRead != 4)
+                throw new TestFailedException("Run read " + pagesRead +
+                                              " pages, not 4");
+            if (mgr.findFrame(3,filename) != frame3 ||
+                mgr.findFrame(5,filename) != frame5)
+                throw new TestFailedException("Resident pages moved");
+
+            // Every page of the run is pinned once, so it can be
+            // unpinned once, and no page of it can be replaced before.
+            mgr.unpinPage(4,filename,false);
+            try
+            {
+                mgr.unpinRun(filename,2,6,false);
+                throw new TestFailedException("Unpinned page 4 twice");
+            }
+            catch (BufferManager.PageNotPinnedException e)
+            {
+            }
+            for (int i=2; i < 8; i++)
+                if (mgr.findFrame(i,filename) < 0)
+                    throw new TestFailedException("Page " + i +
+                                                  " left the pool");
+            try
+            {
+                mgr.unpinPage(2,filename,false);
+                throw new TestFailedException("Page 2 still pinned");
+            }
+            catch (BufferManager.PageNotPinnedException e)
+            {
+            }
+            mgr.close();
+            System.out.println();
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 10
+    //      Testing that concurrent pinPageAsync calls for a page
+    //      share one read and each get a pin
+    //------------------------------------------------------------
+    public static class Test10 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 10 -------");
+            bufMgr.newPage(10,filename);
+            Page first = bufMgr.pinPage(0,filename,false);
+            byte[] data = "This is test 10".getBytes();
+            System.arraycopy(data,0,first.data,0,data.length);
+            bufMgr.unpinPage(0,filename,true);
+            bufMgr.unpinPage(0,filename,true);
+            bufMgr.flushAllPages();
+
+            BufferManager mgr = new BufferManager(NUMBUF);
+            java.util.concurrent.CompletableFuture<Page> a =
+                mgr.pinPageAsync(0,filename);
+            java.util.concurrent.CompletableFuture<Page> b =
+                mgr.pinPageAsync(0,filename);
+            Page pageA = a.get();
+            Page pageB = b.get();
+            if (pageA == null || pageB == null)
+                throw new TestFailedException("Unable to pin page");
+            if (pageA.data != pageB.data)
+                throw new TestFailedException("Two copies of one page");
+            String readBack = new String(pageA.data,0,data.length);
+            System.out.println("PAGE[0]: " + readBack);
+            if (!readBack.equals(new String(data)))
+                throw new TestFailedException("Page content incorrect");
+
+            long reads = mgr.stats().files().get(filename).pagesRead();
+            System.out.println("pages read: " + reads);
+            if (reads != 1)
+                throw new TestFailedException("Page read " + reads +
+                                              " times");
+
+            // A call that joins the read waits for it, so it is not
+            // counted as a hit; the second call is a hit only if the
+            // page was already in when it was made.
+            BufferStats stats = mgr.stats();
+            if (stats.hits() + stats.misses() != 2 || stats.misses() < 1)
+                throw new TestFailedException("Pins counted wrongly: " +
+                                              stats);
+
+            mgr.unpinPage(0,filename,false);
+            mgr.unpinPage(0,filename,false);
+            try
+            {
+                mgr.unpinPage(0,filename,false);
+                throw new TestFailedException("Page pinned more than twice");
+            }
+            catch (BufferManager.PageNotPinnedException e)
+            {
+            }
+            mgr.close();
+            System.out.println();
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 11
+    //      Testing that a page written by eviction and then left
+    //      behind by closeFile is synced before a checkpoint can
+    //      discard the log records that would redo it
+    //------------------------------------------------------------
+    public static class Test11 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 11 -------");
+            String name = filename + "_logged";
+            String logName = name + ".wal";
+            new File(logName).delete();
+
+            // The double-write buffer is emptied when the database is
+            // synced, which shows whether written pages are synced.
+            new DBFile(name,100,Page.PAGESIZE,
+                       PageProtection.DOUBLE_WRITE).close();
+            WriteAheadLog log = new WriteAheadLog(logName);
+            bufMgr.setLog(log);
+            bufMgr.newPage(2*bufMgr.poolSize(),name);
+            bufMgr.unpinPage(0,name,false);
+            bufMgr.checkpoint();
+
+            byte[] committed = "This is test 11".getBytes();
+            WriteAheadLog.Transaction tx = log.begin();
+            bufMgr.pinPage(1,name,false);
+            bufMgr.update(tx,1,name,0,committed);
+            bufMgr.unpinPage(1,name,false);
+            bufMgr.commit(tx);
+
+            // Replace page 1, which writes it out without syncing it.
+            for (int i=2; i < 2*bufMgr.poolSize(); i++)
+            {
+                bufMgr.pinPage(i,name,false);
+                bufMgr.unpinPage(i,name,false);
+            }
+            if (bufMgr.findFrame(1,name) >= 0)
+                throw new TestFailedException("Page 1 not replaced");
+            if (new File(name + ".dwb").length() == 0)
+                throw new TestFailedException("Replaced page synced");
+
+            bufMgr.closeFile(name);
+            if (new File(name + ".dwb").length() != 0)
+                throw new TestFailedException("closeFile did not sync");
+
+            // The checkpoint discards the record of the change, which
+            // is safe only because the page is on disk.
+            long redoLsn = bufMgr.checkpoint();
+            System.out.println("log starts at " + log.startLsn() +
+                               ", redo point at " + redoLsn);
+            if (log.startLsn() != redoLsn)
+                throw new TestFailedException("Checkpoint kept records");
+
+            // Crash, and recover from what is left of the log.
+            WriteAheadLog recovered = new WriteAheadLog(logName);
+            bufMgr.setLog(null);
+            log.close();
+            recovered.close();
+
+            DBFile file = new DBFile(name);
+            Page page = new Page();
+            file.readPage(1,page);
+            file.close();
+            String readBack = new String(page.data,0,committed.length);
+            System.out.println("PAGE[1]: " + readBack);
+            if (!readBack.equals(new String(committed)))
+                throw new TestFailedException("Committed change lost");
+
+            DBFile.erase(name);
+            new File(logName).delete();
+            System.out.println();
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 12
+    //      Testing mapped databases: pinPageReadOnly, flushPage and
+    //      syncPage on a mapped file, and closing or remapping a
+    //      file while other threads read and write its pages
+    //------------------------------------------------------------
+    public static class Test12 implements Testable
+    {
+        private static final int THREADS = 4;
+        private static final int PAGES_PER_THREAD = 5;
+
+        private static String text(int pageId, int round)
+        {
+            return "This is test 12 for page " + pageId + " round " +
+                round + ".";
+        }
+
+        private static boolean holds(java.nio.ByteBuffer buffer, String s)
+        {
+            byte[] bytes = new byte[s.length()];
+            buffer.duplicate().get(bytes);
+            return new String(bytes).equals(s);
+        }
+
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 12 -------");
+            bufMgr.newPage(40,filename);
+            bufMgr.unpinPage(0,filename,false);
+            for (int i=0; i < 40; i++)
+            {
+                Page page = bufMgr.pinPage(i,filename,false);
+                byte[] data = text(i,0).getBytes();
+                System.arraycopy(data,0,page.data,0,data.length);
+                bufMgr.unpinPage(i,filename,true);
+            }
+            bufMgr.flushAllPages();
+            bufMgr.closeFile(filename);
+
+            // A page not in the pool is handed out as a view of the
+            // mapping, without taking a frame.
+            BufferManager mgr = new BufferManager(NUMBUF);
+            mgr.mapFile(filename);
+            Page page = mgr.pinPageReadOnly(3,filename);
+            if (page == null || page.data != null ||
+                !page.buffer().isReadOnly())
+                throw new TestFailedException("Page not a read-only view");
+            if (!holds(page.buffer(),text(3,0)))
+                throw new TestFailedException("Page content incorrect");
+            if (mgr.findFrame(3,filename) >= 0)
+                throw new TestFailedException("Mapped page took a frame");
+            mgr.unpinPage(3,filename,false);
+            try
+            {
+                mgr.unpinPage(3,filename,false);
+                throw new TestFailedException("Mapped page unpinned twice");
+            }
+            catch (BufferManager.PageNotPinnedException e)
+            {
+            }
+
+            // A page changed in the pool is written to the mapping and
+            // synced by flushPage.
+            page = mgr.pinPage(4,filename,false);
+            byte[] data = text(4,1).getBytes();
+            System.arraycopy(data,0,page.data,0,data.length);
+            mgr.unpinPage(4,filename,true);
+            mgr.flushPage(4,filename);
+            page = mgr.pinPageReadOnly(4,filename);
+            if (!holds(page.buffer(),text(4,1)))
+                throw new TestFailedException("Flushed page not read back");
+            mgr.unpinPage(4,filename,false);
+
+            DBFile file = new DBFile(filename,true);
+            if (!file.isMapped())
+                throw new TestFailedException("Database not mapped");
+            if (!holds(file.mappedPage(4).buffer(),text(4,1)))
+                throw new TestFailedException("Flushed page not in file");
+            file.syncPage(4);
+            try
+            {
+                file.syncPage(file.getNumPages());
+                throw new TestFailedException("Synced page past the end");
+            }
+            catch (DBFile.BadPageNumberException e)
+            {
+            }
+            file.close();
+
+            // Threads change pages while the file is closed and mapped
+            // again under them; no read or write may fail.
+            final BufferManager shared = mgr;
+            final int[] rounds = new int[THREADS];
+            final Exception[] failures = new Exception[THREADS];
+            Thread[] threads = new Thread[THREADS];
+            for (int t=0; t < THREADS; t++)
+            {
+                final int id = t;
+                threads[t] = new Thread(() -> {
+                    try
+                    {
+                        for (int round=1; round <= 200; round++)
+                        {
+                            for (int j=0; j < PAGES_PER_THREAD; j++)
+                            {
+                                int pageId = 10 + id * PAGES_PER_THREAD + j;
+                                Page p = shared.pinPage(pageId,filename,
+                                                        false);
+                                if (p == null)
+                                    continue;
+                                if (!holds(p.buffer(),
+                                           text(pageId,rounds[id])))
+                                    throw new TestFailedException(
+                                        "Page " + pageId + " lost a write");
+                                p.buffer().put(
+                                    text(pageId,round).getBytes());
+                                shared.unpinPage(pageId,filename,true);
+                            }
+                            rounds[id] = round;
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        failures[id] = e;
+                    }
+                });
+                threads[t].start();
+            }
+            for (int i=0; i < 50; i++)
+            {
+                if (i % 2 == 0)
+                    mgr.closeFile(filename);
+                else
+                    mgr.mapFile(filename);
+            }
+            for (Thread thread : threads)
+                thread.join();
+            for (Exception failure : failures)
+                if (failure != null)
+                    throw failure;
+
+            mgr.flushAllPages();
+            mgr.close();
+            file = new DBFile(filename);
+            page = new Page();
+            for (int t=0; t < THREADS; t++)
+                for (int j=0; j < PAGES_PER_THREAD; j++)
+                {
+                    int pageId = 10 + t * PAGES_PER_THREAD + j;
+                    file.readPage(pageId,page);
+                    if (!holds(page.buffer(),text(pageId,rounds[t])))
+                        throw new TestFailedException("Page " + pageId +
+                                                      " not flushed");
+                }
+            file.close();
+            System.out.println("mapped pages read, written and remapped");
+            System.out.println();
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 13
+    //      Testing closeFiles, which lets the buffer manager carry on,
+    //      and close, which shuts it down for good
+    //------------------------------------------------------------
+    public static class Test13 implements Testable
+    {
+        // The number of writer threads, once those stopped have had up
+        // to a second to go away.
+        private static int writers(int expected) throws Exception
+        {
+            int count = 0;
+            for (int i=0; i < 100; i++)
+            {
+                count = 0;
+                for (Thread t : Thread.getAllStackTraces().keySet())
+                    if (t.getName().equals("page writer") && t.isAlive())
+                        count++;
+                if (count == expected)
+                    break;
+                Thread.sleep(10);
+            }
+            return count;
+        }
+
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 13 -------");
+            int before = writers(0);
+            BufferManager mgr = new BufferManager(NUMBUF);
+            mgr.newPage(3*NUMBUF,filename);
+            mgr.unpinPage(0,filename,false);
+            mgr.setBackgroundWriter(10,0,1,NUMBUF);
+            for (int i=0; i < NUMBUF; i++)
+            {
+                Page page = mgr.pinPage(i,filename,false);
+                page.data[0] = (byte)i;
+                mgr.unpinPage(i,filename,true);
+            }
+            if (writers(before + 1) != before + 1)
+                throw new TestFailedException("Writer not started");
+
+            // The files are reopened once closed, and the writer keeps
+            // running.
+            mgr.flushAllPages();
+            mgr.closeFiles();
+            if (writers(before + 1) != before + 1)
+                throw new TestFailedException("closeFiles stopped writer");
+            for (int i=NUMBUF; i < 2*NUMBUF; i++)
+            {
+                Page page = mgr.pinPage(i,filename,false);
+                mgr.unpinPage(i,filename,false);
+            }
+            Page page = mgr.pinPage(0,filename,false);
+            if (page.data[0] != 0)
+                throw new TestFailedException("Page not reread");
+            mgr.unpinPage(0,filename,false);
+            mgr.pinPageAsync(1,filename).get();
+            mgr.unpinPage(1,filename,false);
+
+            mgr.close();
+            if (writers(before) != before)
+                throw new TestFailedException("close left writer running");
+            mgr.close();
+            try
+            {
+                mgr.pinPage(2*NUMBUF,filename,false);
+                throw new TestFailedException("Page read after close");
+            }
+            catch (IllegalStateException e)
+            {
+            }
+            try
+            {
+                mgr.pinPageAsync(2*NUMBUF+1,filename).get();
+                throw new TestFailedException("Page read after close");
+            }
+            catch (java.util.concurrent.ExecutionException e)
+            {
+            }
+            try
+            {
+                mgr.setBackgroundWriter(10,0,1,NUMBUF);
+                throw new TestFailedException("Writer started after close");
+            }
+            catch (IllegalStateException e)
+            {
+            }
+            try
+            {
+                mgr.closeFiles();
+                throw new TestFailedException("Files closed after close");
+            }
+            catch (IllegalStateException e)
+            {
+            }
+            try
+            {
+                mgr.mapFile(filename);
+                throw new TestFailedException("File mapped after close");
+            }
+            catch (IllegalStateException e)
+            {
+            }
+            if (writers(before) != before)
+                throw new TestFailedException("Writer restarted");
+            System.out.println("closeFiles reopens files, close is final");
+            System.out.println();
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 14
+    //      Testing threads that pin, unpin, dirty and flush pages of
+    //      a pool too small for them all, so that frames are evicted
+    //      and reused under them
+    //------------------------------------------------------------
+    public static class Test14 implements Testable
+    {
+        private static final int THREADS = 8;
+        private static final int NUM_PAGES = 3 * NUMBUF;
+        private static final int ROUNDS = 5000;
+
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 14 -------");
+            bufMgr.newPage(NUM_PAGES,filename);
+            bufMgr.unpinPage(0,filename,false);
+            for (int i=0; i < NUM_PAGES; i++)
+            {
+                Page page = bufMgr.pinPage(i,filename,false);
+                page.buffer().putInt(0,i).putInt(4,0);
+                bufMgr.unpinPage(i,filename,true);
+            }
+            bufMgr.flushAllPages();
+
+            // Every page holds its number and a count of the writes to
+            // it. Only thread p % THREADS writes page p, so it knows
+            // what the count must be; the others only read the number.
+            final BufferManager mgr = new BufferManager(NUMBUF);
+            final int[] counts = new int[NUM_PAGES];
+            final Exception[] failures = new Exception[THREADS];
+            Thread[] threads = new Thread[THREADS];
+            for (int t=0; t < THREADS; t++)
+            {
+                final int id = t;
+                threads[t] = new Thread(() -> {
+                    java.util.Random random = new java.util.Random(id);
+                    try
+                    {
+                        for (int round=0; round < ROUNDS; round++)
+                            step(mgr,filename,id,random,counts);
+                    }
+                    catch (Exception e)
+                    {
+                        failures[id] = e;
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            for (Exception failure : failures)
+                if (failure != null)
+                    throw failure;
+
+            // Nothing is left pinned, so every frame can be reused.
+            for (int i=0; i < NUM_PAGES; i++)
+            {
+                try
+                {
+                    mgr.unpinPage(i,filename,false);
+                    throw new TestFailedException("Page " + i +
+                                                  " left pinned");
+                }
+                catch (BufferManager.PageNotPinnedException e)
+                {
+                }
+            }
+            mgr.flushAllPages();
+            BufferStats stats = mgr.stats();
+            mgr.close();
+
+            DBFile file = new DBFile(filename);
+            Page page = new Page();
+            for (int i=0; i < NUM_PAGES; i++)
+            {
+                file.readPage(i,page);
+                java.nio.ByteBuffer b = page.buffer();
+                if (b.getInt(0) != i || b.getInt(4) != counts[i])
+                    throw new TestFailedException("Page " + i +
+                                                  " lost a write");
+            }
+            file.close();
+            System.out.println(THREADS + " threads, " + stats.evictions() +
+                               " evictions, pages intact");
+            System.out.println();
+        }
+
+        /**
+         * Pins one or two pages, checks them, changes those the thread
+         * owns and unpins them, sometimes flushing one first.
+         */
+        private static void step(BufferManager mgr, String filename,
+                                 int id, java.util.Random random,
+                                 int[] counts) throws Exception
+        {
+            int first = random.nextInt(NUM_PAGES);
+            int second = random.nextInt(NUM_PAGES);
+            boolean both = random.nextBoolean();
+            Page a = mgr.pinPage(first,filename,false);
+            if (a == null)
+                throw new TestFailedException("Pool full");
+            int frame = mgr.findFrame(first,filename);
+            if (both)
+            {
+                // A pinned page keeps its frame while others are
+                // evicted, including a second pin of the same page.
+                Page b = mgr.pinPage(second,filename,false);
+                if (b == null)
+                    throw new TestFailedException("Pool full");
+                check(b,second);
+                if (mgr.findFrame(first,filename) != frame)
+                    throw new TestFailedException("Pinned page " + first +
+                                                  " moved");
+                change(b,second,id,counts);
+                mgr.unpinPage(second,filename,second % THREADS == id);
+            }
+            check(a,first);
+            change(a,first,id,counts);
+            mgr.unpinPage(first,filename,first % THREADS == id);
+            if (random.nextInt(50) == 0)
+                mgr.flushPage(first,filename);
+        }
+
+        private static void check(Page page, int pageId)
+            throws TestFailedException
+        {
+            if (page.buffer().getInt(0) != pageId)
+                throw new TestFailedException("Page " + pageId +
+                                              " has another page's data");
+        }
+
+        private static void change(Page page, int pageId, int id,
+                                   int[] counts) throws TestFailedException
+        {
+            if (pageId % THREADS != id)
+                return;
+            java.nio.ByteBuffer b = page.buffer();
+            if (b.getInt(4) != counts[pageId])
+                throw new TestFailedException("Page " + pageId +
+                                              " lost a write");
+            b.putInt(4,++counts[pageId]);
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 15
+    //      Testing pools and databases with the smallest and largest
+    //      page sizes, and pools given a database of another size
+    //------------------------------------------------------------
+    public static class Test15 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 15 -------");
+            int[] sizes = {Page.MIN_PAGESIZE, Page.MAX_PAGESIZE};
+            int numPages = 2 * NUMBUF;
+            for (int size : sizes)
+            {
+                String name = filename + "_" + size;
+                new DBFile(name,numPages,size).close();
+                BufferManager mgr =
+                    new BufferManager(NUMBUF,new ClockPolicy(),false,size);
+                if (mgr.pageSize() != size)
+                    throw new TestFailedException("Wrong pool page size");
+
+                // Twice as many pages as frames, so that pages are
+                // written out and read back in whole.
+                mgr.newPage(numPages,name);
+                mgr.unpinPage(0,name,false);
+                for (int i=0; i < numPages; i++)
+                {
+                    Page page = mgr.pinPage(i,name,false);
+                    if (page.size() != size)
+                        throw new TestFailedException("Wrong page size");
+                    page.buffer().putInt(0,i).putInt(size - 4,~i);
+                    mgr.unpinPage(i,name,true);
+                }
+                for (int i=0; i < numPages; i++)
+                {
+                    Page page = mgr.pinPage(i,name,false);
+                    if (page.buffer().getInt(0) != i ||
+                        page.buffer().getInt(size - 4) != ~i)
+                        throw new TestFailedException("Page " + i +
+                                                      " not read back");
+                    mgr.unpinPage(i,name,false);
+                }
+
+                // The pool only takes databases of its own page size.
+                try
+                {
+                    mgr.pinPage(0,filename,false);
+                    throw new TestFailedException("Page of " +
+                                                  Page.PAGESIZE +
+                                                  " bytes pinned");
+                }
+                catch (BufferManager.PageSizeMismatchException e)
+                {
+                }
+                try
+                {
+                    bufMgr.pinPage(0,name,false);
+                    throw new TestFailedException("Page of " + size +
+                                                  " bytes pinned");
+                }
+                catch (BufferManager.PageSizeMismatchException e)
+                {
+                }
+                mgr.flushAllPages();
+                mgr.close();
+
+                DBFile file = new DBFile(name);
+                if (file.getPageSize() != size)
+                    throw new TestFailedException("Wrong file page size");
+                Page page = new Page(size);
+                for (int i=0; i < numPages; i++)
+                {
+                    file.readPage(i,page);
+                    if (page.buffer().getInt(0) != i ||
+                        page.buffer().getInt(size - 4) != ~i)
+                        throw new TestFailedException("Page " + i +
+                                                      " not written");
+                }
+                try
+                {
+                    file.readPage(0,new Page());
+                    throw new TestFailedException("Read into wrong size");
+                }
+                catch (DBFile.BadPageSizeException e)
+                {
+                }
+                file.close();
+                DBFile.erase(name);
+                System.out.println(size + "-byte pages: " + numPages +
+                                   " pages written and read back");
+            }
+            System.out.println();
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 16
+    //      Testing pinPage, unpinPage, and whether a dirty page is
+    //      written to disk, as test 1 does, with the pool kept in
+    //      direct buffers outside the Java heap
+    //------------------------------------------------------------
+    public static class Test16 implements Testable
+    {
+        private static String text(int i)
+        {
+            return "This is test 16 for page " + i;
+        }
+
+        private static String read(Page page, int length)
+        {
+            byte[] bytes = new byte[length];
+            page.buffer().duplicate().get(bytes);
+            return new String(bytes);
+        }
+
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 16 -------");
+            BufferManager mgr =
+                new BufferManager(NUMBUF,new ClockPolicy(),true);
+            int first = 5;
+            int last = first + mgr.poolSize() + 5;
+            mgr.newPage(last+10,filename);
+            mgr.unpinPage(0,filename,false);
+
+            for (int i=first; i<=last; i++)
+            {
+                Page page = mgr.pinPage(i,filename,false);
+                if (page == null)
+                    throw new TestFailedException("Unable to pin page " +
+                                                  "1st time");
+                if (page.data != null || !page.buffer().isDirect())
+                    throw new TestFailedException("Page not off the heap");
+                page.buffer().duplicate().put(text(i).getBytes());
+                mgr.unpinPage(i,filename,true);
+            }
+
+            // The first pages were written out to make room and are
+            // read back into other frames.
+            for (int i=first; i<=last; i++)
+            {
+                Page page = mgr.pinPage(i,filename,false);
+                if (page == null)
+                    throw new TestFailedException("Unable to pin page " +
+                                                  "2nd time");
+                String readBack = read(page,text(i).length());
+                if (!readBack.equals(text(i)))
+                    throw new TestFailedException("Page content incorrect");
+                mgr.unpinPage(i,filename,false);
+            }
+
+            // Flushing one page, then the rest, puts them all on disk.
+            Page page = mgr.pinPage(last,filename,false);
+            page.buffer().duplicate().put(text(-last).getBytes());
+            mgr.unpinPage(last,filename,true);
+            mgr.flushPage(last,filename);
+            mgr.flushAllPages();
+            mgr.close();
+
+            DBFile file = new DBFile(filename);
+            page = new Page();
+            for (int i=first; i<=last; i++)
+            {
+                String orig = i == last ? text(-last) : text(i);
+                file.readPage(i,page);
+                if (!read(page,orig.length()).equals(orig))
+                    throw new TestFailedException("Page " + i +
+                                                  " not flushed");
+            }
+            file.close();
+            System.out.println("pages " + first + " to " + last +
+                               " written and read back off the heap");
+            System.out.println();
+        }
+    }
+
+
     public static final String FILENAME = "__testing";
     public static final int NUMBUF = 20;
 
@@ -226,10 +1602,11 @@ public class BMTester
     {
         boolean success = true;
         DBFile dbfile = null;
+        BufferManager bufMgr = null;
         try
         {
             dbfile = new DBFile(FILENAME,NUMBUF+500);
-            BufferManager bufMgr = new BufferManager(NUMBUF);
+            bufMgr = new BufferManager(NUMBUF);
             testObj.test(bufMgr,FILENAME);
         }
         catch (Exception e)
@@ -238,6 +1615,19 @@ public class BMTester
             e.printStackTrace();
         }
 
+        try
+        {
+            if (bufMgr != null)
+                bufMgr.close();
+            if (dbfile != null)
+                dbfile.close();
+        }
+        catch (IOException e)
+        {
+            success = false;
+            e.printStackTrace();
+        }
+
         DBFile.erase(FILENAME);
 
         return success;
@@ -254,6 +1644,19 @@ public class BMTester
         runTest(new Test1());
         runTest(new Test2());
 	runTest(new Test3());
+        runTest(new Test4());
+        runTest(new Test5());
+        runTest(new Test6());
+        runTest(new Test7());
+        runTest(new Test8());
+        runTest(new Test9());
+        runTest(new Test10());
+        runTest(new Test11());
+        runTest(new Test12());
+        runTest(new Test13());
+        runTest(new Test14());
+        runTest(new Test15());
+        runTest(new Test16());
         
         // Clean up
         DBFile.erase(FILENAME);
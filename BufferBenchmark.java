@@ -0,0 +1,533 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Benchmark suite for the buffer manager and DBFile. Each benchmark
+ * is run a few times to warm up and then measured several times, and
+ * the median is reported, so that performance changes can be compared
+ * run against run. The benchmarks are:
+ *
+ *   hit         pinPage of a page already in the pool, and the unpin
+ *   miss-clean  pinPage that misses and replaces a clean page
+ *   miss-dirty  pinPage that misses and writes out a dirty victim
+ *   alloc       DBFile.allocatePages and newPage in a fragmented file
+ *   flush       flushAllPages of a pool full of dirty pages
+ *   checksum    CRC-32C of a page, and DBFile page reads and writes
+ *               under each PageProtection
+ *   compression Deflater speed and ratio at several levels, and DBFile
+ *               page reads, writes and size compressed and not
+ *   tiered      Zipfian pins of rows of text through a small pool, with
+ *               compressed caches of several sizes behind it, and the
+ *               share of pins that read from the database
+ *   uniform     threads pinning pages chosen uniformly at random
+ *   zipf        threads pinning pages with a Zipfian skew
+ *   sequential  threads each scanning the database in page order
+ *
+ * The last three are run at several pool sizes and thread counts.
+ *
+ * This is a quick run that needs nothing but a JDK. The hit, miss and
+ * multi-threaded benchmarks are also written for JMH in jmh/, which
+ * forks, warms up and reports error bounds properly; use those to
+ * confirm a change found here.
+ *
+ * Usage: java BufferBenchmark [benchmark ...]
+ */
+public class BufferBenchmark
+{
+    static final String DBNAME = "__bufbench";
+    static final int NUM_PAGES = 8192;
+    private static final int WARMUP = 3;
+    private static final int ROUNDS = 5;
+    private static final int[] POOL_SIZES = {64, 256, 1024};
+    private static final int[] THREADS = {1, 4, 16};
+    private static final int PINS_PER_THREAD = 50000;
+
+    private interface Round
+    {
+        /**
+         * Runs one round of a benchmark.
+         * @return the nanoseconds measured.
+         */
+        long run() throws Exception;
+    }
+
+    /**
+     * Runs a benchmark's rounds and returns the median time of the
+     * measured ones.
+     */
+    static long median(Round round) throws Exception
+    {
+        for (int i=0; i < WARMUP; i++)
+            round.run();
+        long[] times = new long[ROUNDS];
+        for (int i=0; i < ROUNDS; i++)
+            times[i] = round.run();
+        Arrays.sort(times);
+        return times[ROUNDS / 2];
+    }
+
+    static void report(String name, String params, double value,
+                       String unit)
+    {
+        System.out.printf("%-12s %-26s %14.1f %s%n", name, params, value,
+                          unit);
+    }
+
+    /**
+     * Creates the database, with every page allocated and holding its
+     * page number in its first four bytes.
+     */
+    static void createDatabase() throws IOException
+    {
+        DBFile.erase(DBNAME);
+        try (DBFile file = new DBFile(DBNAME, NUM_PAGES))
+        {
+            file.allocatePages(NUM_PAGES);
+            Page page = new Page();
+            for (int i=0; i < NUM_PAGES; i++)
+            {
+                page.buffer().putInt(0, i);
+                file.writePage(i, page);
+            }
+        }
+    }
+
+    static void pin(BufferManager bm, int pageNum) throws IOException
+    {
+        Page page = bm.pinPage(pageNum, DBNAME, false);
+        if (page == null || page.buffer().getInt(0) != pageNum)
+            throw new IllegalStateException("Wrong page " + pageNum);
+    }
+
+    static void hit() throws Exception
+    {
+        int batch = 512;
+        BufferManager bm = new BufferManager(1024);
+        for (int i=0; i < batch; i++)
+        {
+            pin(bm, i);
+            bm.unpinPage(i, DBNAME, false);
+        }
+        long[] unpin = new long[1];
+        long pinTime = median(() -> {
+            long start = System.nanoTime();
+            for (int i=0; i < batch; i++)
+                pin(bm, i);
+            long elapsed = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i=0; i < batch; i++)
+                bm.unpinPage(i, DBNAME, false);
+            unpin[0] = System.nanoTime() - start;
+            return elapsed;
+        });
+        report("hit", "pinPage", (double)pinTime / batch, "ns/op");
+        report("hit", "unpinPage", (double)unpin[0] / batch, "ns/op");
+        bm.close();
+    }
+
+    static void miss(boolean dirty) throws Exception
+    {
+        String name = dirty ? "miss-dirty" : "miss-clean";
+        BufferManager bm = new BufferManager(64);
+        int[] next = new int[1];
+        long time = median(() -> {
+            long start = System.nanoTime();
+            for (int i=0; i < NUM_PAGES; i++)
+            {
+                int pageNum = next[0]++ % NUM_PAGES;
+                pin(bm, pageNum);
+                bm.unpinPage(pageNum, DBNAME, dirty);
+            }
+            return System.nanoTime() - start;
+        });
+        report(name, "pool=64", (double)time / NUM_PAGES, "ns/op");
+        bm.flushAllPages();
+        bm.close();
+    }
+
+    static void alloc() throws Exception
+    {
+        String fragmented = DBNAME + "frag";
+        DBFile.erase(fragmented);
+        try (DBFile file = new DBFile(fragmented, NUM_PAGES * 4))
+        {
+            // Leave free runs of at most 15 pages, and one run of 64
+            // pages at the end of the file.
+            file.allocatePages(NUM_PAGES * 4);
+            Random random = new Random(42);
+            int page = 0;
+            while (page < NUM_PAGES * 4 - 128)
+            {
+                int free = 1 + random.nextInt(15);
+                file.deallocatePages(page, free);
+                page += free + 1 + random.nextInt(4);
+            }
+            file.deallocatePages(NUM_PAGES * 4 - 64, 64);
+        }
+
+        BufferManager bm = new BufferManager(256);
+        for (int runSize : new int[] {1, 8, 64})
+        {
+            int ops = 1000;
+            DBFile file = new DBFile(fragmented);
+            long time = median(() -> {
+                long start = System.nanoTime();
+                for (int i=0; i < ops; i++)
+                    file.deallocatePages(file.allocatePages(runSize),
+                                         runSize);
+                return System.nanoTime() - start;
+            });
+            file.close();
+            report("alloc", "allocatePages run=" + runSize,
+                   (double)time / ops, "ns/op");
+
+            time = median(() -> {
+                long start = System.nanoTime();
+                for (int i=0; i < ops; i++)
+                {
+                    int first = bm.newPage(runSize, fragmented).first;
+                    bm.unpinPage(first, fragmented, false);
+                    for (int j=0; j < runSize; j++)
+                        bm.freePage(first + j, fragmented);
+                }
+                return System.nanoTime() - start;
+            });
+            report("alloc", "newPage run=" + runSize, (double)time / ops,
+                   "ns/op");
+        }
+        bm.close();
+        DBFile.erase(fragmented);
+    }
+
+    static void flush() throws Exception
+    {
+        int poolSize = 1024;
+        BufferManager bm = new BufferManager(poolSize);
+        long time = median(() -> {
+            for (int i=0; i < poolSize; i++)
+            {
+                pin(bm, i);
+                bm.unpinPage(i, DBNAME, true);
+            }
+            long start = System.nanoTime();
+            bm.flushAllPages();
+            return System.nanoTime() - start;
+        });
+        report("flush", "pool=" + poolSize, time / 1e6, "ms/flush");
+        bm.close();
+    }
+
+    static void checksum() throws Exception
+    {
+        for (int pageSize : new int[] {Page.PAGESIZE, 8192})
+        {
+            Page page = new Page(pageSize);
+            new Random(42).nextBytes(page.data);
+            int ops = 100000;
+            int[] sink = new int[1];
+            long time = median(() -> {
+                long start = System.nanoTime();
+                for (int i=0; i < ops; i++)
+                    sink[0] += PageChecksums.compute(page.buffer());
+                return System.nanoTime() - start;
+            });
+            report("checksum", "crc32c page=" + pageSize,
+                   (double)time / ops, "ns/page");
+        }
+
+        String name = DBNAME + "sum";
+        int pages = 1024;
+        for (PageProtection protection : PageProtection.values())
+        {
+            DBFile.erase(name);
+            DBFile file = new DBFile(name, pages, Page.PAGESIZE, protection);
+            file.allocatePages(pages);
+            Page page = new Page();
+            // Every write to a double-write buffer is forced, so it
+            // gets fewer writes.
+            int writes = protection == PageProtection.DOUBLE_WRITE ? 64
+                : pages;
+            long time = median(() -> {
+                long start = System.nanoTime();
+                for (int i=0; i < writes; i++)
+                {
+                    page.buffer().putInt(0, i);
+                    file.writePage(i, page);
+                }
+                return System.nanoTime() - start;
+            });
+            report("checksum", "writePage " + protection,
+                   (double)time / writes, "ns/op");
+            file.sync();
+            time = median(() -> {
+                long start = System.nanoTime();
+                for (int i=0; i < pages; i++)
+                    file.readPage(i, page);
+                return System.nanoTime() - start;
+            });
+            report("checksum", "readPage " + protection,
+                   (double)time / pages, "ns/op");
+            file.close();
+        }
+        DBFile.erase(name);
+    }
+
+    /**
+     * Fills a page with rows of text and numbers, which compress about
+     * as well as the records of a typical table.
+     */
+    static void fillRows(Page page, Random random)
+    {
+        StringBuilder rows = new StringBuilder();
+        while (rows.length() < page.size())
+            rows.append("row ").append(random.nextInt(100000))
+                .append(" name=customer").append(random.nextInt(1000))
+                .append(" balance=").append(random.nextInt(1000000))
+                .append(" status=").append(random.nextBoolean() ? "open"
+                                           : "closed")
+                .append('\n');
+        page.buffer().put(rows.substring(0, page.size()).getBytes());
+    }
+
+    static void compression() throws Exception
+    {
+        Page rows = new Page();
+        fillRows(rows, new Random(42));
+        byte[] out = new byte[Page.PAGESIZE * 2];
+        for (int level : new int[] {1, 6, 9})
+        {
+            java.util.zip.Deflater deflater =
+                new java.util.zip.Deflater(level);
+            int ops = 20000;
+            int[] length = new int[1];
+            long time = median(() -> {
+                long start = System.nanoTime();
+                for (int i=0; i < ops; i++)
+                    length[0] = PageCodec.compress(deflater, rows.buffer(),
+                                                   out);
+                return System.nanoTime() - start;
+            });
+            report("compression", "deflate level=" + level,
+                   (double)time / ops, "ns/page");
+            report("compression", "ratio level=" + level,
+                   (double)Page.PAGESIZE / length[0], "x");
+            deflater.end();
+        }
+
+        String name = DBNAME + "zip";
+        int pages = 1024;
+        for (boolean compressed : new boolean[] {false, true})
+        {
+            DBFile.erase(name);
+            DBFile file = new DBFile(name, pages, Page.PAGESIZE,
+                                     PageProtection.NONE, compressed);
+            file.allocatePages(pages);
+            Page[] images = new Page[pages];
+            Random random = new Random(42);
+            for (int i=0; i < pages; i++)
+            {
+                images[i] = new Page();
+                fillRows(images[i], random);
+            }
+            long time = median(() -> {
+                long start = System.nanoTime();
+                for (int i=0; i < pages; i++)
+                    file.writePage(i, images[i]);
+                return System.nanoTime() - start;
+            });
+            String mode = compressed ? "compressed" : "plain";
+            report("compression", "writePage " + mode,
+                   (double)time / pages, "ns/op");
+            file.sync();
+            Page page = new Page();
+            time = median(() -> {
+                long start = System.nanoTime();
+                for (int i=0; i < pages; i++)
+                    file.readPage(i, page);
+                return System.nanoTime() - start;
+            });
+            report("compression", "readPage " + mode,
+                   (double)time / pages, "ns/op");
+            report("compression", "size " + mode,
+                   new File(name).length() / 1024.0, "KB");
+            file.close();
+        }
+        DBFile.erase(name);
+    }
+
+    static void tiered() throws Exception
+    {
+        String name = DBNAME + "rows";
+        DBFile.erase(name);
+        try (DBFile file = new DBFile(name, NUM_PAGES))
+        {
+            file.allocatePages(NUM_PAGES);
+            Page page = new Page();
+            Random random = new Random(42);
+            for (int i=0; i < NUM_PAGES; i++)
+            {
+                fillRows(page, random);
+                file.writePage(i, page);
+            }
+        }
+
+        Zipf zipf = new Zipf(NUM_PAGES, 0.99);
+        int poolSize = 256;
+        for (long cacheBytes : new long[] {0, 1 << 20, 4 << 20})
+        {
+            BufferManager bm = new BufferManager(poolSize);
+            bm.setCompressedCache(cacheBytes);
+            long time = median(() -> {
+                Random random = new Random(1);
+                long start = System.nanoTime();
+                for (int i=0; i < PINS_PER_THREAD; i++)
+                {
+                    int pageNum = zipf.next(random);
+                    bm.pinPage(pageNum, name, false);
+                    bm.unpinPage(pageNum, name, false);
+                }
+                return System.nanoTime() - start;
+            });
+            BufferStats stats = bm.stats();
+            long pins = stats.hits() + stats.misses();
+            String params = "cache=" + (cacheBytes >> 10) + "K";
+            report("tiered", params + " pins",
+                   (double)time / PINS_PER_THREAD, "ns/pin");
+            report("tiered", params + " reads",
+                   100.0 * stats.files().get(name).pagesRead() / pins,
+                   "% of pins");
+            bm.close();
+        }
+        DBFile.erase(name);
+    }
+
+    /**
+     * Chooses pages with a Zipfian skew: the page of rank k is chosen
+     * in proportion to 1 / k^theta. Ranks are scattered over the file
+     * so that hot pages are not neighbours.
+     */
+    static class Zipf
+    {
+        private final double[] cdf;
+
+        Zipf(int n, double theta)
+        {
+            cdf = new double[n];
+            double sum = 0;
+            for (int k=1; k <= n; k++)
+                cdf[k-1] = sum += 1 / Math.pow(k, theta);
+            for (int k=0; k < n; k++)
+                cdf[k] /= sum;
+        }
+
+        int next(Random random)
+        {
+            int rank = Arrays.binarySearch(cdf, random.nextDouble());
+            if (rank < 0)
+                rank = Math.min(-rank - 1, cdf.length - 1);
+            return (int)((rank * 7919L) % cdf.length);
+        }
+    }
+
+    static void workload(String name) throws Exception
+    {
+        Zipf zipf = new Zipf(NUM_PAGES, 0.99);
+        for (int poolSize : POOL_SIZES)
+        {
+            for (int threads : THREADS)
+            {
+                BufferManager bm = new BufferManager(poolSize);
+                ExecutorService executor =
+                    Executors.newFixedThreadPool(threads);
+                long time = median(() -> {
+                    List<Future<?>> tasks = new ArrayList<Future<?>>();
+                    long start = System.nanoTime();
+                    for (int t=0; t < threads; t++)
+                    {
+                        long seed = t;
+                        tasks.add(executor.submit(() -> {
+                            Random random = new Random(seed);
+                            int pageNum = random.nextInt(NUM_PAGES);
+                            for (int i=0; i < PINS_PER_THREAD; i++)
+                            {
+                                if (name.equals("uniform"))
+                                    pageNum = random.nextInt(NUM_PAGES);
+                                else if (name.equals("zipf"))
+                                    pageNum = zipf.next(random);
+                                else
+                                    pageNum = (pageNum + 1) % NUM_PAGES;
+                                while (bm.pinPage(pageNum, DBNAME, false)
+                                       == null)
+                                    Thread.yield();
+                                bm.unpinPage(pageNum, DBNAME, false);
+                            }
+                            return null;
+                        }));
+                    }
+                    for (Future<?> task : tasks)
+                        task.get();
+                    return System.nanoTime() - start;
+                });
+                executor.shutdown();
+                bm.close();
+                double pins = (double)threads * PINS_PER_THREAD;
+                report(name, "pool=" + poolSize + " threads=" + threads,
+                       pins * 1e3 / time, "Mpins/s");
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        List<String> names = Arrays.asList("hit", "miss-clean",
+                                           "miss-dirty", "alloc", "flush",
+                                           "checksum", "compression",
+                                           "tiered", "uniform", "zipf",
+                                           "sequential");
+        if (args.length > 0)
+            names = Arrays.asList(args);
+
+        createDatabase();
+        System.out.printf("%-12s %-26s %14s%n", "benchmark", "parameters",
+                          "median");
+        for (String name : names)
+        {
+            switch (name)
+            {
+            case "hit":
+                hit();
+                break;
+            case "miss-clean":
+                miss(false);
+                break;
+            case "miss-dirty":
+                miss(true);
+                break;
+            case "alloc":
+                alloc();
+                break;
+            case "flush":
+                flush();
+                break;
+            case "checksum":
+                checksum();
+                break;
+            case "compression":
+                compression();
+                break;
+            case "tiered":
+                tiered();
+                break;
+            case "uniform":
+            case "zipf":
+            case "sequential":
+                workload(name);
+                break;
+            default:
+                System.out.println("Unknown benchmark " + name);
+            }
+        }
+        DBFile.erase(DBNAME);
+    }
+}
@@ -1,15 +1,62 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
- * Buffer manager. Manages a memory-based buffer pool of pages.
+ * Buffer manager. Manages a memory-based buffer pool of pages. The
+ * database files used by the pool are opened once and kept open until
+ * the buffer manager is closed. All methods may be called from several
+ * threads at once: lookups of pages already in the pool only take the
+ * lock of one page table stripe, and pages are read and written with
+ * no lock held other than the latch of the frame involved. All of
+ * these are ReentrantLocks, never monitors, so virtual threads that
+ * block in the buffer manager do not pin their carrier threads. Pages
+ * can also be read ahead into the pool in the background, either on
+ * request or when a file is being read in page order, and dirty pages
+ * can be written out in the background before they are replaced.
+ * The frames can be kept outside the Java heap, in a few large direct
+ * buffers allocated up front, for pools too big for the garbage
+ * collector to scan comfortably. A database can be memory-mapped, so
+ * that pages it reads fill frames without a system call and read-only
+ * pins of pages not in the pool are served from the mapping directly.
+ * Pages can also be pinned asynchronously, in which case misses are
+ * served by a pool of I/O threads and callers are not blocked.
+ * Clean pages replaced in the pool can be kept compressed in memory,
+ * in a second level of cache that misses look in before reading.
+ * Statistics of the pool, such as its hit ratio and the latency of
+ * its reads and writes, are kept as it runs; see stats().
+ * Changes made through update() are logged in a WriteAheadLog and
+ * made durable by commit(); a page is never written back before the
+ * log records of its changes are on disk. Checkpoints, which bound
+ * how much of the log recovery has to redo, write pages out while
+ * the pool stays in use.
+ * A pool holds pages of one size, so it only serves databases created
+ * with that page size.
  * @author Dave Musicant, with considerable material reused from the
  * UW-Madison Minibase project
  */
-public class BufferManager
+public class BufferManager implements Closeable
 {
     public static class PageNotPinnedException extends RuntimeException {};
     public static class PagePinnedException extends RuntimeException {};
+    public static class PageSizeMismatchException
+        extends RuntimeException {};
+    public static class BufferPoolFullException extends RuntimeException {};
 
     /**
      * Value to use for an invalid page id.
@@ -18,127 +65,2102 @@ public class BufferManager
 
     private static class FrameDescriptor
     {
+        // Page table key of the page in the frame, or NO_PAGE. The
+        // remaining identity fields are only changed while the frame
+        // is claimed by a single thread.
+        private volatile long key;
         private int pageNum;
         private String fileName;
-        private int pinCount;
-        private boolean dirty;
-	private boolean reference;
-        
+        private int fileId;
+        private volatile boolean dirty;
+
+        // Set while the page is being read into the frame; the reading
+        // thread holds the latch until it is done. The latch is also
+        // held while the frame is being written out.
+        private volatile boolean loading;
+        private final ReentrantLock latch;
+
+        // Set when the page was read ahead and has not been pinned
+        // since.
+        private volatile boolean prefetched;
+
+        // LSN of the last logged change to the page since it was read,
+        // or 0. The log is forced up to it before the page is written.
+        private volatile long pageLsn;
+
+        // No greater than the LSN of the first logged change to the page
+        // since it was last written, or 0 if there is none. It is set
+        // before the change is logged and cleared only once the page
+        // has been written, so that a checkpoint never misses a change
+        // that is not on disk yet.
+        private volatile long recLsn;
+
         public FrameDescriptor()
         {
-            pageNum = INVALID_PAGE;
-            pinCount = 0;
-            fileName = null;
-            dirty = false;
-	    reference = false;
+            key = NO_PAGE;
+            pageNum = INVALID_PAGE;
+            fileName = null;
+            fileId = -1;
+            dirty = false;
+            loading = false;
+            latch = new ReentrantLock();
+            prefetched = false;
+            pageLsn = 0;
+            recLsn = 0;
+        }
+
+    }
+
+    /**
+     * Read-ahead state of one file: the last page pinned, the first
+     * page that has not been read ahead yet, and the number of pages
+     * to stay ahead of the reader by.
+     */
+    private static class ReadAhead
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+        private int lastPage = Integer.MIN_VALUE;
+        private int nextPage;
+        private int window;
+    }
+
+    /**
+     * A miss being served by an I/O thread for pinPageAsync(), and
+     * the number of callers waiting for it, each of which gets a pin.
+     * Guarded by the entry of the page in asyncLoads.
+     */
+    private static class AsyncLoad
+    {
+        private final CompletableFuture<Page> future =
+            new CompletableFuture<Page>();
+        private int waiters;
+    }
+
+    private static final long NO_PAGE = -1;
+    private static final int MAX_STRIPES = 64;
+    private static final int MAX_RING = 32;
+    private static final int MIN_READ_AHEAD = 4;
+    private static final int MAX_READ_RUN = 64;
+    private static final int MAX_WRITE_RUN = 64;
+    private static final int IO_THREADS = 16;
+
+    // Largest direct buffer allocated for an off-heap pool.
+    private static final int MAX_ARENA = 1 << 30;
+
+    private Page[] bufferPool;
+    private int pageSize;
+    private FrameDescriptor[] frameTable;
+
+    // Pin counts and reference bits, kept apart from the descriptors
+    // so that each frame's pair can be updated atomically.
+    private FrameStates frameStates;
+
+    // The page table is split into stripes, each guarded by its own
+    // lock, so lookups of different pages rarely contend. A frame is
+    // pinned while its stripe lock is held, which is what keeps it
+    // from being evicted between lookup and pin.
+    private PageTable[] pageTables;
+    private ReentrantLock[] stripeLocks;
+
+    private ReplacementPolicy policy;
+
+    // Frames recently filled by sequential reads. A sequential miss
+    // reuses the frame in the next slot if nobody has used it since,
+    // so that scans recycle a few frames instead of flooding the pool.
+    private int[] ring;
+    private int ringPos;
+    private ReentrantLock ringLock;
+
+    // Pages are read ahead by a background thread. Read-ahead of files
+    // read in page order is off until setReadAhead() turns it on.
+    private volatile ThreadPoolExecutor prefetcher;
+    private volatile int readAheadPages;
+    private ConcurrentMap<Integer, ReadAhead> readAheads;
+
+    // Misses of pinPageAsync() are served by these threads, at most
+    // one per page at a time.
+    private volatile ThreadPoolExecutor ioExecutor;
+    private ConcurrentMap<Long, AsyncLoad> asyncLoads;
+
+    // Runs checkpoints started by checkpointAsync().
+    private volatile ThreadPoolExecutor checkpointer;
+
+    // Background writer and its settings; see setBackgroundWriter().
+    // The cursor is only used by the writer thread. writerLock also
+    // orders close() and closeFiles(), which stop the writer.
+    private ReentrantLock writerLock;
+    private ScheduledThreadPoolExecutor writer;
+    private long writerInterval;
+    private double writerLowRatio;
+    private double writerHighRatio;
+    private int writerMaxPages;
+    private int writerCursor;
+
+    private ConcurrentMap<String, DBFile> openFiles;
+
+    // Set once by close(), under writerLock.
+    private volatile boolean closed;
+
+    // Held shared while a handle taken from openFiles is in use, and
+    // exclusively while handles are taken out of it and closed, so
+    // that no handle is closed under a read or write in flight.
+    private ReentrantReadWriteLock handleLock;
+
+    // Databases opened with mapFile(), and the pins held on mapped
+    // pages by pinPageReadOnly(), which use no frame. The total is
+    // kept apart so that unpinPage() can skip the map while it is
+    // empty; the map's own size is not exact under concurrent updates.
+    private Set<String> mappedFiles;
+    private ConcurrentMap<Long, Integer> mappedPins;
+    private AtomicInteger mappedPinCount;
+
+    // File names are interned to small ids, which are used together
+    // with page numbers as page table keys.
+    private ConcurrentMap<String, Integer> fileIds;
+    private AtomicInteger nextFileId;
+
+    // Counters behind stats(), and the name the buffer manager is
+    // registered with JMX under, if it is.
+    private PoolStats stats;
+    private volatile ObjectName mbeanName;
+
+    // Log of changes made through update(), if one has been set.
+    private volatile WriteAheadLog log;
+
+    // Second level of the cache, holding replaced pages compressed,
+    // or null until setCompressedCache() turns it on.
+    private volatile CompressedCache compressedCache;
+
+    /**
+     * Creates a buffer manager with the specified size, using CLOCK
+     * replacement. The buffer manager may be used by several threads
+     * at once.
+     * @param poolSize the number of pages that the buffer pool can hold.
+     */
+    public BufferManager(int poolSize)
+    {
+        this(poolSize, new ClockPolicy());
+    }
+
+    /**
+     * Creates a buffer manager with the specified size and replacement
+     * policy. The buffer manager may be used by several threads at
+     * once.
+     * @param poolSize the number of pages that the buffer pool can hold.
+     * @param policy a policy not used by any other buffer manager.
+     */
+    public BufferManager(int poolSize, ReplacementPolicy policy)
+    {
+        this(poolSize, policy, false);
+    }
+
+    /**
+     * Creates a buffer manager with the specified size and replacement
+     * policy, optionally keeping the pages outside the Java heap. An
+     * off-heap pool allocates all of its frames at once, as slices of
+     * direct buffers aligned to the page size, and its pages have no
+     * data array: use Page.buffer() to reach their contents.
+     * @param poolSize the number of pages that the buffer pool can hold.
+     * @param policy a policy not used by any other buffer manager.
+     * @param offHeap whether to keep the pages in direct buffers.
+     */
+    public BufferManager(int poolSize, ReplacementPolicy policy,
+                         boolean offHeap)
+    {
+        this(poolSize, policy, offHeap, Page.PAGESIZE);
+    }
+
+    /**
+     * Creates a buffer manager with the specified size, replacement
+     * policy and page size, optionally keeping the pages outside the
+     * Java heap. The pool can only be used with databases of the given
+     * page size.
+     * @param poolSize the number of pages that the buffer pool can hold.
+     * @param policy a policy not used by any other buffer manager.
+     * @param offHeap whether to keep the pages in direct buffers.
+     * @param pageSize the page size in bytes.
+     * @throws DBFile.BadPageSizeException if pageSize is not a valid
+     * page size.
+     */
+    public BufferManager(int poolSize, ReplacementPolicy policy,
+                         boolean offHeap, int pageSize)
+    {
+        Page.checkSize(pageSize);
+        this.pageSize = pageSize;
+        this.bufferPool = offHeap ? directPages(poolSize, pageSize)
+            : new Page[poolSize];
+        this.frameTable = new FrameDescriptor[poolSize];
+        for (int i = 0; i < poolSize; i++)
+        {
+            if (!offHeap)
+                this.bufferPool[i] = new Page(pageSize);
+            this.frameTable[i] = new FrameDescriptor();
+        }
+
+        int stripes = 1;
+        while (stripes < MAX_STRIPES && stripes < poolSize)
+            stripes *= 2;
+        this.pageTables = new PageTable[stripes];
+        this.stripeLocks = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++)
+        {
+            this.pageTables[i] = new PageTable(poolSize / stripes + 1);
+            this.stripeLocks[i] = new ReentrantLock();
+        }
+
+        this.frameStates = new FrameStates(poolSize);
+        this.policy = policy;
+        policy.attach(frameStates);
+
+        this.ring = new int[Math.max(1, Math.min(MAX_RING, poolSize / 8))];
+        Arrays.fill(this.ring, -1);
+        this.ringPos = 0;
+        this.ringLock = new ReentrantLock();
+        this.prefetcher = newExecutor("prefetch", 1);
+        this.readAheadPages = 0;
+        this.readAheads = new ConcurrentHashMap<Integer, ReadAhead>();
+        this.ioExecutor = newExecutor("page-io", IO_THREADS);
+        this.asyncLoads = new ConcurrentHashMap<Long, AsyncLoad>();
+        this.checkpointer = newExecutor("checkpoint", 1);
+        this.writerLock = new ReentrantLock();
+        this.writer = null;
+        this.writerInterval = 0;
+        this.openFiles = new ConcurrentHashMap<String, DBFile>();
+        this.handleLock = new ReentrantReadWriteLock();
+        this.mappedFiles = ConcurrentHashMap.newKeySet();
+        this.mappedPins = new ConcurrentHashMap<Long, Integer>();
+        this.mappedPinCount = new AtomicInteger();
+        this.fileIds = new ConcurrentHashMap<String, Integer>();
+        this.nextFileId = new AtomicInteger();
+        this.stats = new PoolStats();
+    }
+
+    /**
+     * Carves pages out of as few direct buffers as possible, none
+     * larger than MAX_ARENA bytes.
+     */
+    private static Page[] directPages(int numPages, int pageSize)
+    {
+        Page[] pages = new Page[numPages];
+        int perArena = MAX_ARENA / pageSize;
+        for (int first = 0; first < numPages; first += perArena)
+        {
+            int count = Math.min(perArena, numPages - first);
+            ByteBuffer arena =
+                ByteBuffer.allocateDirect((count + 1) * pageSize)
+                .alignedSlice(pageSize);
+            for (int i = 0; i < count; i++)
+            {
+                arena.limit((i + 1) * pageSize);
+                arena.position(i * pageSize);
+                pages[first + i] = new Page(arena);
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Returns the pool size.
+     * @return the pool size.
+     */
+    public int poolSize()
+    {
+        return this.bufferPool.length;
+    }
+
+    /**
+     * Returns the size of the pages in the pool.
+     * @return the page size in bytes.
+     */
+    public int pageSize()
+    {
+        return this.pageSize;
+    }
+
+    /**
+     * Returns the statistics of the pool since it was created or they
+     * were last reset. Keeping them costs a few uncontended counter
+     * updates per pin, and timing each read and write.
+     * @return a snapshot of the statistics.
+     */
+    public BufferStats stats()
+    {
+        CompressedCache cache = compressedCache;
+        return stats.snapshot(poolSize(), frameStates.steps(),
+                              cache == null ? 0 : cache.pages(),
+                              cache == null ? 0 : cache.bytes());
+    }
+
+    /**
+     * Sets the statistics returned by stats() back to zero.
+     */
+    public void resetStats()
+    {
+        stats.reset();
+        frameStates.resetSteps();
+    }
+
+    /**
+     * Registers the buffer manager with the platform MBean server, so
+     * that its statistics can be watched with JMX tools, under the
+     * name BufferManagement:type=BufferManager,name=<name>. A buffer
+     * manager is registered under one name at a time.
+     * @param name the name to tell the buffer manager apart by.
+     * @return the object name it was registered under.
+     * @throws JMException if the name is taken or not valid.
+     */
+    public ObjectName registerMBean(String name) throws JMException
+    {
+        ObjectName objectName =
+            new ObjectName("BufferManagement:type=BufferManager,name="
+                           + ObjectName.quote(name));
+        unregisterMBean();
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+            new StandardMBean(new MXBean(), BufferManagerMXBean.class, true),
+            objectName);
+        mbeanName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Removes the buffer manager from the platform MBean server, if
+     * registerMBean() put it there.
+     * @throws JMException passed through from the MBean server.
+     */
+    public void unregisterMBean() throws JMException
+    {
+        ObjectName objectName = mbeanName;
+        if (objectName == null)
+            return;
+        mbeanName = null;
+        ManagementFactory.getPlatformMBeanServer()
+            .unregisterMBean(objectName);
+    }
+
+    /**
+     * The buffer manager's JMX view of its statistics.
+     */
+    private class MXBean implements BufferManagerMXBean
+    {
+        public int getPoolSize()
+        {
+            return poolSize();
+        }
+
+        public long getHits()
+        {
+            return stats().hits();
+        }
+
+        public long getMisses()
+        {
+            return stats().misses();
+        }
+
+        public double getHitRatio()
+        {
+            return stats().hitRatio();
+        }
+
+        public long getPrefetches()
+        {
+            return stats().prefetches();
+        }
+
+        public long getEvictions()
+        {
+            return stats().evictions();
+        }
+
+        public long getEvictionWrites()
+        {
+            return stats().evictionWrites();
+        }
+
+        public double getSweepStepsPerEviction()
+        {
+            return stats().sweepStepsPerEviction();
+        }
+
+        public long getPinWaits()
+        {
+            return stats().pinWaits();
+        }
+
+        public long getPinWaitNanos()
+        {
+            return stats().pinWaitNanos();
+        }
+
+        public long getCompressedHits()
+        {
+            return stats().compressedHits();
+        }
+
+        public int getCompressedPages()
+        {
+            return stats().compressedPages();
+        }
+
+        public long getCompressedBytes()
+        {
+            return stats().compressedBytes();
+        }
+
+        public Map<String, Long> getFileReads()
+        {
+            Map<String, Long> reads = new TreeMap<String, Long>();
+            for (Map.Entry<String, BufferStats.FileStats> file
+                     : stats().files().entrySet())
+                reads.put(file.getKey(), file.getValue().reads());
+            return reads;
+        }
+
+        public Map<String, Long> getFileReadP99Nanos()
+        {
+            Map<String, Long> p99 = new TreeMap<String, Long>();
+            for (Map.Entry<String, BufferStats.FileStats> file
+                     : stats().files().entrySet())
+                p99.put(file.getKey(), file.getValue().readP99Nanos());
+            return p99;
+        }
+
+        public Map<String, Long> getFileWrites()
+        {
+            Map<String, Long> writes = new TreeMap<String, Long>();
+            for (Map.Entry<String, BufferStats.FileStats> file
+                     : stats().files().entrySet())
+                writes.put(file.getKey(), file.getValue().writes());
+            return writes;
+        }
+
+        public Map<String, Long> getFileWriteP99Nanos()
+        {
+            Map<String, Long> p99 = new TreeMap<String, Long>();
+            for (Map.Entry<String, BufferStats.FileStats> file
+                     : stats().files().entrySet())
+                p99.put(file.getKey(), file.getValue().writeP99Nanos());
+            return p99;
+        }
+
+        public void resetStats()
+        {
+            BufferManager.this.resetStats();
+        }
+    }
+
+    /**
+     * Turns on read-ahead for files that are read in page order. Once
+     * a file's pages are pinned one after the other, the following
+     * pages are read in the background, in runs that grow up to the
+     * given number of pages, so that the reader finds them in the
+     * pool. Read-ahead is off until this is called.
+     * @param maxPages the most pages to read ahead of a reader, which
+     * is limited to half the pool; 0 turns read-ahead off.
+     */
+    public void setReadAhead(int maxPages)
+    {
+        this.readAheadPages = Math.max(0, Math.min(maxPages, poolSize() / 2));
+    }
+
+    /**
+     * Turns on a second level of cache behind the pool, which keeps
+     * pages replaced in the pool compressed in memory. A page that
+     * misses in the pool is looked for there before it is read from
+     * its database, and taken out of it when found, so the two levels
+     * never hold the same page. Pages that compress well take a
+     * fraction of a frame each, so the pool and the cache together
+     * hold many more pages than the pool alone, at the cost of
+     * compressing each page replaced and decompressing each page
+     * found. The pages replaced longest ago are dropped first once
+     * the cache is full. Replaces any previous cache, and its pages.
+     * @param maxBytes the most memory the cache may use, in bytes; 0
+     * turns the cache off.
+     */
+    public void setCompressedCache(long maxBytes)
+    {
+        this.compressedCache = maxBytes > 0
+            ? new CompressedCache(pageSize, maxBytes) : null;
+    }
+
+    /**
+     * Starts writing dirty pages out in the background, so that the
+     * frames pinPage() replaces are usually clean and it does not have
+     * to wait for a write. Every interval, the writer counts the dirty
+     * pages in the pool. While they make up no more than lowRatio of
+     * the pool it does nothing; above that it writes up to maxPages
+     * unpinned dirty pages per interval, and above highRatio as many
+     * as it takes to get back down to lowRatio. Pages that have not
+     * been used recently, which are the next to be replaced, are
+     * written first. Replaces any previous settings.
+     * @param intervalMillis milliseconds between rounds; 0 stops the
+     * writer.
+     * @param lowRatio fraction of the pool that may be dirty before
+     * the writer starts writing.
+     * @param highRatio fraction of the pool above which the writer
+     * ignores maxPages.
+     * @param maxPages most pages to write per round below highRatio.
+     * @throws IllegalArgumentException if the ratios are not between
+     * 0 and 1 with lowRatio no greater than highRatio, or if maxPages
+     * is not positive.
+     * @throws IllegalStateException if the buffer manager is closed.
+     */
+    public void setBackgroundWriter(long intervalMillis, double lowRatio,
+                                    double highRatio, int maxPages)
+    {
+        if (!(0 <= lowRatio && lowRatio <= highRatio && highRatio <= 1))
+            throw new IllegalArgumentException("Bad dirty page ratios");
+        if (maxPages < 1)
+            throw new IllegalArgumentException("maxPages must be positive");
+
+        writerLock.lock();
+        try
+        {
+            checkOpen();
+            stopWriter();
+            writerInterval = Math.max(0, intervalMillis);
+            writerLowRatio = lowRatio;
+            writerHighRatio = highRatio;
+            writerMaxPages = maxPages;
+            startWriter();
+        }
+        finally
+        {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * Starts the writer thread if one has been asked for. Called with
+     * writerLock held.
+     */
+    private void startWriter()
+    {
+        if (writerInterval <= 0)
+            return;
+        writer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "page writer");
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleWithFixedDelay(this::writeBehind, writerInterval,
+                                      writerInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the writer thread, waiting for a round in progress to
+     * finish. Called with writerLock held.
+     */
+    private void stopWriter()
+    {
+        if (writer == null)
+            return;
+        writer.shutdown();
+        try
+        {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+    }
+
+    /**
+     * One round of the background writer; see setBackgroundWriter().
+     * Write errors are left for the thread that evicts the page or
+     * flushes the pool to report.
+     */
+    private void writeBehind()
+    {
+        int numFrames = poolSize();
+        int dirty = 0;
+        for (FrameDescriptor frame : frameTable)
+            if (frame.key != NO_PAGE && frame.dirty)
+                dirty++;
+        int low = (int)(writerLowRatio * numFrames);
+        if (dirty <= low)
+            return;
+        int budget = dirty - low;
+        if (dirty <= writerHighRatio * numFrames)
+            budget = Math.min(budget, writerMaxPages);
+
+        // Write the frames that are next to be replaced, those without
+        // a reference bit, before any others.
+        for (int pass = 0; pass < 2 && budget > 0; pass++)
+        {
+            for (int i = 0; i < numFrames && budget > 0; i++)
+            {
+                int index = (writerCursor + i) % numFrames;
+                if (pass == 0 && frameStates.isReferenced(index))
+                    continue;
+                try
+                {
+                    if (writeUnpinned(index))
+                    {
+                        budget--;
+                        if (pass == 0)
+                            writerCursor = (index + 1) % numFrames;
+                    }
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    // Still dirty; tried again later.
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a frame's page out if it is dirty and nobody has it
+     * pinned.
+     * @return true if the page was written.
+     */
+    private boolean writeUnpinned(int index) throws IOException
+    {
+        FrameDescriptor frame = this.frameTable[index];
+        long key = frame.key;
+        if (key == NO_PAGE || !frame.dirty || frameStates.pinCount(index) > 0)
+            return false;
+
+        // Pin the frame so that it keeps its page while it is written.
+        int pinned = pinResident(key);
+        if (pinned == PageTable.NOT_FOUND || awaitLoad(pinned, key) == null)
+            return false;
+        try
+        {
+            if (frameStates.pinCount(pinned) > 1 || !frame.dirty)
+                return false;
+            writeFrame(pinned);
+            return true;
+        }
+        finally
+        {
+            frameStates.unpin(pinned, false);
+        }
+    }
+
+    /**
+     * Creates a pool of daemon threads that go away when idle.
+     */
+    private static ThreadPoolExecutor newExecutor(String name, int threads)
+    {
+        ThreadPoolExecutor executor =
+            new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                                   new LinkedBlockingQueue<Runnable>(),
+                                   r -> {
+                                       Thread t = new Thread(r, name);
+                                       t.setDaemon(true);
+                                       return t;
+                                   });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Returns the id used for a file name in page table keys,
+     * assigning the next free id the first time a name is seen.
+     */
+    private int fileId(String fileName)
+    {
+        Integer id = fileIds.get(fileName);
+        if (id == null)
+            id = fileIds.computeIfAbsent(fileName,
+                                         n -> nextFileId.getAndIncrement());
+        return id;
+    }
+
+    private int stripe(long key)
+    {
+        return (int)((key * 0x9E3779B97F4A7C15L) >>> 40) &
+            (pageTables.length - 1);
+    }
+
+    /**
+     * Returns the frame holding a page, or PageTable.NOT_FOUND.
+     */
+    private int lookup(int pageNum, String fileName)
+    {
+        return lookup(PageTable.key(fileId(fileName), pageNum));
+    }
+
+    /**
+     * Returns the frame holding the page with the given key, or
+     * PageTable.NOT_FOUND.
+     */
+    private int lookup(long key)
+    {
+        int s = stripe(key);
+        stripeLocks[s].lock();
+        try
+        {
+            return pageTables[s].get(key);
+        }
+        finally
+        {
+            stripeLocks[s].unlock();
+        }
+    }
+
+    /**
+     * Looks up a page and pins its frame if it is in the pool.
+     * @return the frame, or PageTable.NOT_FOUND.
+     */
+    private int pinResident(long key)
+    {
+        int s = stripe(key);
+        stripeLocks[s].lock();
+        try
+        {
+            int index = pageTables[s].get(key);
+            if (index != PageTable.NOT_FOUND)
+                frameStates.pin(index);
+            return index;
+        }
+        finally
+        {
+            stripeLocks[s].unlock();
+        }
+    }
+
+    /**
+     * Waits until a frame pinned by pinResident() has finished
+     * loading.
+     * @return the page, or null if loading failed, in which case the
+     * pin has been dropped again.
+     */
+    private Page awaitLoad(int index, long key)
+    {
+        FrameDescriptor frame = frameTable[index];
+        if (frame.loading)
+        {
+            long start = System.nanoTime();
+            frame.latch.lock();
+            frame.latch.unlock();
+            stats.pinWait(System.nanoTime() - start);
+        }
+        if (frame.key != key)
+        {
+            frameStates.unpin(index, false);
+            return null;
+        }
+        return bufferPool[index];
+    }
+
+    /**
+     * Returns the open handle for a database, opening it on first
+     * use. A database that does not exist yet is not remembered, so
+     * that it is picked up once it has been created.
+     * @param fileName the name of the database.
+     * @return the open database.
+     * @throws PageSizeMismatchException if the database's page size
+     * is not the pool's.
+     * @throws IllegalStateException if the buffer manager is closed.
+     * @throws IOException passed through from underlying file system.
+     */
+    private DBFile getFile(String fileName) throws IOException
+    {
+        checkOpen();
+        DBFile file = openFiles.get(fileName);
+        if (file == null)
+        {
+            file = new DBFile(fileName, mappedFiles.contains(fileName));
+            if (file.getNumPages() > 0)
+            {
+                checkPageSize(file);
+                // Another thread may have opened it at the same time.
+                DBFile other = openFiles.putIfAbsent(fileName, file);
+                if (other != null)
+                {
+                    file.close();
+                    file = other;
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Returns the open handle for a database as getFile() does, with
+     * handleLock held shared so that the handle stays open while it
+     * is used. Each call must be followed by releaseFile().
+     */
+    private DBFile acquireFile(String fileName) throws IOException
+    {
+        handleLock.readLock().lock();
+        try
+        {
+            return getFile(fileName);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            handleLock.readLock().unlock();
+            throw e;
+        }
+    }
+
+    private void releaseFile()
+    {
+        handleLock.readLock().unlock();
+    }
+
+    /**
+     * Maps a database into memory for as long as the buffer manager
+     * uses it, replacing the handle held for it, if any. Pages are
+     * then read into and written from frames by copying, and
+     * pinPageReadOnly() can hand out pages of the mapping itself.
+     * Suits databases that are mostly read and fit in memory.
+     * @param fileName the name of the database.
+     * @throws FileNotFoundException if the database does not exist.
+     * @throws PageSizeMismatchException if the database's page size
+     * is not the pool's.
+     * @throws IllegalStateException if the buffer manager is closed.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void mapFile(String fileName) throws IOException
+    {
+        DBFile file = new DBFile(fileName, true);
+        if (!file.isMapped())
+            throw new FileNotFoundException(fileName);
+        checkPageSize(file);
+        DBFile old;
+        handleLock.writeLock().lock();
+        try
+        {
+            if (closed)
+            {
+                file.close();
+                checkOpen();
+            }
+            mappedFiles.add(fileName);
+            old = openFiles.put(fileName, file);
+            if (old != null)
+                retire(old);
+        }
+        finally
+        {
+            handleLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Syncs and closes a handle the buffer manager no longer holds.
+     * Pages written through it may not have been synced yet, and
+     * checkpoint() only syncs the handles still held, so a checkpoint
+     * could otherwise move its redo point past changes that are not
+     * on disk.
+     */
+    private static void retire(DBFile file) throws IOException
+    {
+        try
+        {
+            file.sync();
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * Closes a database just opened, unless its pages are the size of
+     * the pool's.
+     */
+    private void checkPageSize(DBFile file) throws IOException
+    {
+        if (file.getPageSize() != pageSize)
+        {
+            file.close();
+            throw new PageSizeMismatchException();
+        }
+    }
+
+    /**
+     * Syncs and closes the handle the buffer manager holds for a
+     * database, for example before the database is erased and
+     * recreated. Pages of the database may stay in the pool, but are
+     * dropped from the compressed cache; the database is reopened the
+     * next time one of its pages is read or written.
+     * @param fileName the name of the database.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void closeFile(String fileName) throws IOException
+    {
+        CompressedCache cache = compressedCache;
+        if (cache != null)
+            cache.removeFile(fileId(fileName));
+        handleLock.writeLock().lock();
+        try
+        {
+            DBFile file = openFiles.remove(fileName);
+            if (file != null)
+                retire(file);
+        }
+        finally
+        {
+            handleLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Syncs and closes every database handle held by the buffer
+     * manager, after waiting for pages being read ahead, pinned
+     * asynchronously and written in the background. Dirty pages are
+     * not flushed; call flushAllPages() first to keep them. The
+     * buffer manager keeps running, and reopens databases the next
+     * time their pages are read or written.
+     * @throws IllegalStateException if the buffer manager is closed.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void closeFiles() throws IOException
+    {
+        IOException failure = null;
+        writerLock.lock();
+        try
+        {
+            checkOpen();
+            ThreadPoolExecutor oldPrefetcher = prefetcher;
+            ThreadPoolExecutor oldIo = ioExecutor;
+            ThreadPoolExecutor oldCheckpointer = checkpointer;
+            prefetcher = newExecutor("prefetch", 1);
+            ioExecutor = newExecutor("page-io", IO_THREADS);
+            checkpointer = newExecutor("checkpoint", 1);
+            shutDown(oldPrefetcher, oldIo, oldCheckpointer);
+            stopWriter();
+            failure = closeHandles();
+            startWriter();
+        }
+        finally
+        {
+            writerLock.unlock();
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Shuts the buffer manager down: stops the background writer,
+     * waits for pages being read ahead, pinned asynchronously and
+     * checkpointed, and syncs and closes every database handle. Dirty
+     * pages are not flushed; call flushAllPages() first to keep them.
+     * Reading or writing pages afterwards fails with an
+     * IllegalStateException. Closing a closed buffer manager has no
+     * effect.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void close() throws IOException
+    {
+        IOException failure = null;
+        writerLock.lock();
+        try
+        {
+            if (closed)
+                return;
+            closed = true;
+            stopWriter();
+            shutDown(prefetcher, ioExecutor, checkpointer);
+            failure = closeHandles();
+        }
+        finally
+        {
+            writerLock.unlock();
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Throws an IllegalStateException if the buffer manager is closed.
+     */
+    private void checkOpen()
+    {
+        if (closed)
+            throw new IllegalStateException("Buffer manager is closed");
+    }
+
+    /**
+     * Shuts executors down, waiting for the tasks they have queued.
+     */
+    private static void shutDown(ThreadPoolExecutor... executors)
+    {
+        for (ThreadPoolExecutor executor : executors)
+            executor.shutdown();
+        try
+        {
+            for (ThreadPoolExecutor executor : executors)
+                executor.awaitTermination(Long.MAX_VALUE,
+                                          TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Syncs and closes the open database handles, once the handles in
+     * use have been released.
+     * @return the last error, or null.
+     */
+    private IOException closeHandles()
+    {
+        IOException failure = null;
+        handleLock.writeLock().lock();
+        try
+        {
+            for (DBFile file : openFiles.values())
+            {
+                try
+                {
+                    retire(file);
+                }
+                catch (IOException e)
+                {
+                    failure = e;
+                }
+            }
+            openFiles.clear();
+        }
+        finally
+        {
+            handleLock.writeLock().unlock();
+        }
+        return failure;
+    }
+
+    /**
+     * Checks if this page is in buffer pool. If it is, returns a
+     * pointer to it. Otherwise, it finds an available frame for this
+     * page, reads the page, and pins it. Writes out the old page, if
+     * it is dirty, before reading.
+     * @param pinPageId the page id for the page to be pinned
+     * @param fileName the name of the database that contains the page
+     * to be pinned
+     * @param emptyPage determines if the page is known to be
+     * empty. If true, then the page is not actually read from disk
+     * since it is assumed to be empty.
+     * @return a reference to the page in the buffer pool. If the buffer
+     * pool is full, null is returned.
+     * @throws IOException passed through from underlying file system.
+     */
+    public Page pinPage(int pinPageId, String fileName, boolean emptyPage)
+        throws IOException
+    {
+        return pinPage(pinPageId, fileName, emptyPage, AccessHint.RANDOM);
+    }
+
+    /**
+     * Pins a page as pinPage(int, String, boolean) does, telling the
+     * buffer manager how the page is going to be used. A SEQUENTIAL
+     * pin that misses takes its frame from the ring of frames used by
+     * earlier sequential reads when it can, and pages loaded with a
+     * hint other than RANDOM are the first to be replaced.
+     * @param pinPageId the page id for the page to be pinned
+     * @param fileName the name of the database that contains the page
+     * to be pinned
+     * @param emptyPage if true, the page is not read from disk.
+     * @param hint how the page is going to be used.
+     * @return a reference to the page in the buffer pool, or null if
+     * the buffer pool is full.
+     * @throws IOException passed through from underlying file system.
+     */
+    public Page pinPage(int pinPageId, String fileName, boolean emptyPage,
+                        AccessHint hint)
+        throws IOException
+    {
+        int fileId = fileId(fileName);
+        long key = PageTable.key(fileId, pinPageId);
+        Page page = null;
+        boolean readAheadMark = true;
+        while (page == null)
+        {
+            int index = pinResident(key);
+            if (index == PageTable.NOT_FOUND)
+            {
+                int victim = evict(hint);
+                if (victim < 0)
+                    return null;
+
+                // Another thread may have brought the page in while
+                // the victim was being chosen.
+                index = install(victim, key, pinPageId, fileName, fileId);
+                if (index == PageTable.NOT_FOUND)
+                {
+                    page = load(victim, emptyPage, hint);
+                    if (!emptyPage)
+                        stats.miss();
+                    break;
+                }
+                release(victim);
+            }
+
+            page = awaitLoad(index, key);
+            if (page != null)
+            {
+                // Only the first pin of a page that was read ahead
+                // moves read-ahead along, as a miss does.
+                FrameDescriptor frame = this.frameTable[index];
+                readAheadMark = frame.prefetched;
+                frame.prefetched = false;
+                policy.hit(index, hint);
+                stats.hit();
+            }
+            // Otherwise the thread loading the page failed; try again.
+        }
+
+        if (!emptyPage)
+            readAheadAfter(fileId, fileName, pinPageId, readAheadMark);
+        return page;
+    }
+
+    /**
+     * Pins a page without blocking the calling thread. A page that is
+     * in the pool is pinned at once; otherwise the page is pinned by
+     * an I/O thread, which writes out the replaced page if need be and
+     * reads the page in. Concurrent requests for a page that is not in
+     * the pool share one read, and each of them gets its own pin.
+     * @param pinPageId the page id for the page to be pinned
+     * @param fileName the name of the database that contains the page
+     * to be pinned
+     * @return a future completed with the page, as pinPage() would
+     * return it, or with the exception pinPage() would throw. If the
+     * future is cancelled before it completes, the page is unpinned
+     * when it arrives.
+     */
+    public CompletableFuture<Page> pinPageAsync(int pinPageId,
+                                                String fileName)
+    {
+        return pinPageAsync(pinPageId, fileName, AccessHint.RANDOM);
+    }
+
+    /**
+     * Pins a page without blocking the calling thread, as
+     * pinPageAsync(int, String) does, telling the buffer manager how
+     * the page is going to be used, as pinPage() does.
+     * @param pinPageId the page id for the page to be pinned
+     * @param fileName the name of the database that contains the page
+     * to be pinned
+     * @param hint how the page is going to be used.
+     * @return a future completed with the page, or with null if the
+     * buffer pool is full.
+     */
+    public CompletableFuture<Page> pinPageAsync(int pinPageId,
+                                                String fileName,
+                                                AccessHint hint)
+    {
+        int fileId = fileId(fileName);
+        long key = PageTable.key(fileId, pinPageId);
+        int index = pinResident(key);
+        if (index != PageTable.NOT_FOUND)
+        {
+            FrameDescriptor frame = this.frameTable[index];
+            if (!frame.loading)
+            {
+                Page page = awaitLoad(index, key);
+                if (page != null)
+                {
+                    boolean mark = frame.prefetched;
+                    frame.prefetched = false;
+                    policy.hit(index, hint);
+                    stats.hit();
+                    readAheadAfter(fileId, fileName, pinPageId, mark);
+                    return CompletableFuture.completedFuture(page);
+                }
+            }
+            else if (frameStates.unpin(index, false) == 0)
+                policy.unpinned(index, hint);
+        }
+
+        // Join the read of the page if there is one, or start it.
+        boolean[] started = new boolean[1];
+        AsyncLoad load = asyncLoads.compute(key, (k, l) -> {
+            if (l == null)
+            {
+                l = new AsyncLoad();
+                started[0] = true;
+            }
+            l.waiters++;
+            return l;
+        });
+        if (started[0])
+        {
+            try
+            {
+                ioExecutor.execute(() -> loadAsync(key, pinPageId, fileName,
+                                                   hint));
+            }
+            catch (RejectedExecutionException e)
+            {
+                // The buffer manager is being closed.
+                finishAsync(key, null, e);
+            }
+        }
+        else
+        {
+            // The caller waits for the read as the one who started it
+            // does, so the pin is not a hit.
+            stats.miss();
+        }
+
+        // Each caller gets a future of its own, so that one cancelling
+        // does not affect the others.
+        CompletableFuture<Page> result = new CompletableFuture<Page>();
+        load.future.whenComplete((page, failure) -> {
+            if (failure != null)
+                result.completeExceptionally(failure);
+            else if (!result.complete(page) && page != null)
+            {
+                try
+                {
+                    unpinPage(pinPageId, fileName, false, hint);
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    // Nobody is left to tell.
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Pins a page for pinPageAsync() on an I/O thread.
+     */
+    private void loadAsync(long key, int pinPageId, String fileName,
+                           AccessHint hint)
+    {
+        try
+        {
+            finishAsync(key, pinPage(pinPageId, fileName, false, hint), null);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            finishAsync(key, null, e);
+        }
+    }
+
+    /**
+     * Ends a read started by pinPageAsync(), giving the page one more
+     * pin for each caller that joined the read after the first, then
+     * completes their future.
+     */
+    private void finishAsync(long key, Page page, Throwable failure)
+    {
+        AsyncLoad[] done = new AsyncLoad[1];
+        asyncLoads.computeIfPresent(key, (k, l) -> {
+            if (page != null)
+            {
+                int index = lookup(key);
+                for (int i=1; i < l.waiters; i++)
+                    frameStates.pin(index);
+            }
+            done[0] = l;
+            return null;
+        });
+        if (failure != null)
+            done[0].future.completeExceptionally(failure);
+        else
+            done[0].future.complete(page);
+    }
+
+    /**
+     * Enters a frame claimed by evict() in the page table as the frame
+     * of a page, unless another thread has brought the page in
+     * meanwhile. The calling thread holds the frame's latch until it
+     * has read the page in.
+     * @return PageTable.NOT_FOUND if the frame was entered, or else
+     * the frame that holds the page, pinned.
+     */
+    private int install(int victim, long key, int pageNum, String fileName,
+                        int fileId)
+    {
+        int s = stripe(key);
+        FrameDescriptor frame = this.frameTable[victim];
+        stripeLocks[s].lock();
+        try
+        {
+            int index = pageTables[s].get(key);
+            if (index != PageTable.NOT_FOUND)
+            {
+                frameStates.pin(index);
+                return index;
+            }
+            frame.pageNum = pageNum;
+            frame.fileName = fileName;
+            frame.fileId = fileId;
+            frame.loading = true;
+            frame.latch.lock();
+            frame.key = key;
+            pageTables[s].put(key, victim);
+            return PageTable.NOT_FOUND;
+        }
+        finally
+        {
+            stripeLocks[s].unlock();
+        }
+    }
+
+    /**
+     * Pins a run of consecutive pages, such as one allocated with
+     * newPage(), in one pass. Frames are found for every page of the
+     * run that is not in the pool before any of them is read, and each
+     * stretch of such pages is then read with a single scattering read
+     * straight into its frames.
+     * @param fileName the name of the database that contains the run.
+     * @param startPage the page id of the first page of the run.
+     * @param count the number of pages in the run.
+     * @return the pages of the run in page order, or null if the
+     * buffer pool cannot hold the whole run, in which case none of
+     * them is left pinned.
+     * @throws DBFile.NonPositiveRunSizeException if count is not
+     * positive.
+     * @throws IOException passed through from underlying file system.
+     */
+    public Page[] pinRun(String fileName, int startPage, int count)
+        throws IOException
+    {
+        return pinRun(fileName, startPage, count, AccessHint.RANDOM);
+    }
+
+    /**
+     * Pins a run of consecutive pages as pinRun(String, int, int)
+     * does, telling the buffer manager how the pages are going to be
+     * used, as pinPage() does.
+     * @param fileName the name of the database that contains the run.
+     * @param startPage the page id of the first page of the run.
+     * @param count the number of pages in the run.
+     * @param hint how the pages are going to be used.
+     * @return the pages of the run in page order, or null if the
+     * buffer pool cannot hold the whole run.
+     * @throws DBFile.NonPositiveRunSizeException if count is not
+     * positive.
+     * @throws IOException passed through from underlying file system.
+     */
+    public Page[] pinRun(String fileName, int startPage, int count,
+                         AccessHint hint)
+        throws IOException
+    {
+        if (count <= 0)
+            throw new DBFile.NonPositiveRunSizeException();
+        if (count > poolSize())
+            return null;
+
+        // Pin the pages already in the pool and claim frames for the
+        // others. Frames claimed here stay latched until they are read.
+        int fileId = fileId(fileName);
+        int[] frames = new int[count];
+        boolean[] loading = new boolean[count];
+        boolean[] resident = new boolean[count];
+        int claimed = 0;
+        try
+        {
+            for (; claimed < count; claimed++)
+            {
+                int pageNum = startPage + claimed;
+                long key = PageTable.key(fileId, pageNum);
+                int index = pinResident(key);
+                if (index == PageTable.NOT_FOUND)
+                {
+                    int victim = evict(hint);
+                    if (victim < 0)
+                        break;
+                    index = install(victim, key, pageNum, fileName, fileId);
+                    if (index == PageTable.NOT_FOUND)
+                    {
+                        index = victim;
+                        loading[claimed] = true;
+                    }
+                    else
+                        release(victim);
+                }
+                frames[claimed] = index;
+                resident[claimed] = !loading[claimed];
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            dropRun(frames, loading, claimed);
+            throw e;
+        }
+        if (claimed < count)
+        {
+            dropRun(frames, loading, claimed);
+            return null;
+        }
+
+        // Read each stretch of missing pages at once, apart from pages
+        // found in the compressed cache.
+        try
+        {
+            CompressedCache cache = compressedCache;
+            boolean[] cached = new boolean[count];
+            if (cache != null)
+                for (int i=0; i < count; i++)
+                    if (loading[i] &&
+                        cache.take(frameTable[frames[i]].key,
+                                   this.bufferPool[frames[i]]))
+                    {
+                        cached[i] = true;
+                        stats.compressedHit();
+                    }
+
+            for (int i=0; i < count; )
+            {
+                if (!loading[i])
+                {
+                    i++;
+                    continue;
+                }
+                int first = i;
+                if (cached[i])
+                    i++;
+                else
+                {
+                    while (i < count && loading[i] && !cached[i])
+                        i++;
+                    Page[] pages = new Page[i - first];
+                    for (int j=first; j < i; j++)
+                        pages[j - first] = this.bufferPool[frames[j]];
+                    DBFile file = acquireFile(fileName);
+                    try
+                    {
+                        long start = System.nanoTime();
+                        file.readPages(startPage + first, pages);
+                        stats.read(fileName, System.nanoTime() - start,
+                                   i - first);
+                    }
+                    finally
+                    {
+                        releaseFile();
+                    }
+                }
+                for (int j=first; j < i; j++)
+                {
+                    FrameDescriptor frame = this.frameTable[frames[j]];
+                    frame.dirty = false;
+                    frame.prefetched = false;
+                    frame.pageLsn = 0;
+                    frame.recLsn = 0;
+                    policy.loaded(frames[j], frame.key, hint);
+                    stats.miss();
+                    loading[j] = false;
+                    frame.loading = false;
+                    frame.latch.unlock();
+                }
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            dropRun(frames, loading, count);
+            throw e;
+        }
+
+        // Only now wait for pages other threads are reading, since
+        // they may be waiting for the frames read above.
+        Page[] run = new Page[count];
+        for (int i=0; i < count; i++)
+        {
+            if (!resident[i])
+            {
+                run[i] = this.bufferPool[frames[i]];
+                continue;
+            }
+            Page page = awaitLoad(frames[i], PageTable.key(fileId,
+                                                           startPage + i));
+            if (page != null)
+            {
+                this.frameTable[frames[i]].prefetched = false;
+                policy.hit(frames[i], hint);
+                stats.hit();
+            }
+            else
+            {
+                // The thread reading the page failed; read it again.
+                try
+                {
+                    page = pinPage(startPage + i, fileName, false, hint);
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    unpinRun(fileName, startPage, i, false, hint);
+                    dropRun(frames, loading, i + 1, count);
+                    throw e;
+                }
+                if (page == null)
+                {
+                    unpinRun(fileName, startPage, i, false, hint);
+                    dropRun(frames, loading, i + 1, count);
+                    return null;
+                }
+            }
+            run[i] = page;
+        }
+        return run;
+    }
+
+    /**
+     * Gives up the frames pinRun() has pinned or claimed for the first
+     * pages of a run.
+     */
+    private void dropRun(int[] frames, boolean[] loading, int count)
+    {
+        dropRun(frames, loading, 0, count);
+    }
+
+    /**
+     * Gives up the frames pinRun() has pinned or claimed for part of
+     * a run: frames still waiting to be read are taken back out of the
+     * page table, and the others are unpinned.
+     */
+    private void dropRun(int[] frames, boolean[] loading, int from, int to)
+    {
+        for (int i=from; i < to; i++)
+        {
+            if (loading[i])
+            {
+                abandon(frames[i]);
+                this.frameTable[frames[i]].loading = false;
+                this.frameTable[frames[i]].latch.unlock();
+            }
+            else
+                frameStates.unpin(frames[i], false);
+        }
+    }
+
+    /**
+     * Pins a page for reading only. If the page is in the pool, or its
+     * database has not been mapped with mapFile(), this is pinPage()
+     * with a read-only view of the page. Otherwise the page is not
+     * brought into the pool: the view is of the page in the mapping,
+     * so it takes no frame and no read. Such a view shows the page as
+     * it is in the file, including any changes written back to the
+     * file while it is pinned. Either way the page is unpinned with
+     * unpinPage().
+     * @param pinPageId the page id for the page to be pinned
+     * @param fileName the name of the database that contains the page
+     * to be pinned
+     * @return a page whose buffer() is read-only, and whose data is
+     * null, or null if the page had to be read into the pool and the
+     * buffer pool is full.
+     * @throws IOException passed through from underlying file system.
+     */
+    public Page pinPageReadOnly(int pinPageId, String fileName)
+        throws IOException
+    {
+        long key = PageTable.key(fileId(fileName), pinPageId);
+        int index = PageTable.NOT_FOUND;
+        boolean mapped;
+        handleLock.readLock().lock();
+        try
+        {
+            DBFile file = openFiles.get(fileName);
+            mapped = file != null && file.isMapped();
+            if (mapped)
+            {
+                index = pinResident(key);
+                if (index == PageTable.NOT_FOUND)
+                {
+                    Page page = file.mappedPage(pinPageId);
+                    mappedPinCount.incrementAndGet();
+                    mappedPins.merge(key, 1, Integer::sum);
+                    stats.hit();
+                    return page;
+                }
+            }
+        }
+        finally
+        {
+            handleLock.readLock().unlock();
+        }
+        if (mapped)
+        {
+            Page page = awaitLoad(index, key);
+            if (page != null)
+            {
+                policy.hit(index, AccessHint.RANDOM);
+                stats.hit();
+                return new Page(page.buffer().asReadOnlyBuffer());
+            }
+        }
+
+        Page page = pinPage(pinPageId, fileName, false);
+        if (page == null)
+            return null;
+        return new Page(page.buffer().asReadOnlyBuffer());
+    }
+
+    /**
+     * Drops a pin taken on a mapped page by pinPageReadOnly().
+     * @return false if the page had no such pins.
+     */
+    private boolean unpinMapped(long key)
+    {
+        boolean[] found = new boolean[1];
+        mappedPins.computeIfPresent(key, (k, pins) -> {
+            found[0] = true;
+            return pins == 1 ? null : pins - 1;
+        });
+        if (found[0])
+            mappedPinCount.decrementAndGet();
+        return found[0];
+    }
+
+    /**
+     * Reads a page into a frame that pinPage() has just claimed and
+     * entered in the page table, then lets waiting threads in.
+     */
+    private Page load(int index, boolean emptyPage, AccessHint hint)
+        throws IOException
+    {
+        FrameDescriptor frame = this.frameTable[index];
+        try
+        {
+            // The page is read straight into the frame, which nobody
+            // else can reach until the latch is released.
+            Page page = this.bufferPool[index];
+            CompressedCache cache = compressedCache;
+            if (emptyPage)
+            {
+                page.clear();
+                if (cache != null)
+                    cache.remove(frame.key);
+            }
+            else if (cache != null && cache.take(frame.key, page))
+                stats.compressedHit();
+            else
+            {
+                DBFile file = acquireFile(frame.fileName);
+                try
+                {
+                    long start = System.nanoTime();
+                    file.readPage(frame.pageNum, page);
+                    stats.read(frame.fileName, System.nanoTime() - start,
+                               1);
+                }
+                finally
+                {
+                    releaseFile();
+                }
+            }
+            frame.dirty = false;
+            frame.prefetched = false;
+            frame.pageLsn = 0;
+            frame.recLsn = 0;
+            policy.loaded(index, frame.key, hint);
+            return page;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            abandon(index);
+            throw e;
         }
+        finally
+        {
+            frame.loading = false;
+            frame.latch.unlock();
+        }
+    }
 
+    /**
+     * Takes a frame whose page could not be read back out of the page
+     * table and drops the loading thread's pin.
+     */
+    private void abandon(int index)
+    {
+        FrameDescriptor frame = this.frameTable[index];
+        int s = stripe(frame.key);
+        stripeLocks[s].lock();
+        try
+        {
+            pageTables[s].remove(frame.key);
+            frame.key = NO_PAGE;
+            frame.pageNum = INVALID_PAGE;
+        }
+        finally
+        {
+            stripeLocks[s].unlock();
+        }
+        frameStates.unpin(index, false);
     }
 
-    // Here are some private variables to get you started. You'll
-    // probably need more.
-    private Page[] bufferPool;
-    private FrameDescriptor[] frameTable;
-    private Map<Pair, Integer> hashMap;
-    private int clockHand;
+    /**
+     * Starts reading a run of pages into the pool in the background,
+     * so that they are there when they are pinned. Pages already in
+     * the pool and pages that are not allocated are skipped, and
+     * reading stops early if no frame can be freed. The pages are left
+     * unpinned; if nobody pins them, they are replaced before pages
+     * that have been used. Errors are ignored, since the pages will be
+     * read again when they are pinned.
+     * @param fileName the name of the database to read from.
+     * @param startPage the page number of the first page to read.
+     * @param count the number of pages to read.
+     */
+    public void prefetch(String fileName, int startPage, int count)
+    {
+        if (count <= 0)
+            return;
+        try
+        {
+            prefetcher.execute(() -> {
+                try
+                {
+                    readAhead(fileName, startPage, count);
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    // Only a hint.
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The buffer manager is being closed.
+        }
+    }
 
     /**
-     * Creates a buffer manager with the specified size.
-     * @param poolSize the number of pages that the buffer pool can hold.
+     * Tracks the pages pinned in a file and, when they are pinned in
+     * page order, reads ahead of the reader. Each time the reader is
+     * half-way through the pages read ahead, the window doubles and
+     * the pages up to the end of it are read.
+     * @param mark whether the pin was a miss or the first pin of a
+     * page read ahead.
      */
-    public BufferManager(int poolSize)
+    private void readAheadAfter(int fileId, String fileName, int pageNum,
+                                boolean mark)
     {
-	this.bufferPool = new Page[poolSize];
-	this.frameTable = new FrameDescriptor[poolSize];
-	for(int i = 0; i < poolSize; i++) {
-	    this.bufferPool[i] = new Page();
-	    this.frameTable[i] = new FrameDescriptor();
-	}
-	
-	this.hashMap = new HashMap<Pair, Integer>();
-	this.clockHand = 0;
+        int maxPages = readAheadPages;
+        if (maxPages <= 0)
+            return;
+
+        ReadAhead state = readAheads.get(fileId);
+        if (state == null)
+            state = readAheads.computeIfAbsent(fileId, id -> new ReadAhead());
+        int start;
+        int count;
+        state.lock.lock();
+        try
+        {
+            boolean sequential = pageNum == state.lastPage + 1;
+            state.lastPage = pageNum;
+            if (!sequential)
+            {
+                state.window = 0;
+                state.nextPage = pageNum + 1;
+                return;
+            }
+            if (state.nextPage <= pageNum)
+                state.nextPage = pageNum + 1;
+            if (!mark || state.nextPage - pageNum - 1 > state.window / 2)
+                return;
+
+            state.window = Math.min(maxPages,
+                                    Math.max(MIN_READ_AHEAD, 2*state.window));
+            start = state.nextPage;
+            count = pageNum + 1 + state.window - start;
+            if (count <= 0)
+                return;
+            state.nextPage = start + count;
+        }
+        finally
+        {
+            state.lock.unlock();
+        }
+        prefetch(fileName, start, count);
     }
 
     /**
-     * Returns the pool size.
-     * @return the pool size.
+     * Reads a run of pages into free frames, as prefetch() describes,
+     * reading consecutive pages that are not in the pool yet with a
+     * single read.
      */
-    public int poolSize()
+    private void readAhead(String fileName, int startPage, int count)
+        throws IOException
     {
-        return this.bufferPool.length;
+        DBFile file = acquireFile(fileName);
+        try
+        {
+            readAhead(file, fileName, startPage, count);
+        }
+        finally
+        {
+            releaseFile();
+        }
+    }
+
+    private void readAhead(DBFile file, String fileName, int startPage,
+                           int count)
+        throws IOException
+    {
+        int fileId = fileId(fileName);
+        int end = (int)Math.min((long)startPage + count, file.getNumPages());
+        int[] frames = new int[Math.min(count, MAX_READ_RUN)];
+        int pageNum = Math.max(0, startPage);
+        while (pageNum < end)
+        {
+            int runStart = pageNum;
+            int n = 0;
+            while (pageNum < end && n < frames.length &&
+                   file.isAllocated(pageNum))
+            {
+                long key = PageTable.key(fileId, pageNum);
+                if (lookup(key) != PageTable.NOT_FOUND)
+                    break;
+                int victim = evict(AccessHint.ONCE);
+                if (victim < 0)
+                    break;
+                int index = install(victim, key, pageNum, fileName, fileId);
+                if (index != PageTable.NOT_FOUND)
+                {
+                    frameStates.unpin(index, false);
+                    release(victim);
+                    break;
+                }
+                frames[n++] = victim;
+                pageNum++;
+            }
+
+            if (n > 0)
+                loadRun(file, runStart, frames, n);
+            else if (pageNum < end && file.isAllocated(pageNum) &&
+                     lookup(pageNum, fileName) == PageTable.NOT_FOUND)
+                return;     // No frame could be freed.
+            else
+                pageNum++;
+        }
     }
 
     /**
-     * Checks if this page is in buffer pool. If it is, returns a
-     * pointer to it. Otherwise, it finds an available frame for this
-     * page, reads the page, and pins it. Writes out the old page, if
-     * it is dirty, before reading.
-     * @param pinPageId the page id for the page to be pinned
-     * @param fileName the name of the database that contains the page
-     * to be pinned
-     * @param emptyPage determines if the page is known to be
-     * empty. If true, then the page is not actually read from disk
-     * since it is assumed to be empty.
-     * @return a reference to the page in the buffer pool. If the buffer
-     * pool is full, null is returned.
-     * @throws IOException passed through from underlying file system.
+     * Reads consecutive pages into frames entered in the page table by
+     * readAhead(), then unpins them.
      */
-    public Page pinPage(int pinPageId, String fileName, boolean emptyPage)
+    private void loadRun(DBFile file, int firstPage, int[] frames, int n)
         throws IOException
     {
-	DBFile file = new DBFile(fileName);
-	Page curPage = new Page();
-	file.readPage(pinPageId, curPage);
-	
-	if(hashMap.get(curPage) != null) {
-	    this.frameTable[hashMap.get(pinPageId)].pinCount += 1;
-	    return this.bufferPool[hashMap.get(pinPageId)];
-	}
-
-	int count = 0;
-	FrameDescriptor curFrame;
-	while(count < 2*this.bufferPool.length) {
-	    curFrame = this.frameTable[clockHand];
-
-	    if(curFrame.pinCount < 1 && curFrame.reference == false) {
-		//replace
-
-		Page page = new Page();
-		
-		file.readPage(curFrame.pageNum, page);
-
-		if(curFrame.dirty == true) {
-		    this.flushPage(curFrame.pageNum, curFrame.fileName);
-		}
-		int replaceIndex = clockHand;
-
-		if(!emptyPage) {
-		    file.readPage(pinPageId, page);
-		} else {
-		    page = new Page();
-		}
-
-		this.bufferPool[replaceIndex] = page;
-		this.frameTable[replaceIndex].pageNum = pinPageId;
-		this.frameTable[replaceIndex].fileName = fileName;
-		this.frameTable[replaceIndex].pinCount = 1;
-		this.frameTable[replaceIndex].dirty = false;
-		this.frameTable[replaceIndex].reference = false;
-		hashMap.put(new Pair<Integer, String>(pinPageId,fileName), replaceIndex);
-		count++;
-		clockHand++;
-		this.clockHand = clockHand%(this.bufferPool.length);
-		return page;
-		
-	    } else if (curFrame.pinCount < 1 && curFrame.reference == true) {
-		this.frameTable[clockHand].reference = false;
-	    }
-	    count++;
-	    clockHand++;
-	    clockHand = clockHand%(this.bufferPool.length);
-	}
-	
-        return null;
+        Page[] pages = new Page[n];
+        for (int i=0; i < n; i++)
+            pages[i] = this.bufferPool[frames[i]];
+        try
+        {
+            long start = System.nanoTime();
+            file.readPages(firstPage, pages);
+            stats.read(file.getName(), System.nanoTime() - start, n);
+            stats.prefetched(n);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            for (int i=0; i < n; i++)
+            {
+                abandon(frames[i]);
+                this.frameTable[frames[i]].loading = false;
+                this.frameTable[frames[i]].latch.unlock();
+            }
+            throw e;
+        }
+
+        // Copies of the pages in the compressed cache are no longer
+        // needed there.
+        CompressedCache cache = compressedCache;
+        for (int i=0; i < n; i++)
+        {
+            int index = frames[i];
+            FrameDescriptor frame = this.frameTable[index];
+            if (cache != null)
+                cache.remove(frame.key);
+            frame.dirty = false;
+            frame.prefetched = true;
+            frame.pageLsn = 0;
+            frame.recLsn = 0;
+            policy.prefetched(index, frame.key);
+            frame.loading = false;
+            frame.latch.unlock();
+            frameStates.unpin(index, true);
+        }
+    }
+
+    /**
+     * Chooses a frame to reuse and takes it out of the page table,
+     * writing its page out first if it is dirty. Sequential reads try
+     * the next frame of the ring first; otherwise the replacement
+     * policy chooses.
+     * @param hint how the page that needs the frame will be used.
+     * @return the frame, claimed with a pin count of one, or -1 if
+     * every frame is pinned.
+     * @throws IOException passed through from underlying file system.
+     */
+    private int evict(AccessHint hint) throws IOException
+    {
+        while (true)
+        {
+            int slot = -1;
+            int victim = -1;
+            if (hint == AccessHint.SEQUENTIAL)
+            {
+                ringLock.lock();
+                try
+                {
+                    slot = ringPos;
+                    ringPos = (ringPos + 1) % ring.length;
+                    if (ring[slot] >= 0 &&
+                        frameStates.tryClaimUnreferenced(ring[slot]))
+                        victim = ring[slot];
+                }
+                finally
+                {
+                    ringLock.unlock();
+                }
+            }
+            if (victim < 0)
+                victim = policy.victim();
+            if (victim < 0)
+                return -1;
+
+            FrameDescriptor frame = this.frameTable[victim];
+            long oldKey = frame.key;
+            if (oldKey == NO_PAGE)
+                return useRingSlot(slot, victim);
+
+            boolean written;
+            try
+            {
+                written = writeFrame(victim);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                frameStates.unpin(victim, false);
+                throw e;
+            }
+
+            // Give the frame up only if nobody pinned or dirtied it
+            // while it was being written. The page's slot in the
+            // compressed cache is reserved as the page leaves the page
+            // table, so that it is ordered before any later read of the
+            // page; see CompressedCache.
+            boolean evicted = false;
+            CompressedCache cache = compressedCache;
+            CompressedCache.Slot cached = null;
+            int s = stripe(oldKey);
+            stripeLocks[s].lock();
+            try
+            {
+                if (frameStates.pinCount(victim) == 1 && !frame.dirty)
+                {
+                    pageTables[s].remove(oldKey);
+                    frame.key = NO_PAGE;
+                    evicted = true;
+                    if (cache != null)
+                        cached = cache.reserve(oldKey);
+                }
+            }
+            finally
+            {
+                stripeLocks[s].unlock();
+            }
+            if (evicted)
+            {
+                policy.evicted(victim, oldKey);
+                stats.evicted(written);
+                if (cached != null)
+                    cache.fill(cached, this.bufferPool[victim]);
+                return useRingSlot(slot, victim);
+            }
+            frameStates.unpin(victim, false);
+        }
+    }
+
+    /**
+     * Records the frame a sequential read is about to use in the ring
+     * slot it was given.
+     * @return the frame.
+     */
+    private int useRingSlot(int slot, int frame)
+    {
+        if (slot >= 0)
+        {
+            ringLock.lock();
+            try
+            {
+                ring[slot] = frame;
+            }
+            finally
+            {
+                ringLock.unlock();
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Gives back a frame claimed by evict() without using it.
+     */
+    private void release(int index)
+    {
+        FrameDescriptor frame = this.frameTable[index];
+        frame.pageNum = INVALID_PAGE;
+        frame.fileName = null;
+        frame.fileId = -1;
+        frame.dirty = false;
+        frame.prefetched = false;
+        frame.pageLsn = 0;
+        frame.recLsn = 0;
+        frameStates.clearReference(index);
+        frameStates.unpin(index, false);
+    }
+
+    /**
+     * Writes a pinned frame's page to disk if it is dirty, holding
+     * the frame latch so that the page is written once. The log
+     * records of the page's changes are forced first.
+     * @return true if the page was written.
+     */
+    private boolean writeFrame(int index) throws IOException
+    {
+        FrameDescriptor frame = this.frameTable[index];
+        frame.latch.lock();
+        try
+        {
+            if (!frame.dirty)
+                return false;
+            forceLog(frame.pageLsn);
+            frame.dirty = false;
+            try
+            {
+                long start = System.nanoTime();
+                DBFile file = acquireFile(frame.fileName);
+                try
+                {
+                    file.writePage(frame.pageNum, this.bufferPool[index]);
+                }
+                finally
+                {
+                    releaseFile();
+                }
+                frame.recLsn = 0;
+                stats.written(frame.fileName, System.nanoTime() - start, 1);
+                return true;
+            }
+            catch (IOException | RuntimeException e)
+            {
+                frame.dirty = true;
+                throw e;
+            }
+        }
+        finally
+        {
+            frame.latch.unlock();
+        }
+    }
+
+    /**
+     * Forces the log up to the given LSN, if there is a log and the
+     * LSN is of a logged change.
+     */
+    private void forceLog(long lsn) throws IOException
+    {
+        WriteAheadLog wal = log;
+        if (wal != null && lsn != 0)
+            wal.flush(lsn);
     }
 
     /**
@@ -157,26 +2179,104 @@ public class BufferManager
     public void unpinPage(int unpinPageId, String fileName, boolean dirty)
         throws IOException
     {
-	
-	Integer index = hashMap.get(new Pair<Integer, String>(unpinPageId,fileName));
-	if(index == null) {
-	    throw new PageNotPinnedException();
-	} else if(unpinPageId != frameTable[index].pageNum || fileName != frameTable[index].fileName || this.frameTable[index].pinCount < 1) {
-	    throw new PageNotPinnedException();
-	}
-	
-	DBFile file = new DBFile(fileName);
-	if(dirty == true) {
-	    this.frameTable[hashMap.get(new Pair<Integer, String>(unpinPageId,fileName))].dirty = true;
-	}
-	this.frameTable[index].pinCount -= 1;
+        unpinPage(unpinPageId, fileName, dirty, AccessHint.RANDOM);
+    }
+
+    /**
+     * Unpins a page as unpinPage(int, String, boolean) does. With a
+     * hint other than RANDOM the page is not marked as recently used,
+     * so it is replaced before pages used normally once nobody has it
+     * pinned.
+     * @param unpinPageId the page id for the page to be unpinned
+     * @param fileName the name of the database that contains the page
+     * to be unpinned
+     * @param dirty if false, then the page does not actually need to
+     * be written back to disk.
+     * @param hint how the page was used.
+     * @throws PageNotPinnedException if the page is not pinned, or if
+     * the page id is invalid in some other way.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void unpinPage(int unpinPageId, String fileName, boolean dirty,
+                          AccessHint hint)
+        throws IOException
+    {
+        long key = PageTable.key(fileId(fileName), unpinPageId);
 
-	if(this.frameTable[index].pinCount < 1) {
-	    this.frameTable[index].reference = true;
-	}
-	
+        // A page can be pinned both in the mapping and in the pool.
+        // Unpins count against the mapping first, unless they dirty
+        // the page; since all pins are alike, it does not matter
+        // whose pin is dropped.
+        if (!dirty && mappedPinCount.get() > 0 && unpinMapped(key))
+            return;
+
+        int index = lookup(key);
+        if (index == PageTable.NOT_FOUND)
+            throw new PageNotPinnedException();
+
+        // The dirty bit is set before the pin is dropped, so that an
+        // evicting thread sees it; the reference bit, which CLOCK
+        // reads, is set in the same atomic step as the unpin.
+        if (frameStates.pinCount(index) < 1)
+            throw new PageNotPinnedException();
+        if (dirty)
+            this.frameTable[index].dirty = true;
+        int pins = frameStates.unpin(index, hint == AccessHint.RANDOM);
+        if (pins < 0)
+            throw new PageNotPinnedException();
+        if (pins == 0)
+            policy.unpinned(index, hint);
+    }
+
+    /**
+     * Unpins each page of a run pinned with pinRun(), as unpinPage()
+     * does.
+     * @param fileName the name of the database that contains the run.
+     * @param startPage the page id of the first page of the run.
+     * @param count the number of pages in the run.
+     * @param dirty whether the pages need to be written back to disk.
+     * @throws PageNotPinnedException if a page of the run is not
+     * pinned; the other pages are unpinned all the same.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void unpinRun(String fileName, int startPage, int count,
+                         boolean dirty)
+        throws IOException
+    {
+        unpinRun(fileName, startPage, count, dirty, AccessHint.RANDOM);
     }
 
+    /**
+     * Unpins each page of a run as unpinPage(int, String, boolean,
+     * AccessHint) does.
+     * @param fileName the name of the database that contains the run.
+     * @param startPage the page id of the first page of the run.
+     * @param count the number of pages in the run.
+     * @param dirty whether the pages need to be written back to disk.
+     * @param hint how the pages were used.
+     * @throws PageNotPinnedException if a page of the run is not
+     * pinned; the other pages are unpinned all the same.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void unpinRun(String fileName, int startPage, int count,
+                         boolean dirty, AccessHint hint)
+        throws IOException
+    {
+        PageNotPinnedException failure = null;
+        for (int i=0; i < count; i++)
+        {
+            try
+            {
+                unpinPage(startPage + i, fileName, dirty, hint);
+            }
+            catch (PageNotPinnedException e)
+            {
+                failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
 
     /**
      * Requests a run of pages from the underlying database, then
@@ -196,41 +2296,33 @@ public class BufferManager
     public Pair<Integer,Page> newPage(int numPages, String fileName)
         throws IOException
     {
-	DBFile file = new DBFile(fileName);
-
-	int firstPageNum = file.allocatePages(numPages);
-	int lastAllocatedPageNum = firstPageNum;
-
-	Page pinnable = new Page();
-	Page curPage = new Page();
-
-	//always try to pin first page
-	if(this.frameTable[0].pageNum == INVALID_PAGE) {
-	    file.readPage(lastAllocatedPageNum, curPage);
-	    this.bufferPool[0] = curPage;
-	    this.frameTable[0].fileName = fileName;
-	    this.frameTable[0].pageNum = lastAllocatedPageNum;
-	    hashMap.put(new Pair<Integer, String>(lastAllocatedPageNum,fileName), 0);
-
-	    pinnable = this.pinPage(lastAllocatedPageNum, fileName, false);
-	    
-	    if(pinnable == null) {
-		return null;
-	    }
-	}
-	lastAllocatedPageNum++;
-	
-	for(int frameDesNum = 0; frameDesNum < numPages; frameDesNum++) {
-	    if(this.frameTable[frameDesNum%this.frameTable.length].pageNum == INVALID_PAGE) {
-		file.readPage(lastAllocatedPageNum, curPage);
-		this.bufferPool[frameDesNum%this.frameTable.length] = curPage;
-		this.frameTable[frameDesNum%this.frameTable.length].fileName = fileName;
-		this.frameTable[frameDesNum%this.frameTable.length].pageNum = lastAllocatedPageNum;
-		hashMap.put(new Pair<Integer, String>(lastAllocatedPageNum,fileName), frameDesNum%this.frameTable.length);
-		lastAllocatedPageNum++;
-	    }
-	}
-	return new Pair<Integer, Page>(firstPageNum, pinnable);
+        int firstPageNum;
+        DBFile file = acquireFile(fileName);
+        try
+        {
+            firstPageNum = file.allocatePages(numPages);
+        }
+        finally
+        {
+            releaseFile();
+        }
+
+        // The new pages hold nothing worth reading yet.
+        Page page = this.pinPage(firstPageNum, fileName, true);
+        if (page == null)
+        {
+            file = acquireFile(fileName);
+            try
+            {
+                file.deallocatePages(firstPageNum, numPages);
+            }
+            finally
+            {
+                releaseFile();
+            }
+            return null;
+        }
+        return new Pair<Integer, Page>(firstPageNum, page);
     }
 
     /**
@@ -244,16 +2336,43 @@ public class BufferManager
      */
     public void freePage(int pageId, String fileName) throws IOException
     {
-	DBFile file;
-	for(int index = 0; index < this.frameTable.length; index++) {
-	    if(frameTable[index].pageNum == pageId && frameTable[index].fileName == fileName) {
-		if(frameTable[index].pinCount > 0) {
-		    throw new PagePinnedException();
-		}
-		file = new DBFile(fileName);
-		file.deallocatePages(pageId, pageId+1);
-	    }
-	}
+        long key = PageTable.key(fileId(fileName), pageId);
+        if (mappedPins.containsKey(key))
+            throw new PagePinnedException();
+        int s = stripe(key);
+        stripeLocks[s].lock();
+        try
+        {
+            int index = pageTables[s].get(key);
+            if (index != PageTable.NOT_FOUND)
+            {
+                FrameDescriptor frame = this.frameTable[index];
+                if (!frameStates.tryClaim(index))
+                    throw new PagePinnedException();
+
+                // The contents of a freed page are dropped, dirty or not.
+                pageTables[s].remove(key);
+                frame.key = NO_PAGE;
+                policy.evicted(index, key);
+                release(index);
+            }
+        }
+        finally
+        {
+            stripeLocks[s].unlock();
+        }
+        CompressedCache cache = compressedCache;
+        if (cache != null)
+            cache.remove(key);
+        DBFile file = acquireFile(fileName);
+        try
+        {
+            file.deallocatePages(pageId, 1);
+        }
+        finally
+        {
+            releaseFile();
+        }
     }
 
     /**
@@ -261,8 +2380,11 @@ public class BufferManager
      * it is dirty. If page is not dirty, it is not flushed,
      * especially since an undirty page may hang around even after the
      * underlying database has been erased. If the page is not in the
-     * buffer pool, do nothing, since the page is effectively flushed
-     * already.
+     * buffer pool, it is not written, since the page is effectively
+     * flushed already. Either way, the page is then forced onto the
+     * storage device if its database is open, so that it survives a
+     * crash; for a mapped database only the page's part of the
+     * mapping is forced.
      * @param pageId the page id to be flushed.
      * @param fileName the name of the database where the page should
      * be flushed.
@@ -270,35 +2392,432 @@ public class BufferManager
      */
     public void flushPage(int pageId, String fileName) throws IOException
     {
-	if(this.frameTable[hashMap.get(new Pair<Integer, String>(pageId, fileName))].dirty) {
-	    DBFile file = new DBFile(fileName);
-	    file.writePage(pageId, this.bufferPool[hashMap.get(new Pair<Integer, String>(pageId, fileName))]);
-	    this.frameTable[hashMap.get(new Pair<Integer, String>(pageId, fileName))].dirty = false;
-	}
+        long key = PageTable.key(fileId(fileName), pageId);
+        int index = pinResident(key);
+        if (index != PageTable.NOT_FOUND && awaitLoad(index, key) != null)
+        {
+            try
+            {
+                writeFrame(index);
+            }
+            finally
+            {
+                frameStates.unpin(index, false);
+            }
+        }
+
+        handleLock.readLock().lock();
+        try
+        {
+            DBFile file = openFiles.get(fileName);
+            if (file != null && pageId >= 0 && pageId < file.getNumPages())
+                file.syncPage(pageId);
+        }
+        finally
+        {
+            handleLock.readLock().unlock();
+        }
     }
 
     /**
      * Flushes all dirty pages from the buffer pool to the underlying
      * databases. If page is not dirty, it is not flushed, especially
      * since an undirty page may hang around even after the underlying
-     * database has been erased.
+     * database has been erased. Dirty pages are written in page order,
+     * a file at a time, with each run of consecutive pages written by
+     * a single gathering write. Only the run being written is pinned,
+     * so other threads can go on using the pool meanwhile. The space
+     * maps of the open databases are written back too, and every open
+     * database is then synced once, so that everything flushed is on
+     * stable storage when this returns.
      * @throws IOException passed through from underlying file system.
      */
     public void flushAllPages() throws IOException
     {
-	DBFile file;
-	
-	for(int index = 0; index < frameTable.length; index++) {
-	    System.out.println("flush all: " + frameTable[index].dirty + " " + index);
-	    if(frameTable[index].dirty) {
-		System.out.println("flush all dirty");
-		file = new DBFile(frameTable[index].fileName);
-		file.writePage(frameTable[index].pageNum, this.bufferPool[index]);
-		this.frameTable[index].dirty = false;
-	    }
-	}
+        long[] keys = new long[frameTable.length];
+        int numDirty = 0;
+        for (FrameDescriptor frame : frameTable)
+        {
+            long key = frame.key;
+            if (key != NO_PAGE && frame.dirty)
+                keys[numDirty++] = key;
+        }
+
+        // Keys sort by file id, then page number.
+        Arrays.sort(keys, 0, numDirty);
+        writeSorted(keys, numDirty);
+
+        // Persist allocation changes made through the pool as well.
+        syncFiles();
+    }
+
+    /**
+     * Syncs every open database.
+     */
+    private void syncFiles() throws IOException
+    {
+        handleLock.readLock().lock();
+        try
+        {
+            for (DBFile open : openFiles.values())
+                open.sync();
+        }
+        finally
+        {
+            handleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes out the dirty pages among those with the given sorted
+     * keys, a run of consecutive pages at a time. Only the run being
+     * written is pinned; pages evicted since their keys were taken
+     * were written out when they were evicted.
+     */
+    private void writeSorted(long[] keys, int n) throws IOException
+    {
+        IOException failure = null;
+        int start = 0;
+        while (start < n)
+        {
+            int end = start + 1;
+            while (end < n && end - start < MAX_WRITE_RUN &&
+                   keys[end] == keys[end - 1] + 1)
+                end++;
+
+            int[] frames = new int[end - start];
+            for (int i = start; i < end; i++)
+            {
+                int index = pinResident(keys[i]);
+                if (index != PageTable.NOT_FOUND &&
+                    awaitLoad(index, keys[i]) == null)
+                    index = PageTable.NOT_FOUND;
+                frames[i - start] = index;
+            }
+            try
+            {
+                int i = 0;
+                while (i < frames.length)
+                {
+                    if (frames[i] == PageTable.NOT_FOUND)
+                    {
+                        i++;
+                        continue;
+                    }
+                    int j = i;
+                    while (j < frames.length &&
+                           frames[j] != PageTable.NOT_FOUND)
+                        j++;
+                    try
+                    {
+                        writeRun(frames, i, j);
+                    }
+                    catch (IOException e)
+                    {
+                        failure = e;
+                    }
+                    i = j;
+                }
+            }
+            finally
+            {
+                for (int index : frames)
+                    if (index != PageTable.NOT_FOUND)
+                        frameStates.unpin(index, false);
+            }
+            start = end;
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Takes a fuzzy checkpoint, so that recovery only has to redo
+     * changes made after it began. The pages holding logged changes
+     * from before the checkpoint are written out in page order, a run
+     * at a time, while other threads go on pinning, changing and
+     * unpinning pages; nothing is held for the length of the
+     * checkpoint. Once they are written, the databases are synced and
+     * a checkpoint record is logged with the LSN of the oldest change
+     * that may still be missing from them, and the log records that
+     * recovery can no longer need are discarded.
+     * @return the LSN recovery now redoes changes from.
+     * @throws IllegalStateException if no log has been set.
+     * @throws IOException passed through from underlying file system.
+     */
+    public long checkpoint() throws IOException
+    {
+        WriteAheadLog wal = requireLog();
+        long begin = wal.endLsn();
+        long[] keys = new long[frameTable.length];
+        int numDirty = 0;
+        for (FrameDescriptor frame : frameTable)
+        {
+            long key = frame.key;
+            long recLsn = frame.recLsn;
+            if (key != NO_PAGE && recLsn != 0 && recLsn < begin)
+                keys[numDirty++] = key;
+        }
+        Arrays.sort(keys, 0, numDirty);
+        writeSorted(keys, numDirty);
+
+        // Pages changed again since, or whose writes failed, hold the
+        // redo point back. Every page written before this scan is then
+        // synced below.
+        long redoLsn = begin;
+        for (FrameDescriptor frame : frameTable)
+        {
+            long recLsn = frame.recLsn;
+            if (recLsn != 0)
+                redoLsn = Math.min(redoLsn, recLsn);
+        }
+        syncFiles();
+        wal.checkpoint(redoLsn);
+        return redoLsn;
+    }
+
+    /**
+     * Takes a checkpoint as checkpoint() does, on a background thread.
+     * @return a future of the LSN recovery redoes changes from once
+     * the checkpoint is done.
+     * @throws IllegalStateException if no log has been set.
+     */
+    public CompletableFuture<Long> checkpointAsync()
+    {
+        requireLog();
+        CompletableFuture<Long> result = new CompletableFuture<Long>();
+        try
+        {
+            checkpointer.execute(() -> {
+                try
+                {
+                    result.complete(checkpoint());
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    result.completeExceptionally(e);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The buffer manager is being closed.
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Sets the log that changes made through update() are written to.
+     * The log should be opened, which recovers the databases named in
+     * it, before any of them are used by the buffer manager, and set
+     * before any changes are made.
+     * @param log the log, or null to stop logging.
+     */
+    public void setLog(WriteAheadLog log)
+    {
+        this.log = log;
+    }
+
+    /**
+     * Returns the log set with setLog().
+     * @return the log, or null if there is none.
+     */
+    public WriteAheadLog getLog()
+    {
+        return log;
+    }
+
+    private WriteAheadLog requireLog()
+    {
+        WriteAheadLog wal = log;
+        if (wal == null)
+            throw new IllegalStateException("No log has been set");
+        return wal;
+    }
+
+    /**
+     * Changes bytes of a pinned page as part of a transaction. The
+     * change is logged, with the bytes it replaces, before it is made,
+     * and the page is marked dirty. The page is not written back until
+     * the log holds the change.
+     * @param tx the transaction, begun with the log's begin().
+     * @param pageId the page id of the page to change.
+     * @param fileName the name of the database that contains the page.
+     * @param offset where in the page the change starts.
+     * @param bytes the new contents of the bytes from offset on.
+     * @throws PageNotPinnedException if the page is not pinned.
+     * @throws IndexOutOfBoundsException if the bytes do not fit in the
+     * page at offset.
+     * @throws WriteAheadLog.TransactionEndedException if the
+     * transaction has already committed or aborted.
+     * @throws IllegalStateException if no log has been set.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void update(WriteAheadLog.Transaction tx, int pageId,
+                       String fileName, int offset, byte[] bytes)
+        throws IOException
+    {
+        update(tx, pageId, fileName, offset, bytes, false);
+    }
+
+    private void update(WriteAheadLog.Transaction tx, int pageId,
+                        String fileName, int offset, byte[] bytes,
+                        boolean undo)
+        throws IOException
+    {
+        WriteAheadLog wal = requireLog();
+        int index = lookup(pageId, fileName);
+        if (index == PageTable.NOT_FOUND || frameStates.pinCount(index) < 1)
+            throw new PageNotPinnedException();
+        if (offset < 0 || offset > this.pageSize - bytes.length)
+            throw new IndexOutOfBoundsException("Bad offset " + offset
+                                                + " for " + bytes.length
+                                                + " bytes");
+
+        // The latch keeps the page from being written out between the
+        // change and the setting of its LSN.
+        FrameDescriptor frame = this.frameTable[index];
+        frame.latch.lock();
+        try
+        {
+            ByteBuffer buffer = this.bufferPool[index].buffer();
+            byte[] before = new byte[bytes.length];
+            buffer.position(offset);
+            buffer.get(before);
+            if (frame.recLsn == 0)
+                frame.recLsn = wal.endLsn();
+            long lsn = wal.logUpdate(tx, fileName, pageId, offset, before,
+                                     bytes, undo);
+            buffer.position(offset);
+            buffer.put(bytes);
+            frame.pageLsn = lsn;
+            frame.dirty = true;
+        }
+        finally
+        {
+            frame.latch.unlock();
+        }
+    }
+
+    /**
+     * Commits a transaction: its changes are durable once this
+     * returns. Transactions committing at the same time share a single
+     * force of the log.
+     * @param tx the transaction.
+     * @throws WriteAheadLog.TransactionEndedException if the
+     * transaction has already committed or aborted.
+     * @throws IllegalStateException if no log has been set.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void commit(WriteAheadLog.Transaction tx) throws IOException
+    {
+        requireLog().commit(tx);
+    }
+
+    /**
+     * Aborts a transaction, undoing its changes newest first. Each
+     * page changed is pinned while its changes are undone, and the
+     * undoing is logged like any other change. If the pool is full,
+     * the abort can be retried; changes already undone stay undone.
+     * @param tx the transaction.
+     * @throws BufferPoolFullException if a changed page could not be
+     * pinned because every frame is pinned.
+     * @throws WriteAheadLog.TransactionEndedException if the
+     * transaction has already committed or aborted.
+     * @throws IllegalStateException if no log has been set.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void abort(WriteAheadLog.Transaction tx) throws IOException
+    {
+        WriteAheadLog wal = requireLog();
+        if (tx.isEnded())
+            throw new WriteAheadLog.TransactionEndedException();
+        WriteAheadLog.Update change;
+        while ((change = wal.lastUpdate(tx)) != null)
+        {
+            if (pinPage(change.pageNum, change.fileName, false) == null)
+                throw new BufferPoolFullException();
+            try
+            {
+                update(tx, change.pageNum, change.fileName, change.offset,
+                       change.before, true);
+            }
+            finally
+            {
+                unpinPage(change.pageNum, change.fileName, false);
+            }
+        }
+        wal.logAbort(tx);
+    }
+
+    /**
+     * Writes the dirty pages among pinned frames holding consecutive
+     * pages of one file, holding the frames' latches, with one write
+     * for each run of dirty pages. The log is forced first, up to the
+     * last change to any of the pages.
+     */
+    private void writeRun(int[] frames, int start, int end)
+        throws IOException
+    {
+        for (int i = start; i < end; i++)
+            this.frameTable[frames[i]].latch.lock();
+        try
+        {
+            int i = start;
+            while (i < end)
+            {
+                if (!this.frameTable[frames[i]].dirty)
+                {
+                    i++;
+                    continue;
+                }
+                int j = i;
+                long lsn = 0;
+                while (j < end && this.frameTable[frames[j]].dirty)
+                    lsn = Math.max(lsn, this.frameTable[frames[j++]].pageLsn);
+                forceLog(lsn);
+
+                Page[] pages = new Page[j - i];
+                for (int k = i; k < j; k++)
+                {
+                    this.frameTable[frames[k]].dirty = false;
+                    pages[k - i] = this.bufferPool[frames[k]];
+                }
+                FrameDescriptor first = this.frameTable[frames[i]];
+                try
+                {
+                    long began = System.nanoTime();
+                    DBFile file = acquireFile(first.fileName);
+                    try
+                    {
+                        file.writePages(first.pageNum, pages);
+                    }
+                    finally
+                    {
+                        releaseFile();
+                    }
+                    for (int k = i; k < j; k++)
+                        this.frameTable[frames[k]].recLsn = 0;
+                    stats.written(first.fileName, System.nanoTime() - began,
+                                  pages.length);
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    for (int k = i; k < j; k++)
+                        this.frameTable[frames[k]].dirty = true;
+                    throw e;
+                }
+                i = j;
+            }
+        }
+        finally
+        {
+            for (int i = start; i < end; i++)
+                this.frameTable[frames[i]].latch.unlock();
+        }
     }
-        
+
     /**
      * Returns buffer pool location for a particular pageId. This
      * method is just used for testing purposes: it probably doesn't
@@ -310,11 +2829,6 @@ public class BufferManager
     */
     public int findFrame(int pageId, String fileName)
     {
-	FrameDescriptor curFrame = frameTable[hashMap.get(new Pair<Integer, String>(pageId, fileName))];
-	Integer frameIndex = hashMap.get(new Pair<Integer, String>(pageId, fileName));
-	if(frameIndex == null) {
-	    return -1;
-	}
-        return frameIndex;
+        return lookup(pageId, fileName);
     }
 }
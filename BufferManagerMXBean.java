@@ -0,0 +1,62 @@
+import java.util.Map;
+
+/**
+ * Management interface of a buffer manager, registered with JMX by
+ * BufferManager.registerMBean(). Each attribute is read from a fresh
+ * BufferStats snapshot; see BufferStats for what the counts mean.
+ */
+public interface BufferManagerMXBean
+{
+    int getPoolSize();
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    long getPrefetches();
+
+    long getEvictions();
+
+    long getEvictionWrites();
+
+    double getSweepStepsPerEviction();
+
+    long getPinWaits();
+
+    long getPinWaitNanos();
+
+    long getCompressedHits();
+
+    int getCompressedPages();
+
+    long getCompressedBytes();
+
+    /**
+     * Returns the number of reads of each database.
+     */
+    Map<String, Long> getFileReads();
+
+    /**
+     * Returns the 99th percentile read latency of each database, in
+     * nanoseconds.
+     */
+    Map<String, Long> getFileReadP99Nanos();
+
+    /**
+     * Returns the number of writes to each database.
+     */
+    Map<String, Long> getFileWrites();
+
+    /**
+     * Returns the 99th percentile write latency of each database, in
+     * nanoseconds.
+     */
+    Map<String, Long> getFileWriteP99Nanos();
+
+    /**
+     * Sets every counter back to zero.
+     */
+    void resetStats();
+}
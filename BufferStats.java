@@ -0,0 +1,308 @@
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Statistics of a buffer manager at one moment, as returned by
+ * BufferManager.stats(). Counts are totals since the buffer manager
+ * was created or its statistics were last reset. A snapshot does not
+ * change once taken.
+ */
+public class BufferStats
+{
+    /**
+     * Read and write statistics of one database. Latency percentiles
+     * are accurate to within a factor of two.
+     */
+    public static class FileStats
+    {
+        private final long reads;
+        private final long pagesRead;
+        private final long readNanos;
+        private final long readP50;
+        private final long readP99;
+        private final long writes;
+        private final long pagesWritten;
+        private final long writeNanos;
+        private final long writeP50;
+        private final long writeP99;
+
+        FileStats(long reads, long pagesRead, long readNanos, long readP50,
+                  long readP99, long writes, long pagesWritten,
+                  long writeNanos, long writeP50, long writeP99)
+        {
+            this.reads = reads;
+            this.pagesRead = pagesRead;
+            this.readNanos = readNanos;
+            this.readP50 = readP50;
+            this.readP99 = readP99;
+            this.writes = writes;
+            this.pagesWritten = pagesWritten;
+            this.writeNanos = writeNanos;
+            this.writeP50 = writeP50;
+            this.writeP99 = writeP99;
+        }
+
+        /**
+         * Returns the number of reads, each of one or more pages.
+         */
+        public long reads()
+        {
+            return reads;
+        }
+
+        public long pagesRead()
+        {
+            return pagesRead;
+        }
+
+        /**
+         * Returns the mean time of a read.
+         * @return nanoseconds, or 0 if there were no reads.
+         */
+        public long readMeanNanos()
+        {
+            return reads == 0 ? 0 : readNanos / reads;
+        }
+
+        public long readP50Nanos()
+        {
+            return readP50;
+        }
+
+        public long readP99Nanos()
+        {
+            return readP99;
+        }
+
+        /**
+         * Returns the number of writes, each of one or more pages.
+         */
+        public long writes()
+        {
+            return writes;
+        }
+
+        public long pagesWritten()
+        {
+            return pagesWritten;
+        }
+
+        /**
+         * Returns the mean time of a write.
+         * @return nanoseconds, or 0 if there were no writes.
+         */
+        public long writeMeanNanos()
+        {
+            return writes == 0 ? 0 : writeNanos / writes;
+        }
+
+        public long writeP50Nanos()
+        {
+            return writeP50;
+        }
+
+        public long writeP99Nanos()
+        {
+            return writeP99;
+        }
+
+        public String toString()
+        {
+            return String.format("reads=%d (%d pages, mean %dns, p50 %dns, "
+                                 + "p99 %dns) writes=%d (%d pages, mean "
+                                 + "%dns, p50 %dns, p99 %dns)",
+                                 reads, pagesRead, readMeanNanos(), readP50,
+                                 readP99, writes, pagesWritten,
+                                 writeMeanNanos(), writeP50, writeP99);
+        }
+    }
+
+    private final int poolSize;
+    private final long hits;
+    private final long misses;
+    private final long prefetches;
+    private final long evictions;
+    private final long evictionWrites;
+    private final long sweepSteps;
+    private final long pinWaits;
+    private final long pinWaitNanos;
+    private final long compressedHits;
+    private final int compressedPages;
+    private final long compressedBytes;
+    private final Map<String, FileStats> files;
+
+    BufferStats(int poolSize, long hits, long misses, long prefetches,
+                long evictions, long evictionWrites, long sweepSteps,
+                long pinWaits, long pinWaitNanos, long compressedHits,
+                int compressedPages, long compressedBytes,
+                Map<String, FileStats> files)
+    {
+        this.poolSize = poolSize;
+        this.hits = hits;
+        this.misses = misses;
+        this.prefetches = prefetches;
+        this.evictions = evictions;
+        this.evictionWrites = evictionWrites;
+        this.sweepSteps = sweepSteps;
+        this.pinWaits = pinWaits;
+        this.pinWaitNanos = pinWaitNanos;
+        this.compressedHits = compressedHits;
+        this.compressedPages = compressedPages;
+        this.compressedBytes = compressedBytes;
+        this.files = Collections.unmodifiableMap(files);
+    }
+
+    public int poolSize()
+    {
+        return poolSize;
+    }
+
+    /**
+     * Returns the number of pins that found their page in the pool,
+     * including pages pinPage() found still being read by another
+     * thread.
+     */
+    public long hits()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of pins that had to read their page in,
+     * including calls to pinPageAsync() that joined a read another
+     * call had started.
+     */
+    public long misses()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the fraction of pins that were hits.
+     * @return the hit ratio, or 0 if nothing was pinned.
+     */
+    public double hitRatio()
+    {
+        long pins = hits + misses;
+        return pins == 0 ? 0 : (double)hits / pins;
+    }
+
+    /**
+     * Returns the number of pages read ahead of being pinned.
+     */
+    public long prefetches()
+    {
+        return prefetches;
+    }
+
+    /**
+     * Returns the number of pages replaced to make room for others.
+     */
+    public long evictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of replaced pages that were dirty and had to
+     * be written out by the thread that needed the frame.
+     */
+    public long evictionWrites()
+    {
+        return evictionWrites;
+    }
+
+    /**
+     * Returns the number of frames looked at by the replacement policy
+     * while choosing victims, such as the steps of the clock hand.
+     */
+    public long sweepSteps()
+    {
+        return sweepSteps;
+    }
+
+    /**
+     * Returns the mean number of frames looked at per eviction.
+     * @return the steps per eviction, or 0 if nothing was evicted.
+     */
+    public double sweepStepsPerEviction()
+    {
+        return evictions == 0 ? 0 : (double)sweepSteps / evictions;
+    }
+
+    /**
+     * Returns the number of pins that waited for another thread to
+     * finish reading their page.
+     */
+    public long pinWaits()
+    {
+        return pinWaits;
+    }
+
+    /**
+     * Returns the total time pins spent waiting for pages being read
+     * by other threads.
+     * @return nanoseconds.
+     */
+    public long pinWaitNanos()
+    {
+        return pinWaitNanos;
+    }
+
+    /**
+     * Returns the number of misses served from the compressed cache
+     * rather than read from disk; these are counted as misses too.
+     */
+    public long compressedHits()
+    {
+        return compressedHits;
+    }
+
+    /**
+     * Returns the number of pages in the compressed cache.
+     */
+    public int compressedPages()
+    {
+        return compressedPages;
+    }
+
+    /**
+     * Returns the number of bytes the compressed cache holds,
+     * including an estimate of the memory each page costs besides its
+     * compressed image.
+     */
+    public long compressedBytes()
+    {
+        return compressedBytes;
+    }
+
+    /**
+     * Returns the read and write statistics of each database the
+     * buffer manager has read or written.
+     * @return a map from database name to its statistics.
+     */
+    public Map<String, FileStats> files()
+    {
+        return files;
+    }
+
+    public String toString()
+    {
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("pool=%d hits=%d misses=%d hitRatio=%.3f "
+                               + "prefetches=%d evictions=%d "
+                               + "evictionWrites=%d stepsPerEviction=%.2f "
+                               + "pinWaits=%d pinWaitNanos=%d "
+                               + "compressedHits=%d compressedPages=%d "
+                               + "compressedBytes=%d",
+                               poolSize, hits, misses, hitRatio(),
+                               prefetches, evictions, evictionWrites,
+                               sweepStepsPerEviction(), pinWaits,
+                               pinWaitNanos, compressedHits, compressedPages,
+                               compressedBytes));
+        for (Map.Entry<String, FileStats> file : files.entrySet())
+            s.append(String.format("%n  %s: %s", file.getKey(),
+                                   file.getValue()));
+        return s.toString();
+    }
+}
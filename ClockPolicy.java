@@ -0,0 +1,77 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CLOCK replacement, the default policy. Frames are visited in a
+ * circle; an unpinned frame that has been used since the hand last
+ * passed loses its reference bit and is skipped, and the first
+ * unpinned frame without one is replaced. The reference bits are the
+ * ones the buffer manager sets on unpin, so the policy keeps no state
+ * besides the hand and needs no lock: several threads can sweep at
+ * once, each taking the next frame from the shared hand.
+ */
+public class ClockPolicy implements ReplacementPolicy
+{
+    private FrameStates frames;
+    private AtomicInteger hand;
+
+    public ClockPolicy()
+    {
+        hand = new AtomicInteger();
+    }
+
+    public void attach(FrameStates frames)
+    {
+        if (this.frames != null)
+            throw new IllegalStateException("Policy already in use");
+        this.frames = frames;
+    }
+
+    public void loaded(int frame, long pageKey, AccessHint hint)
+    {
+    }
+
+    /**
+     * Nothing to do: the buffer manager sets the reference bit of a
+     * page it reads ahead, so the page survives one turn of the hand
+     * and is replaced on the next unless it has been used.
+     */
+    public void prefetched(int frame, long pageKey)
+    {
+    }
+
+    public void hit(int frame, AccessHint hint)
+    {
+    }
+
+    /**
+     * Nothing to do: the buffer manager does not set the reference bit
+     * when a page is unpinned with a hint other than RANDOM, which is
+     * enough for the clock to replace the frame on its next pass.
+     */
+    public void unpinned(int frame, AccessHint hint)
+    {
+    }
+
+    /**
+     * Runs the clock until it claims a frame. Gives up after two turns
+     * of the hand, by which time every unpinned frame would have lost
+     * its reference bit.
+     * @return the claimed frame, or -1 if every frame stayed pinned.
+     */
+    public int victim()
+    {
+        int numFrames = frames.length();
+        for (int count = 0; count < 2*numFrames; count++)
+        {
+            int current = (hand.getAndIncrement() & Integer.MAX_VALUE)
+                % numFrames;
+            if (frames.sweep(current))
+                return current;
+        }
+        return -1;
+    }
+
+    public void evicted(int frame, long pageKey)
+    {
+    }
+}
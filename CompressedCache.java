@@ -0,0 +1,254 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+
+/**
+ * Second level of a buffer manager's cache: clean pages replaced in
+ * the pool are kept here compressed, so that pinning one of them
+ * again costs a decompression instead of a read. Pages are
+ * compressed with the fast codec of PageCodec rather than Deflate,
+ * since a page is compressed every time it is replaced. The cache is
+ * exclusive of the pool, since a page is taken out of it when it goes
+ * back into the pool, and it holds at most a given number of bytes,
+ * replacing the pages that were put in longest ago first. A page that
+ * does not compress by at least an eighth is kept as it is.
+ *
+ * A page is put in two steps. Its slot is reserved while the page is
+ * taken out of the page table, under the page table stripe's lock, and
+ * filled in once the page has been compressed with no lock held. A
+ * slot taken, removed or reserved again in between is not filled, so
+ * the cache never holds an image older than the one the page's last
+ * replacement left behind.
+ */
+class CompressedCache
+{
+    /**
+     * Slot of one page. The image is null until the slot is filled.
+     */
+    static class Slot
+    {
+        private final long key;
+        private byte[] image;
+
+        private Slot(long key)
+        {
+            this.key = key;
+        }
+    }
+
+    // Rough cost of a slot beyond its image: the slot, its map entry
+    // and the image's array header. Counted so that a cache of pages
+    // that compress very well still stays near its size.
+    private static final int SLOT_OVERHEAD = 96;
+
+    private final int pageSize;
+    private final long maxBytes;
+
+    // Slots in the order they were reserved, and the bytes they hold.
+    // Both are guarded by lock, which is never held while another
+    // lock is taken.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Long, Slot> slots =
+        new LinkedHashMap<Long, Slot>();
+    private long bytes;
+
+    private final ThreadLocal<byte[]> scratch;
+
+    /**
+     * Creates an empty cache.
+     * @param pageSize the size of the pages it holds.
+     * @param maxBytes the most bytes it may hold.
+     */
+    CompressedCache(int pageSize, long maxBytes)
+    {
+        this.pageSize = pageSize;
+        this.maxBytes = maxBytes;
+        this.scratch =
+            ThreadLocal.withInitial(() -> new byte[pageSize - pageSize / 8]);
+    }
+
+    private static long cost(Slot slot)
+    {
+        return slot.image == null ? 0 : slot.image.length + SLOT_OVERHEAD;
+    }
+
+    /**
+     * Reserves the slot of a page that is being replaced in the pool,
+     * dropping any image the cache held of it.
+     * @return the slot, to be passed to fill().
+     */
+    Slot reserve(long key)
+    {
+        Slot slot = new Slot(key);
+        lock.lock();
+        try
+        {
+            Slot old = slots.put(key, slot);
+            if (old != null)
+                bytes -= cost(old);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        return slot;
+    }
+
+    /**
+     * Compresses a page into its reserved slot, unless the slot has
+     * since been given up, then makes room by dropping the oldest
+     * pages.
+     * @param page the page, which must not change during the call.
+     */
+    void fill(Slot slot, Page page)
+    {
+        byte[] out = scratch.get();
+        int n = PageCodec.compressFast(page.buffer(), out);
+        byte[] image;
+        if (n < 0)
+        {
+            image = new byte[pageSize];
+            page.buffer().duplicate().get(image);
+        }
+        else
+            image = Arrays.copyOf(out, n);
+
+        lock.lock();
+        try
+        {
+            if (slots.get(slot.key) != slot)
+                return;
+            slot.image = image;
+            bytes += cost(slot);
+            Iterator<Slot> oldest = slots.values().iterator();
+            while (bytes > maxBytes && oldest.hasNext())
+            {
+                bytes -= cost(oldest.next());
+                oldest.remove();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a page out of the cache, if it holds an image of it.
+     * @param page the page to read the image into.
+     * @return true if the page was read from the cache.
+     */
+    boolean take(long key, Page page)
+    {
+        Slot slot;
+        lock.lock();
+        try
+        {
+            slot = slots.remove(key);
+            if (slot != null)
+                bytes -= cost(slot);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (slot == null || slot.image == null)
+            return false;
+        if (slot.image.length == pageSize)
+        {
+            page.buffer().duplicate().put(slot.image);
+            return true;
+        }
+        try
+        {
+            PageCodec.decompressFast(slot.image, slot.image.length,
+                                     page.buffer());
+            return true;
+        }
+        catch (DataFormatException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Drops a page from the cache, if it is there.
+     */
+    void remove(long key)
+    {
+        lock.lock();
+        try
+        {
+            Slot slot = slots.remove(key);
+            if (slot != null)
+                bytes -= cost(slot);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops every page of a database from the cache.
+     * @param fileId the database's id in page table keys.
+     */
+    void removeFile(int fileId)
+    {
+        lock.lock();
+        try
+        {
+            Iterator<Map.Entry<Long, Slot>> entries =
+                slots.entrySet().iterator();
+            while (entries.hasNext())
+            {
+                Map.Entry<Long, Slot> entry = entries.next();
+                if (PageTable.fileId(entry.getKey()) == fileId)
+                {
+                    bytes -= cost(entry.getValue());
+                    entries.remove();
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of pages the cache holds.
+     */
+    int pages()
+    {
+        lock.lock();
+        try
+        {
+            return slots.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes the cache holds, counting the cost
+     * of each slot as well as its image.
+     */
+    long bytes()
+    {
+        lock.lock();
+        try
+        {
+            return bytes;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
@@ -1,12 +1,47 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Low level database file. This abstraction allows the user to treat
- * a database as a collection of pages.
+ * a database as a collection of pages. A DBFile keeps its data and
+ * space map files open until it is closed, so a single instance can
+ * be reused for any number of page operations. The space map is held
+ * in memory while the file is open (see SpaceMap); changes to it
+ * reach the disk on flush() or close(). Each database has a page
+ * size, chosen when it is created and recorded in its space map;
+ * pages read from and written to it must be of that size.
+ *
+ * Only one DBFile should have a given database open for allocation at
+ * a time, but that DBFile may be shared by several threads: page
+ * reads and writes run in parallel, and allocation is serialized by a
+ * lock. No monitor is held across I/O, so virtual threads using a
+ * DBFile do not pin their carrier threads.
+ *
+ * A database can also be opened with its data file mapped into
+ * memory, in which case pages are read and written by copying to and
+ * from the mapping, with no system call.
+ *
+ * A database can also be created with checksums of its pages, and
+ * with a double-write buffer that torn pages are repaired from; see
+ * PageProtection. These are kept in files of their own, so pages keep
+ * all of their bytes, and a database opened later is protected as it
+ * was created. Likewise, a database can be created compressed, in
+ * which case each page is stored compressed in an extent of the data
+ * file that an extent table locates (see ExtentStore), so that pages
+ * that compress well take less disk space and I/O. Compressed
+ * databases are never mapped.
  * @author Dave Musicant, with considerable material reused from the
  * UW-Madison Minibase project
  */
-public class DBFile
+public class DBFile implements Closeable
 {
     public static class NonPositiveRunSizeException
         extends RuntimeException {};
@@ -15,45 +50,176 @@ public class DBFile
         extends RuntimeException {};
     public static class EmptyFileException extends RuntimeException {};
     public static class PageNotAllocatedException extends RuntimeException {};
+    public static class BadPageSizeException extends RuntimeException {};
+
+    public static class BadChecksumException extends IOException
+    {
+        public BadChecksumException(String explanation)
+        {
+            super(explanation);
+        }
+    }
 
     private String dataFileName;
     private String mapFileName;
     private int numPages;
+    private int pageSize = Page.PAGESIZE;
+    private FileChannel dataChannel;
+    private FileChannel mapChannel;
+    private SpaceMap spaceMap;
+
+    // The data file mapped into memory, in chunks of chunkPages pages
+    // making up CHUNK_SIZE bytes, or null if the file is accessed
+    // through the channel.
+    private static final int CHUNK_SIZE = 1 << 30;
+    private int chunkPages;
+    private MappedByteBuffer[] chunks;
+
+    // Page at which the next search for a free run starts.
+    private int nextFit;
+
+    // Guards the space map and nextFit.
+    private final ReentrantLock spaceLock = new ReentrantLock();
+
+    // Set when pages or the space map have changed since the last
+    // sync().
+    private volatile boolean unsynced;
+
+    // Held while the data channel's own position is in use, by
+    // scattering reads and gathering writes, which have no positional
+    // form. Single pages are read and written with positional I/O and
+    // need no lock.
+    private final ReentrantLock positionLock = new ReentrantLock();
+
+    // Checksums of the pages and the double-write buffer, or null if
+    // the database has none. The lock is held shared by each write
+    // from the moment its pages are copied to the buffer until they
+    // are written in place, and exclusively while the buffer is
+    // emptied, so that no copy is dropped before its page is synced.
+    private PageChecksums checksums;
+    private DoubleWriteBuffer doubleWrite;
+
+    // Extents of the pages of a compressed database, or null if the
+    // database stores pages uncompressed at fixed offsets.
+    private ExtentStore extents;
+    private final ReentrantReadWriteLock doubleWriteLock =
+        new ReentrantReadWriteLock();
+
+    // Size the double-write buffer may reach before a write syncs the
+    // database to empty it.
+    private static final long DOUBLE_WRITE_LIMIT = 64L << 20;
     
     /**
-     * Creates a database with the specified number of pages. The
-     * number of pages in the database can never be increased.
+     * Creates a database with the specified number of pages of
+     * Page.PAGESIZE bytes. The number of pages in the database can
+     * never be increased.
      * @param name name to be given to database.
      * @param numPages maximum number of pages in database.
      * @throws IOException passed through from underlying filesystem.
      */
     public DBFile(String name, int numPages) throws IOException
     {
+        this(name, numPages, Page.PAGESIZE);
+    }
+
+    /**
+     * Creates a database with the specified number of pages of the
+     * given size. Neither can ever be changed.
+     * @param name name to be given to database.
+     * @param numPages maximum number of pages in database.
+     * @param pageSize page size in bytes: a power of two from
+     * Page.MIN_PAGESIZE to Page.MAX_PAGESIZE.
+     * @throws BadPageSizeException if pageSize is not a valid size.
+     * @throws IOException passed through from underlying filesystem.
+     */
+    public DBFile(String name, int numPages, int pageSize) throws IOException
+    {
+        this(name, numPages, pageSize, PageProtection.NONE);
+    }
+
+    /**
+     * Creates a database with the specified number of pages of the
+     * given size, protected against corruption as given. None of these
+     * can ever be changed.
+     * @param name name to be given to database.
+     * @param numPages maximum number of pages in database.
+     * @param pageSize page size in bytes: a power of two from
+     * Page.MIN_PAGESIZE to Page.MAX_PAGESIZE.
+     * @param protection how pages are guarded against corruption.
+     * @throws BadPageSizeException if pageSize is not a valid size.
+     * @throws IOException passed through from underlying filesystem.
+     */
+    public DBFile(String name, int numPages, int pageSize,
+                  PageProtection protection) throws IOException
+    {
+        this(name, numPages, pageSize, protection, false);
+    }
+
+    /**
+     * Creates a database with the specified number of pages of the
+     * given size, protected against corruption as given, and with its
+     * pages optionally stored compressed. None of these can ever be
+     * changed.
+     * @param name name to be given to database.
+     * @param numPages maximum number of pages in database.
+     * @param pageSize page size in bytes: a power of two from
+     * Page.MIN_PAGESIZE to Page.MAX_PAGESIZE.
+     * @param protection how pages are guarded against corruption.
+     * @param compressed whether to store pages compressed.
+     * @throws BadPageSizeException if pageSize is not a valid size.
+     * @throws IllegalArgumentException if the database is compressed
+     * and numPages is above ExtentStore.MAX_PAGES.
+     * @throws IOException passed through from underlying filesystem.
+     */
+    public DBFile(String name, int numPages, int pageSize,
+                  PageProtection protection, boolean compressed)
+        throws IOException
+    {
+        Page.checkSize(pageSize);
+        if (compressed)
+            ExtentStore.checkSize(numPages);
+        this.pageSize = pageSize;
+
         // If numPages is too small, just create it with at least two pages
         if (numPages < 2)
             numPages = 2;
 
-        // Create the file
+        // Create the file, discarding any previous contents.
         dataFileName = name;
-        RandomAccessFile dataFile = new RandomAccessFile(dataFileName,"rw");
+        dataChannel = FileChannel.open(Paths.get(dataFileName),
+                                       StandardOpenOption.CREATE,
+                                       StandardOpenOption.TRUNCATE_EXISTING,
+                                       StandardOpenOption.READ,
+                                       StandardOpenOption.WRITE);
 
-        // Make the file num_pages pages long.
-        dataFile.setLength(numPages * Page.PAGESIZE);
-        byte[] zzeros = new byte[numPages * Page.PAGESIZE];
-        dataFile.write(zzeros);
-        dataFile.close();
+        // Make the file num_pages pages long. Writing the last byte
+        // is enough: the rest of the file reads back as zeros. A
+        // compressed file grows as extents are written.
+        if (!compressed)
+            extend(dataChannel, (long)numPages * pageSize);
 
-        // Create a separate space map for each file.
+        // Create a separate space map for each file, with one bit
+        // for each page in the data file, all initially zero.
         mapFileName = name + ".map";
-        RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"rw");
+        mapChannel = FileChannel.open(Paths.get(mapFileName),
+                                      StandardOpenOption.CREATE,
+                                      StandardOpenOption.TRUNCATE_EXISTING,
+                                      StandardOpenOption.READ,
+                                      StandardOpenOption.WRITE);
+        spaceMap = SpaceMap.create(mapChannel, numPages, pageSize);
 
-        // Allocate one byte for each page in the data file.
-        mapFile.setLength(numPages); 
-
-        // Fill in map pages with zeros.
-        byte[] zeros = new byte[numPages];
-        mapFile.write(zeros);
-        mapFile.close();
+        // Whether the database is protected is told by which of these
+        // files exist, so those of an earlier database go.
+        Files.deleteIfExists(Paths.get(name + ".sum"));
+        Files.deleteIfExists(Paths.get(name + ".dwb"));
+        Files.deleteIfExists(Paths.get(name + ".ext"));
+        if (compressed)
+            extents = ExtentStore.create(name + ".ext", dataChannel,
+                                         numPages, pageSize);
+        if (protection != PageProtection.NONE)
+            checksums = PageChecksums.create(name + ".sum", numPages);
+        if (protection == PageProtection.DOUBLE_WRITE)
+            doubleWrite = DoubleWriteBuffer.create(name + ".dwb", pageSize);
 
         this.numPages = numPages;
     }
@@ -70,14 +236,418 @@ public class DBFile
         if ((new File(dataFileName)).exists())
         {
             mapFileName = name + ".map";
-            RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"rw");
-            numPages = (int)(mapFile.length());
-            mapFile.close();
+            dataChannel = FileChannel.open(Paths.get(dataFileName),
+                                           StandardOpenOption.READ,
+                                           StandardOpenOption.WRITE);
+            mapChannel = FileChannel.open(Paths.get(mapFileName),
+                                          StandardOpenOption.READ,
+                                          StandardOpenOption.WRITE);
+            spaceMap = SpaceMap.open(mapChannel);
+            numPages = spaceMap.size();
+            pageSize = spaceMap.pageSize();
+            try
+            {
+                extents = ExtentStore.open(name + ".ext", dataChannel,
+                                           numPages, pageSize);
+                checksums = PageChecksums.open(name + ".sum", numPages);
+                doubleWrite = DoubleWriteBuffer.open(name + ".dwb",
+                                                     pageSize);
+                if (doubleWrite != null && doubleWrite.size() > 0)
+                    restore();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                closeChannels();
+                throw e;
+            }
         }
         else
             numPages = 0;
     }
 
+    /**
+     * Writes the copies in the double-write buffer back in place, so
+     * that pages torn by a crash are whole again, then syncs the
+     * database and empties the buffer. Pages whose copies are intact
+     * had not been synced, so whatever is in place is no newer.
+     */
+    private void restore() throws IOException
+    {
+        for (Map.Entry<Integer, ByteBuffer> entry :
+                 doubleWrite.entries().entrySet())
+        {
+            int pageNum = entry.getKey();
+            if (pageNum < 0 || pageNum >= numPages)
+                continue;
+            ByteBuffer image = entry.getValue();
+            int sum = PageChecksums.compute(image);
+            if (extents != null)
+                extents.write(pageNum, new ByteBuffer[] {image});
+            else
+                writeFully(dataChannel, image, (long)pageNum * pageSize);
+            if (checksums != null)
+                checksums.set(pageNum, new int[] {sum});
+        }
+        dataChannel.force(false);
+        if (extents != null)
+            extents.force();
+        if (checksums != null)
+            checksums.force();
+        doubleWrite.clear();
+    }
+
+    /**
+     * Checks whether the database stores its pages compressed.
+     * @return true if the database was created compressed.
+     */
+    public boolean isCompressed()
+    {
+        return extents != null;
+    }
+
+    /**
+     * Returns how the database's pages are protected.
+     * @return the protection the database was created with.
+     */
+    public PageProtection getProtection()
+    {
+        if (doubleWrite != null)
+            return PageProtection.DOUBLE_WRITE;
+        return checksums != null ? PageProtection.CHECKSUMS
+            : PageProtection.NONE;
+    }
+
+    /**
+     * Opens the database with the given name, optionally mapping its
+     * data file into memory. The mapping is split into chunks so that
+     * files larger than 2 GB can be mapped. A compressed database is
+     * opened unmapped.
+     * @param name name of the database.
+     * @param mapped whether to map the data file.
+     * @throws IOException passed through from underlying file system.
+     */
+    public DBFile(String name, boolean mapped) throws IOException
+    {
+        this(name);
+        if (!mapped || numPages == 0 || extents != null)
+            return;
+
+        chunkPages = CHUNK_SIZE / pageSize;
+        int numChunks = (numPages + chunkPages - 1) / chunkPages;
+        chunks = new MappedByteBuffer[numChunks];
+        for (int i=0; i < numChunks; i++)
+        {
+            long start = (long)i * CHUNK_SIZE;
+            int pages = Math.min(chunkPages, numPages - i * chunkPages);
+            chunks[i] = dataChannel.map(FileChannel.MapMode.READ_WRITE,
+                                        start, (long)pages * pageSize);
+        }
+    }
+
+    /**
+     * Checks whether the data file is mapped into memory.
+     * @return true if the database was opened mapped.
+     */
+    public boolean isMapped()
+    {
+        return chunks != null;
+    }
+
+    /**
+     * Returns a view of a page's bytes in the mapping.
+     */
+    private ByteBuffer mapped(int pageNum)
+    {
+        return chunks[pageNum / chunkPages]
+            .slice(pageNum % chunkPages * pageSize, pageSize);
+    }
+
+    /**
+     * Returns a read-only page that is a view of a page of a mapped
+     * database, without copying it. The view shows the page as it is
+     * in the file, including later writes to it. The page is checked
+     * against its checksum, if it has one, when the view is made.
+     * @param pageNum the page number.
+     * @return a page whose buffer() is read-only.
+     * @throws IllegalStateException if the database is not mapped.
+     * @throws BadPageNumberException if pageNum is not in the file.
+     * @throws PageNotAllocatedException if pageNum is not allocated.
+     * @throws BadChecksumException if the page fails its checksum.
+     */
+    public Page mappedPage(int pageNum) throws BadChecksumException
+    {
+        if (chunks == null)
+            throw new IllegalStateException("Database is not mapped");
+        if (pageNum < 0 || pageNum > numPages-1)
+            throw new BadPageNumberException();
+        if (!isAllocated(pageNum))
+            throw new PageNotAllocatedException();
+        ByteBuffer view = mapped(pageNum).asReadOnlyBuffer();
+        verify(pageNum, view);
+        return new Page(view);
+    }
+
+    /**
+     * Checks a page just read against its checksum.
+     */
+    private void verify(int pageNum, ByteBuffer page)
+        throws BadChecksumException
+    {
+        if (checksums != null && !checksums.verify(pageNum, page))
+            throw new BadChecksumException("Page " + pageNum + " of "
+                                           + dataFileName
+                                           + " failed its checksum");
+    }
+
+    /**
+     * Gets a run of pages ready to be written in place: replaces each
+     * buffer with a copy of the page, computes the copies' checksums,
+     * and forces the copies to the double-write buffer if there is
+     * one, in which case the double-write lock is held shared when
+     * this returns and endWrite() releases it. A page may be changed
+     * by a thread that has it pinned while it is being written, so
+     * the bytes checksummed, copied aside and written in place must
+     * all be taken from one copy, or the checksum could disagree with
+     * the page on disk.
+     * @param buffers the pages' buffers, replaced by their copies if
+     * the database keeps checksums.
+     * @return the checksums, or null if the database keeps none.
+     */
+    private int[] beginWrite(int firstPageNum, ByteBuffer[] buffers)
+        throws IOException
+    {
+        if (checksums == null)
+            return null;
+        int[] sums = new int[buffers.length];
+        for (int i=0; i < buffers.length; i++)
+        {
+            ByteBuffer copy = ByteBuffer.allocate(pageSize);
+            copy.put(buffers[i]).flip();
+            buffers[i] = copy;
+            sums[i] = PageChecksums.compute(copy);
+        }
+        if (doubleWrite == null)
+            return sums;
+
+        if (doubleWrite.size() > DOUBLE_WRITE_LIMIT)
+            sync();
+        doubleWriteLock.readLock().lock();
+        try
+        {
+            doubleWrite.write(firstPageNum, buffers);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            doubleWriteLock.readLock().unlock();
+            throw e;
+        }
+        return sums;
+    }
+
+    /**
+     * Finishes a write begun by beginWrite(), once the pages are
+     * written in place, by recording their checksums.
+     * @param written whether the pages were written.
+     */
+    private void endWrite(int firstPageNum, int[] sums, boolean written)
+        throws IOException
+    {
+        if (sums == null)
+            return;
+        try
+        {
+            if (written)
+                checksums.set(firstPageNum, sums);
+        }
+        finally
+        {
+            if (doubleWrite != null)
+                doubleWriteLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes changes to the space map back to disk, and of a
+     * compressed database changes to its extent table, which forces
+     * the data file first.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void flush() throws IOException
+    {
+        if (spaceMap == null)
+            return;
+        spaceLock.lock();
+        try
+        {
+            spaceMap.flush();
+        }
+        finally
+        {
+            spaceLock.unlock();
+        }
+        if (extents != null)
+            extents.flush();
+    }
+
+    /**
+     * Writes changes to the space map back to disk, then forces the
+     * space map and every page written since the last sync onto the
+     * storage device. Does nothing if nothing has changed.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void sync() throws IOException
+    {
+        flush();
+        if (!unsynced || dataChannel == null)
+            return;
+        if (doubleWrite == null)
+        {
+            force();
+            return;
+        }
+
+        // Once the pages are synced in place, their copies in the
+        // double-write buffer are no longer needed.
+        doubleWriteLock.writeLock().lock();
+        try
+        {
+            force();
+            doubleWrite.clear();
+        }
+        finally
+        {
+            doubleWriteLock.writeLock().unlock();
+        }
+    }
+
+    private void force() throws IOException
+    {
+        unsynced = false;
+        if (chunks != null)
+            for (MappedByteBuffer chunk : chunks)
+                chunk.force();
+        dataChannel.force(false);
+        mapChannel.force(false);
+        if (extents != null)
+            extents.force();
+        if (checksums != null)
+            checksums.force();
+    }
+
+    /**
+     * Forces a page written earlier onto the storage device. Of a
+     * mapped database only that page is forced; otherwise the whole
+     * data file is, but not the space map.
+     * @param pageNum the page number.
+     * @throws BadPageNumberException if pageNum is not in the file.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void syncPage(int pageNum) throws IOException
+    {
+        if (pageNum < 0 || pageNum > numPages-1)
+            throw new BadPageNumberException();
+        if (chunks != null)
+            chunks[pageNum / chunkPages]
+                .force(pageNum % chunkPages * pageSize, pageSize);
+        else if (extents != null)
+            extents.force();
+        else
+            dataChannel.force(false);
+        if (checksums != null)
+            checksums.force();
+    }
+
+    /**
+     * Flushes the space map and closes the underlying data and map
+     * files. The DBFile cannot be used after it has been closed.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            closeChannels();
+        }
+    }
+
+    private void closeChannels() throws IOException
+    {
+        try
+        {
+            if (dataChannel != null)
+                dataChannel.close();
+        }
+        finally
+        {
+            try
+            {
+                if (mapChannel != null)
+                    mapChannel.close();
+            }
+            finally
+            {
+                try
+                {
+                    if (checksums != null)
+                        checksums.close();
+                }
+                finally
+                {
+                    try
+                    {
+                        if (doubleWrite != null)
+                            doubleWrite.close();
+                    }
+                    finally
+                    {
+                        if (extents != null)
+                            extents.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the database.
+     * @return the name the database was created or opened with.
+     */
+    public String getName()
+    {
+        return dataFileName;
+    }
+
+    /**
+     * Returns the number of pages in the database.
+     * @return the number of pages, allocated or not.
+     */
+    public int getNumPages()
+    {
+        return numPages;
+    }
+
+    /**
+     * Returns the page size of the database.
+     * @return the page size in bytes.
+     */
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+    /**
+     * Checks that a page is the size of this database's pages.
+     */
+    private void checkSize(Page page)
+    {
+        if (page.size() != pageSize)
+            throw new BadPageSizeException();
+    }
+
     /**
      * Erases the database entirely from the filesystem. Dangerous to
      * do if still have a DBFile object that refers to this file. 
@@ -90,11 +660,16 @@ public class DBFile
         success = (new File(name)).delete();
         if (success)
             success = (new File(name + ".map")).delete();
+        (new File(name + ".sum")).delete();
+        (new File(name + ".dwb")).delete();
+        (new File(name + ".ext")).delete();
         return success;
     }
 
     /**
-     * Allocates a set of pages.
+     * Allocates a set of pages. The search for a free run starts where
+     * the previous allocation ended and wraps around to the start of
+     * the file, so that successive allocations stay contiguous.
      * @param runSize number of pages to be allocated in the run.
      * @return page number of the first page of the allocated run.
      * @throws NonPositiveRunSizeException if the run size is less
@@ -107,46 +682,30 @@ public class DBFile
         if (runSize <= 0)
             throw new NonPositiveRunSizeException();
 
-        // Load the space map into memory to look for runs of the
-        // necessary size. Technically, should do this a page at a
-        // time (since might not have enough memory). Going with a
-        // simpler approach here for expediency.
-        RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"rw");
-        mapFile.seek(0);
-        byte[] map = new byte[numPages];
-        mapFile.readFully(map);
-
-        // Loop over run starting positions
-        for (int i=0; i < mapFile.length() - (runSize-1); i++)
-        {
-            // Loop over entire possible run: give up if any spot in
-            // the possible run already has a 1 (page is taken).
-            int currentRunSize = 0;
-            for (int j=i; j < i + runSize; j++)
-            {
-                if (map[j] == 1)
-                    break;
-                else
-                    currentRunSize++;
-            }
+        if (numPages == 0)
+            throw new FileFullException();
 
-            // Found a run.
-            if (currentRunSize == runSize)
-            {
-                // Indicate pages are now used
-                byte[] mapUpdate = new byte[runSize];
-                for (int j=0; j < runSize; j++)
-                    mapUpdate[j] = 1;
-                mapFile.seek(i);
-                mapFile.write(mapUpdate);
-                mapFile.close();
-                return i;
-            }
-        }
+        spaceLock.lock();
+        try
+        {
+            int start = spaceMap.findFreeRun(nextFit, runSize);
+            if (start < 0 && nextFit > 0)
+                start = spaceMap.findFreeRun(0, runSize);
+
+            // If no run was found, the file is full.
+            if (start < 0)
+                throw new FileFullException();
 
-        // If made it to here, then no run was found.
-        mapFile.close();
-        throw new FileFullException();
+            // Indicate pages are now used
+            spaceMap.set(start, runSize, true);
+            unsynced = true;
+            nextFit = start + runSize;
+            return start;
+        }
+        finally
+        {
+            spaceLock.unlock();
+        }
     }
 
     /**
@@ -171,43 +730,55 @@ public class DBFile
             startPageNum + runSize - 1 > numPages-1)
             throw new BadPageNumberException();
 
-        byte[] mapUpdate = new byte[runSize];
-        for (int i=0; i < runSize; i++)
-            mapUpdate[i] = 0;
-        RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"rw");
-        mapFile.seek(startPageNum);
-        mapFile.write(mapUpdate);
-        mapFile.close();
+        spaceLock.lock();
+        try
+        {
+            spaceMap.set(startPageNum, runSize, false);
+            unsynced = true;
+        }
+        finally
+        {
+            spaceLock.unlock();
+        }
+        if (checksums != null)
+            checksums.clear(startPageNum, runSize);
+        if (extents != null)
+            extents.clear(startPageNum, runSize);
     }
 
     /**
      * Reads the contents of the specified page from disk into the
-     * page object provided.
+     * page object provided, with one positional read straight into the
+     * page's buffer. Any number of threads may read at once.
      * @param pageNum the page number to be read.
      * @param page a reference to an already allocated Page object.
      * @throws BadPageNumberException if pageNum is not in the file.
      * @throws IOException passed through from underlying file system.
      * @throws PageNotAllocatedException if pageNum is not allocaated.
+     * @throws BadPageSizeException if the page is not of the file's
+     * page size.
+     * @throws BadChecksumException if the page read fails its
+     * checksum.
      */
     public void readPage(int pageNum, Page page) throws IOException
     {
         if (pageNum < 0 || pageNum > numPages-1)
             throw new BadPageNumberException();
+        checkSize(page);
 
         // Make sure that page has actually been allocated
-        RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"r");
-        mapFile.seek(pageNum);
-        byte[] map = new byte[1];
-        mapFile.readFully(map);
-        if (map[0] == 0)
+        if (!isAllocated(pageNum))
             throw new PageNotAllocatedException();
-        mapFile.close();
 
         // Read the actual page from the file
-        RandomAccessFile dataFile = new RandomAccessFile(dataFileName,"r");
-        dataFile.seek(pageNum * Page.PAGESIZE);
-        dataFile.readFully(page.data);
-        dataFile.close();
+        if (chunks != null)
+            page.buffer().put(mapped(pageNum));
+        else if (extents != null)
+            extents.read(pageNum, page.buffer());
+        else
+            readFully(dataChannel, page.buffer(),
+                      (long)pageNum * pageSize);
+        verify(pageNum, page.buffer());
     }
 
     /**
@@ -218,6 +789,8 @@ public class DBFile
      * @throws BadPageNumberException if pageNum is not in the file.
      * @throws IOException passed through from underlying file system.
      * @throws PageNotAllocatedException if pageNum is not allocaated.
+     * @throws BadPageSizeException if the page is not of the file's
+     * page size.
      */
     public void writePage(int pageNum, Page page) throws IOException
     {
@@ -226,26 +799,228 @@ public class DBFile
 
         if (pageNum < 0 || pageNum > numPages-1)
             throw new BadPageNumberException();
+        checkSize(page);
 
         // Make sure that page has actually been allocated
-        RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"r");
-        mapFile.seek(pageNum);
-        byte[] map = new byte[1];
-        mapFile.readFully(map);
-        if (map[0] == 0)
+        if (!isAllocated(pageNum))
             throw new PageNotAllocatedException();
-        mapFile.close();
 
-        RandomAccessFile dataFile = new RandomAccessFile(dataFileName,"rw");
-        dataFile.seek(pageNum * Page.PAGESIZE);
-        dataFile.write(page.data);
-        dataFile.close();
+        ByteBuffer[] buffers = {page.buffer()};
+        int[] sums = beginWrite(pageNum, buffers);
+        boolean written = false;
+        try
+        {
+            if (chunks != null)
+                mapped(pageNum).put(buffers[0]);
+            else if (extents != null)
+                extents.write(pageNum, buffers);
+            else
+                writeFully(dataChannel, buffers[0],
+                           (long)pageNum * pageSize);
+            written = true;
+        }
+        finally
+        {
+            endWrite(pageNum, sums, written);
+        }
+        unsynced = true;
+    }
+
+    /**
+     * Writes a run of consecutive pages with a single gathering write.
+     * @param firstPageNum the page number of the first page of the run.
+     * @param pages the pages to write, in page order.
+     * @throws EmptyFileException() if the file has no pages within it.
+     * @throws BadPageNumberException if the run does not fit in the file.
+     * @throws IOException passed through from underlying file system.
+     * @throws PageNotAllocatedException if a page of the run is not
+     * allocated.
+     * @throws BadPageSizeException if a page is not of the file's page
+     * size.
+     */
+    public void writePages(int firstPageNum, Page[] pages) throws IOException
+    {
+        if (numPages == 0)
+            throw new EmptyFileException();
+        if (firstPageNum < 0 || pages.length > numPages - firstPageNum)
+            throw new BadPageNumberException();
+        if (pages.length == 0)
+            return;
+        ByteBuffer[] buffers = new ByteBuffer[pages.length];
+        for (int i=0; i < pages.length; i++)
+        {
+            if (!isAllocated(firstPageNum + i))
+                throw new PageNotAllocatedException();
+            checkSize(pages[i]);
+            buffers[i] = pages[i].buffer();
+        }
+        int[] sums = beginWrite(firstPageNum, buffers);
+        boolean written = false;
+        try
+        {
+            if (chunks != null)
+                for (int i=0; i < pages.length; i++)
+                    mapped(firstPageNum + i).put(buffers[i]);
+            else if (extents != null)
+                extents.write(firstPageNum, buffers);
+            else
+                writeFully(buffers, (long)firstPageNum * pageSize);
+            written = true;
+        }
+        finally
+        {
+            endWrite(firstPageNum, sums, written);
+        }
+        unsynced = true;
+    }
+
+    /**
+     * Reads a run of consecutive pages with a single scattering read,
+     * straight into the pages.
+     * @param firstPageNum the page number of the first page of the run.
+     * @param pages already allocated Page objects to read the run
+     * into, in page order.
+     * @throws BadPageNumberException if the run does not fit in the file.
+     * @throws IOException passed through from underlying file system.
+     * @throws PageNotAllocatedException if a page of the run is not
+     * allocated.
+     * @throws BadPageSizeException if a page is not of the file's page
+     * size.
+     * @throws BadChecksumException if a page read fails its checksum.
+     */
+    public void readPages(int firstPageNum, Page[] pages) throws IOException
+    {
+        if (firstPageNum < 0 || pages.length > numPages - firstPageNum)
+            throw new BadPageNumberException();
+        if (pages.length == 0)
+            return;
+        ByteBuffer[] buffers = new ByteBuffer[pages.length];
+        for (int i=0; i < pages.length; i++)
+        {
+            if (!isAllocated(firstPageNum + i))
+                throw new PageNotAllocatedException();
+            checkSize(pages[i]);
+            buffers[i] = pages[i].buffer();
+        }
+        if (chunks != null)
+            for (int i=0; i < pages.length; i++)
+                buffers[i].put(mapped(firstPageNum + i));
+        else if (extents != null)
+            for (int i=0; i < pages.length; i++)
+                extents.read(firstPageNum + i, buffers[i]);
+        else
+            readFully(buffers, (long)firstPageNum * pageSize);
+        for (int i=0; i < pages.length; i++)
+            verify(firstPageNum + i, pages[i].buffer());
+    }
+
+    /**
+     * Checks whether a page is allocated.
+     * @param pageNum a page number within the file.
+     * @return true if the page is allocated.
+     */
+    boolean isAllocated(int pageNum)
+    {
+        spaceLock.lock();
+        try
+        {
+            return spaceMap.isAllocated(pageNum);
+        }
+        finally
+        {
+            spaceLock.unlock();
+        }
+    }
+
+    /**
+     * Grows a freshly created file to the given length.
+     */
+    private static void extend(FileChannel channel, long length)
+        throws IOException
+    {
+        if (length > 0)
+            writeFully(channel, ByteBuffer.allocate(1), length - 1);
+    }
+
+    /**
+     * Fills the buffer from the channel starting at the given file
+     * position, without touching the channel's own position.
+     * @throws EOFException if the file ends before the buffer is full.
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer,
+                          long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new EOFException();
+            position += n;
+        }
+    }
+
+    /**
+     * Fills the buffers, in order, from the data file starting at the
+     * given position. FileChannel has no positional scattering read,
+     * so this moves the channel's own position, under positionLock.
+     * @throws EOFException if the file ends before the buffers are full.
+     */
+    private void readFully(ByteBuffer[] buffers, long position)
+        throws IOException
+    {
+        positionLock.lock();
+        try
+        {
+            dataChannel.position(position);
+            ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining())
+                if (dataChannel.read(buffers) < 0)
+                    throw new EOFException();
+        }
+        finally
+        {
+            positionLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffers, in order, to the data file starting at the
+     * given position, moving the channel's own position under
+     * positionLock as readFully(ByteBuffer[], long) does.
+     */
+    private void writeFully(ByteBuffer[] buffers, long position)
+        throws IOException
+    {
+        positionLock.lock();
+        try
+        {
+            dataChannel.position(position);
+            ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining())
+                dataChannel.write(buffers);
+        }
+        finally
+        {
+            positionLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the whole buffer to the channel starting at the given
+     * file position, without touching the channel's own position.
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buffer,
+                           long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
     }
 
     // Stub for testing.
     public static void main(String[] args) throws IOException
     {
         DBFile file = new DBFile("testing",5);
+        file.close();
 
         file = new DBFile("testing");
 
@@ -304,6 +1079,8 @@ public class DBFile
             System.out.println("Correctly caught unallocated page write");
         }
 
+        file.close();
+        file2.close();
         System.out.println(DBFile.erase("testing"));
         System.out.println(DBFile.erase("testagain"));
     }
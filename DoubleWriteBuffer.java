@@ -0,0 +1,149 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Double-write buffer of a database. Before pages are written in
+ * place, copies of them are appended to this file and forced to disk,
+ * so that a page torn by a crash in the middle of its write can be
+ * restored from its copy. Copies are kept until the pages written in
+ * place have been synced, when the buffer is emptied. Each entry is
+ * the page number, a CRC-32C of the page number and image, and the
+ * page image; an entry torn by a crash fails its check and is
+ * ignored, since its page had not been written in place yet.
+ */
+class DoubleWriteBuffer implements Closeable
+{
+    private static final int ENTRY_HEADER = 8;
+
+    private final FileChannel channel;
+    private final int pageSize;
+
+    // Where the next entry goes.
+    private final AtomicLong end;
+
+    private DoubleWriteBuffer(FileChannel channel, int pageSize, long end)
+    {
+        this.channel = channel;
+        this.pageSize = pageSize;
+        this.end = new AtomicLong(end);
+    }
+
+    /**
+     * Creates an empty double-write buffer.
+     */
+    static DoubleWriteBuffer create(String fileName, int pageSize)
+        throws IOException
+    {
+        FileChannel channel =
+            FileChannel.open(Paths.get(fileName),
+                             StandardOpenOption.CREATE,
+                             StandardOpenOption.TRUNCATE_EXISTING,
+                             StandardOpenOption.READ,
+                             StandardOpenOption.WRITE);
+        return new DoubleWriteBuffer(channel, pageSize, 0);
+    }
+
+    /**
+     * Opens a database's double-write buffer, if it has one. Entries
+     * in it are left for restore() to read.
+     * @return the buffer, or null if there is none.
+     */
+    static DoubleWriteBuffer open(String fileName, int pageSize)
+        throws IOException
+    {
+        if (!Files.exists(Paths.get(fileName)))
+            return null;
+        FileChannel channel =
+            FileChannel.open(Paths.get(fileName), StandardOpenOption.READ,
+                             StandardOpenOption.WRITE);
+        return new DoubleWriteBuffer(channel, pageSize, channel.size());
+    }
+
+    private static int entryChecksum(int pageNum, ByteBuffer image)
+    {
+        CRC32C crc = new CRC32C();
+        crc.update(image.duplicate());
+        crc.update(ByteBuffer.allocate(4).putInt(0, pageNum));
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Returns the number of bytes in the buffer.
+     */
+    long size()
+    {
+        return end.get();
+    }
+
+    /**
+     * Appends copies of a run of pages and forces them to disk.
+     * @param pages the pages' buffers, which are not moved.
+     */
+    void write(int firstPageNum, ByteBuffer[] pages) throws IOException
+    {
+        int entrySize = ENTRY_HEADER + pageSize;
+        ByteBuffer entries = ByteBuffer.allocate(pages.length * entrySize);
+        for (int i=0; i < pages.length; i++)
+        {
+            entries.putInt(firstPageNum + i)
+                .putInt(entryChecksum(firstPageNum + i, pages[i]))
+                .put(pages[i].duplicate());
+        }
+        entries.flip();
+        DBFile.writeFully(channel, entries,
+                          end.getAndAdd((long)pages.length * entrySize));
+        channel.force(false);
+    }
+
+    /**
+     * Reads back the intact entries, keeping the latest copy of each
+     * page.
+     * @return a map from page number to page image, in the order the
+     * pages were first written.
+     */
+    Map<Integer, ByteBuffer> entries() throws IOException
+    {
+        Map<Integer, ByteBuffer> images =
+            new LinkedHashMap<Integer, ByteBuffer>();
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER);
+        while (size - position >= ENTRY_HEADER + pageSize)
+        {
+            header.clear();
+            DBFile.readFully(channel, header, position);
+            ByteBuffer image = ByteBuffer.allocate(pageSize);
+            DBFile.readFully(channel, image, position + ENTRY_HEADER);
+            image.flip();
+            int pageNum = header.getInt(0);
+            if (entryChecksum(pageNum, image) == header.getInt(4))
+                images.put(pageNum, image);
+            position += ENTRY_HEADER + pageSize;
+        }
+        return images;
+    }
+
+    /**
+     * Empties the buffer once the pages copied to it are on disk in
+     * place. No write may be in progress.
+     */
+    void clear() throws IOException
+    {
+        channel.truncate(0);
+        channel.force(false);
+        end.set(0);
+    }
+
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,564 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+
+/**
+ * Compressed storage of the pages of a database. Each page is
+ * compressed with PageCodec on its way to disk and stored as an extent
+ * of whole sectors, an eighth of a page each, wherever the data file
+ * has room; an extent table in a file of its own maps each page to its
+ * extent. A page that does not compress by at least a sector is
+ * stored as it is. A page written again goes to a new extent, and
+ * its old one is only reused once the data file and table have been
+ * forced, so the table on disk never points at an extent that has
+ * since been overwritten. Changed entries are held in memory and only
+ * written to the table after the data file has been forced, so the
+ * table on disk never points at an extent that is not on disk
+ * either. Which sectors are in use is not stored but worked out from
+ * the table when the database is opened.
+ *
+ * The table file has a header made of a magic number, a format
+ * version, the number of pages and the page size, followed by an
+ * 8-byte entry per page: the first sector of the extent in the high
+ * word, and the length of the extent in bytes in the low word, with
+ * its top bit set if the page is stored uncompressed. An entry of
+ * zero means the page has not been written since it was allocated,
+ * and it reads as zeros.
+ */
+class ExtentStore implements Closeable
+{
+    public static class BadExtentException extends IOException
+    {
+        public BadExtentException(String explanation)
+        {
+            super(explanation);
+        }
+    }
+
+    /**
+     * First four bytes of an extent table ("DBXT").
+     */
+    static final int MAGIC = 0x44425854;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+
+    static final int SECTORS_PER_PAGE = 8;
+
+    // Sectors beyond two pages' worth per page, so that a run long
+    // enough for an extent can still be found when the free sectors
+    // are fragmented. Extents are placed as early in the data file as
+    // they fit, and the file is not grown while this many released
+    // sectors could be reused by forcing instead, so it only grows
+    // as far as it needs to.
+    private static final int SPARE_SECTORS = 64 * SECTORS_PER_PAGE;
+
+    // Most pages a compressed database can have, so that the sectors
+    // set aside for them, rounded up to whole words, fit in an int.
+    static final int MAX_PAGES =
+        (Integer.MAX_VALUE - 63 - SPARE_SECTORS) / (2 * SECTORS_PER_PAGE);
+
+    private static final long RAW = 1L << 31;
+
+    /**
+     * A run of changed entries taken to be written to the table.
+     */
+    private static class Run
+    {
+        final int firstPageNum;
+        final ByteBuffer bytes;
+
+        Run(int firstPageNum, ByteBuffer bytes)
+        {
+            this.firstPageNum = firstPageNum;
+            this.bytes = bytes;
+        }
+    }
+
+    private final FileChannel table;
+    private final FileChannel data;
+    private final int pageSize;
+    private final int sectorSize;
+    private final AtomicLongArray entries;
+
+    // Guards the fields below: sectors in use, one bit each, extents
+    // given up but not yet reusable, as pairs of first sector and
+    // number of sectors, how many sectors those and any a force is
+    // about to free hold, the end of the last extent ever written,
+    // and the entries changed since the table was last written, one
+    // bit each.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Lets one force run at a time, so that a writer out of room
+    // waits for a force in progress rather than giving up while it
+    // runs.
+    private final ReentrantLock forceLock = new ReentrantLock();
+
+    private final long[] words;
+    private final int numSectors;
+    private final FreeSpaceIndex index;
+    private List<int[]> released = new ArrayList<int[]>();
+    private int releasedSectors;
+    private int highWater;
+    private final long[] dirty;
+
+    private ExtentStore(FileChannel table, FileChannel data, int numPages,
+                        int pageSize, AtomicLongArray entries)
+    {
+        this.table = table;
+        this.data = data;
+        this.pageSize = pageSize;
+        this.sectorSize = pageSize / SECTORS_PER_PAGE;
+        this.entries = entries;
+        long sectors = 2L * numPages * SECTORS_PER_PAGE + SPARE_SECTORS;
+        this.numSectors = (int)((sectors + 63) / 64 * 64);
+        this.words = new long[numSectors / 64];
+        this.dirty = new long[(numPages + 63) / 64];
+        for (int i=0; i < numPages; i++)
+        {
+            long entry = entries.get(i);
+            if (entry != 0)
+            {
+                mark(sector(entry), sectors(entry), true);
+                highWater = Math.max(highWater,
+                                     sector(entry) + sectors(entry));
+            }
+        }
+        this.index = new FreeSpaceIndex(words, numSectors);
+    }
+
+    /**
+     * Creates the extent table of an empty compressed database.
+     * @param data the data file, which extents are written to.
+     * @throws IllegalArgumentException if numPages is above MAX_PAGES.
+     */
+    static ExtentStore create(String tableName, FileChannel data,
+                              int numPages, int pageSize) throws IOException
+    {
+        checkSize(numPages);
+        FileChannel table =
+            FileChannel.open(Paths.get(tableName),
+                             StandardOpenOption.CREATE,
+                             StandardOpenOption.TRUNCATE_EXISTING,
+                             StandardOpenOption.READ,
+                             StandardOpenOption.WRITE);
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(numPages)
+                .putInt(pageSize).flip();
+            DBFile.writeFully(table, header, 0);
+            DBFile.writeFully(table, ByteBuffer.allocate(1),
+                              HEADER_SIZE + (long)numPages * 8 - 1);
+            return new ExtentStore(table, data, numPages, pageSize,
+                                   new AtomicLongArray(numPages));
+        }
+        catch (IOException | RuntimeException e)
+        {
+            table.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the extent table of a database, if it is compressed.
+     * @return the store, or null if the database has no extent table.
+     * @throws BadExtentException if the table is damaged or does not
+     * match the database.
+     * @throws IllegalArgumentException if numPages is above MAX_PAGES.
+     */
+    static ExtentStore open(String tableName, FileChannel data,
+                            int numPages, int pageSize) throws IOException
+    {
+        if (!Files.exists(Paths.get(tableName)))
+            return null;
+        checkSize(numPages);
+        FileChannel table =
+            FileChannel.open(Paths.get(tableName), StandardOpenOption.READ,
+                             StandardOpenOption.WRITE);
+        try
+        {
+            ByteBuffer bytes =
+                ByteBuffer.allocate(HEADER_SIZE + numPages * 8);
+            try
+            {
+                DBFile.readFully(table, bytes, 0);
+            }
+            catch (EOFException e)
+            {
+                throw new BadExtentException("Truncated extent table");
+            }
+            if (bytes.getInt(0) != MAGIC || bytes.getInt(4) != VERSION ||
+                bytes.getInt(8) != numPages || bytes.getInt(12) != pageSize)
+                throw new BadExtentException("Extent table " + tableName
+                                             + " does not match its "
+                                             + "database");
+            AtomicLongArray entries = new AtomicLongArray(numPages);
+            for (int i=0; i < numPages; i++)
+                entries.set(i, bytes.getLong(HEADER_SIZE + i * 8));
+            return new ExtentStore(table, data, numPages, pageSize, entries);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            table.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Rejects a number of pages too large for a compressed database.
+     */
+    static void checkSize(int numPages)
+    {
+        if (numPages > MAX_PAGES)
+            throw new IllegalArgumentException("A compressed database " +
+                                               "holds at most " +
+                                               MAX_PAGES + " pages");
+    }
+
+    private static int sector(long entry)
+    {
+        return (int)(entry >>> 32);
+    }
+
+    private static int length(long entry)
+    {
+        return (int)(entry & (RAW - 1));
+    }
+
+    private int sectors(long entry)
+    {
+        return (length(entry) + sectorSize - 1) / sectorSize;
+    }
+
+    /**
+     * Reads a page into the given buffer, which is not moved.
+     * @throws BadExtentException if the page's extent cannot be
+     * decompressed.
+     */
+    void read(int pageNum, ByteBuffer page) throws IOException
+    {
+        ByteBuffer out = page.duplicate();
+        long entry = entries.get(pageNum);
+        if (entry == 0)
+        {
+            while (out.hasRemaining())
+                out.put((byte)0);
+            return;
+        }
+
+        long position = (long)sector(entry) * sectorSize;
+        if ((entry & RAW) != 0)
+        {
+            DBFile.readFully(data, out, position);
+            return;
+        }
+        ByteBuffer extent = ByteBuffer.allocate(length(entry));
+        DBFile.readFully(data, extent, position);
+        extent.flip();
+        try
+        {
+            PageCodec.decompress(extent, out);
+        }
+        catch (DataFormatException e)
+        {
+            throw new BadExtentException("Page " + pageNum
+                                         + " is damaged: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a run of pages, each to a new extent, then points their
+     * entries at the new extents.
+     * @param pages the pages' buffers, which are not moved.
+     * @throws DBFile.FileFullException if there is no room left for an
+     * extent.
+     */
+    void write(int firstPageNum, ByteBuffer[] pages) throws IOException
+    {
+        byte[] out = new byte[pageSize - sectorSize];
+        long[] written = new long[pages.length];
+        for (int i=0; i < pages.length; i++)
+        {
+            int n = PageCodec.compress(pages[i], out);
+            ByteBuffer extent = n < 0 ? pages[i].duplicate()
+                : ByteBuffer.wrap(out, 0, n);
+            int length = extent.remaining();
+            int first = allocate((length + sectorSize - 1) / sectorSize);
+            DBFile.writeFully(data, extent, (long)first * sectorSize);
+            written[i] = ((long)first << 32) | (n < 0 ? RAW : 0) | length;
+        }
+        setEntries(firstPageNum, written);
+    }
+
+    /**
+     * Forgets the extents of a run of pages being deallocated.
+     */
+    void clear(int firstPageNum, int count)
+    {
+        setEntries(firstPageNum, new long[count]);
+    }
+
+    /**
+     * Points a run of entries at new extents in memory, marks them to
+     * be written to the table, and sets aside the extents they pointed
+     * at.
+     */
+    private void setEntries(int firstPageNum, long[] values)
+    {
+        lock.lock();
+        try
+        {
+            for (int i=0; i < values.length; i++)
+            {
+                int pageNum = firstPageNum + i;
+                long old = entries.getAndSet(pageNum, values[i]);
+                if (old != 0)
+                {
+                    released.add(new int[] {sector(old), sectors(old)});
+                    releasedSectors += sectors(old);
+                }
+                dirty[pageNum / 64] |= 1L << pageNum;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the entries changed since the table was last written, as
+     * they are now, and marks them clean. The caller holds the lock.
+     * @return the runs of changed entries.
+     */
+    private List<Run> takeDirty()
+    {
+        List<Run> runs = new ArrayList<Run>();
+        int numPages = entries.length();
+        int pageNum = 0;
+        while (pageNum < numPages)
+        {
+            if ((dirty[pageNum / 64] & (1L << pageNum)) == 0)
+            {
+                pageNum++;
+                continue;
+            }
+            int first = pageNum;
+            while (pageNum < numPages &&
+                   (dirty[pageNum / 64] & (1L << pageNum)) != 0)
+                pageNum++;
+            ByteBuffer bytes = ByteBuffer.allocate((pageNum - first) * 8);
+            for (int i=first; i < pageNum; i++)
+                bytes.putLong(entries.get(i));
+            bytes.flip();
+            runs.add(new Run(first, bytes));
+        }
+        Arrays.fill(dirty, 0);
+        return runs;
+    }
+
+    /**
+     * Forces the data file, then writes the entries changed since the
+     * table was last written, which point only at extents written
+     * before they were taken. The caller holds forceLock, so that
+     * tables taken earlier are never written over later ones. If the
+     * write fails, the entries are marked to be written again.
+     */
+    private void writeTable() throws IOException
+    {
+        List<Run> runs;
+        lock.lock();
+        try
+        {
+            runs = takeDirty();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (runs.isEmpty())
+            return;
+        try
+        {
+            data.force(false);
+            for (Run run : runs)
+                DBFile.writeFully(table, run.bytes,
+                                  HEADER_SIZE + (long)run.firstPageNum * 8);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            lock.lock();
+            try
+            {
+                for (Run run : runs)
+                {
+                    int end = run.firstPageNum + run.bytes.capacity() / 8;
+                    for (int i=run.firstPageNum; i < end; i++)
+                        dirty[i / 64] |= 1L << i;
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the entries changed since the table was last written,
+     * forcing the data file first, without forcing the table.
+     */
+    void flush() throws IOException
+    {
+        forceLock.lock();
+        try
+        {
+            writeTable();
+        }
+        finally
+        {
+            forceLock.unlock();
+        }
+    }
+
+    /**
+     * Finds and takes the first run of free sectors long enough. If
+     * there is none, or taking it would grow the data file while there
+     * are enough released sectors to be worth reusing, the store is
+     * forced so that they can be, and the search is tried again.
+     */
+    private int allocate(int count) throws IOException
+    {
+        boolean freed = true;
+        while (true)
+        {
+            lock.lock();
+            try
+            {
+                int first = index.find(0, count);
+                if (first >= 0 && (first + count <= highWater || !freed ||
+                                   releasedSectors < SPARE_SECTORS))
+                {
+                    mark(first, count, true);
+                    index.update(first, first + count);
+                    highWater = Math.max(highWater, first + count);
+                    return first;
+                }
+                if (first < 0 && !freed)
+                    throw new DBFile.FileFullException();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            freed = reclaim() > 0;
+        }
+    }
+
+    private void mark(int first, int count, boolean used)
+    {
+        int end = first + count;
+        for (int w=first / 64; w <= (end - 1) / 64; w++)
+        {
+            int lo = Math.max(first - w * 64, 0);
+            int hi = Math.min(end - w * 64, 64);
+            long mask = (-1L << lo) & (hi == 64 ? -1L : ~(-1L << hi));
+            if (used)
+                words[w] |= mask;
+            else
+                words[w] &= ~mask;
+        }
+    }
+
+    /**
+     * Forces the data file, writes the changed entries to the table,
+     * and forces the table to disk. Extents released before this was
+     * called become reusable: the extents that replaced them were
+     * written before they were released, so both they and the entries
+     * pointing at them are on disk by then.
+     */
+    void force() throws IOException
+    {
+        reclaim();
+    }
+
+    /**
+     * Forces the store and frees the extents released before the
+     * force began.
+     * @return the number of sectors freed.
+     */
+    private int reclaim() throws IOException
+    {
+        forceLock.lock();
+        try
+        {
+            List<int[]> reusable;
+            int count = 0;
+            lock.lock();
+            try
+            {
+                reusable = released;
+                released = new ArrayList<int[]>();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            try
+            {
+                writeTable();
+                table.force(false);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // Still released; freed by the next force that works.
+                lock.lock();
+                try
+                {
+                    reusable.addAll(released);
+                    released = reusable;
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                throw e;
+            }
+            lock.lock();
+            try
+            {
+                for (int[] extent : reusable)
+                {
+                    mark(extent[0], extent[1], false);
+                    index.update(extent[0], extent[0] + extent[1]);
+                    count += extent[1];
+                }
+                releasedSectors -= count;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            return count;
+        }
+        finally
+        {
+            forceLock.unlock();
+        }
+    }
+
+    public void close() throws IOException
+    {
+        table.close();
+    }
+}
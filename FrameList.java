@@ -0,0 +1,139 @@
+import java.util.Arrays;
+
+/**
+ * Doubly linked list of frame indices, kept in arrays so that adding,
+ * removing and moving a frame take constant time and allocate
+ * nothing. Used by the replacement policies that keep frames in
+ * recency order. Not thread-safe; the policies lock around it.
+ */
+class FrameList
+{
+    private static final int NONE = -1;
+
+    private int[] prev;
+    private int[] next;
+    private boolean[] member;
+    private int head;
+    private int tail;
+    private int size;
+
+    /**
+     * Creates an empty list for frames of a pool.
+     * @param numFrames number of frames in the pool.
+     */
+    FrameList(int numFrames)
+    {
+        prev = new int[numFrames];
+        next = new int[numFrames];
+        member = new boolean[numFrames];
+        head = NONE;
+        tail = NONE;
+        Arrays.fill(prev, NONE);
+        Arrays.fill(next, NONE);
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    boolean contains(int frame)
+    {
+        return member[frame];
+    }
+
+    /**
+     * Returns the frame at the front (least recent end) of the list.
+     * @return the first frame, or -1 if the list is empty.
+     */
+    int first()
+    {
+        return head;
+    }
+
+    /**
+     * Returns the frame after the given one.
+     * @param frame a frame on the list.
+     * @return the following frame, or -1 at the end of the list.
+     */
+    int next(int frame)
+    {
+        return next[frame];
+    }
+
+    /**
+     * Adds a frame at the back (most recent end) of the list, moving
+     * it there if it is already on the list.
+     * @param frame the frame to add.
+     */
+    void addLast(int frame)
+    {
+        if (member[frame])
+            remove(frame);
+        prev[frame] = tail;
+        next[frame] = NONE;
+        if (tail == NONE)
+            head = frame;
+        else
+            next[tail] = frame;
+        tail = frame;
+        member[frame] = true;
+        size++;
+    }
+
+    /**
+     * Adds a frame at the front (least recent end) of the list, moving
+     * it there if it is already on the list.
+     * @param frame the frame to add.
+     */
+    void addFirst(int frame)
+    {
+        if (member[frame])
+            remove(frame);
+        prev[frame] = NONE;
+        next[frame] = head;
+        if (head == NONE)
+            tail = frame;
+        else
+            prev[head] = frame;
+        head = frame;
+        member[frame] = true;
+        size++;
+    }
+
+    /**
+     * Removes a frame from the list if it is on it.
+     * @param frame the frame to remove.
+     */
+    void remove(int frame)
+    {
+        if (!member[frame])
+            return;
+        if (prev[frame] == NONE)
+            head = next[frame];
+        else
+            next[prev[frame]] = next[frame];
+        if (next[frame] == NONE)
+            tail = prev[frame];
+        else
+            prev[next[frame]] = prev[frame];
+        prev[frame] = NONE;
+        next[frame] = NONE;
+        member[frame] = false;
+        size--;
+    }
+
+    /**
+     * Claims the first frame on the list, in list order, that is not
+     * pinned.
+     * @param states the pool's frame states.
+     * @return the claimed frame, or -1 if every frame is pinned.
+     */
+    int claimFirst(FrameStates states)
+    {
+        for (int frame=head; frame != NONE; frame = next[frame])
+            if (states.tryClaim(frame))
+                return frame;
+        return NONE;
+    }
+}
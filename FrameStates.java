@@ -0,0 +1,186 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replacement state of the frames of a buffer pool. Each frame's pin
+ * count and reference bit are packed into one long so that they can
+ * be read and changed together with a single compare-and-set, which
+ * lets any number of threads pin, unpin and sweep frames without
+ * holding a lock. The number of attempts to claim a frame is counted,
+ * as a measure of how hard victims are to find.
+ */
+class FrameStates
+{
+    // The low 32 bits hold the pin count.
+    private static final long PINS = 0xFFFFFFFFL;
+    private static final long REFERENCE = 1L << 32;
+
+    private final AtomicLongArray states;
+    private final LongAdder steps = new LongAdder();
+
+    /**
+     * Creates the state of a pool with every frame unpinned and
+     * unreferenced.
+     * @param numFrames number of frames in the pool.
+     */
+    FrameStates(int numFrames)
+    {
+        states = new AtomicLongArray(numFrames);
+    }
+
+    /**
+     * Returns the number of frames.
+     * @return the number of frames.
+     */
+    int length()
+    {
+        return states.length();
+    }
+
+    /**
+     * Returns the pin count of a frame.
+     * @param frame the frame index.
+     * @return the pin count.
+     */
+    int pinCount(int frame)
+    {
+        return (int)(states.get(frame) & PINS);
+    }
+
+    /**
+     * Checks the reference bit of a frame.
+     * @param frame the frame index.
+     * @return true if the frame was used since the clock last passed.
+     */
+    boolean isReferenced(int frame)
+    {
+        return (states.get(frame) & REFERENCE) != 0;
+    }
+
+    /**
+     * Adds a pin to a frame.
+     * @param frame the frame index.
+     */
+    void pin(int frame)
+    {
+        states.getAndIncrement(frame);
+    }
+
+    /**
+     * Removes a pin from a frame, setting the reference bit in the
+     * same step if asked to.
+     * @param frame the frame index.
+     * @param reference whether to mark the frame as recently used.
+     * @return the remaining pin count, or -1 if the frame was not
+     * pinned, in which case nothing changed.
+     */
+    int unpin(int frame, boolean reference)
+    {
+        while (true)
+        {
+            long state = states.get(frame);
+            if ((state & PINS) == 0)
+                return -1;
+            long next = state - 1;
+            if (reference)
+                next |= REFERENCE;
+            if (states.compareAndSet(frame, state, next))
+                return (int)(next & PINS);
+        }
+    }
+
+    /**
+     * Claims a frame that is unpinned by giving it a pin count of
+     * one, regardless of its reference bit.
+     * @param frame the frame index.
+     * @return true if the frame was claimed.
+     */
+    boolean tryClaim(int frame)
+    {
+        steps.increment();
+        while (true)
+        {
+            long state = states.get(frame);
+            if ((state & PINS) != 0)
+                return false;
+            if (states.compareAndSet(frame, state, (state & ~REFERENCE) + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Claims a frame that is unpinned and has not been used since its
+     * reference bit was last cleared.
+     * @param frame the frame index.
+     * @return true if the frame was claimed.
+     */
+    boolean tryClaimUnreferenced(int frame)
+    {
+        steps.increment();
+        while (true)
+        {
+            long state = states.get(frame);
+            if ((state & (PINS | REFERENCE)) != 0)
+                return false;
+            if (states.compareAndSet(frame, state, state + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Visits a frame with the clock hand. An unpinned frame with its
+     * reference bit set loses the bit; an unpinned frame without it is
+     * claimed with a pin count of one.
+     * @param frame the frame index.
+     * @return true if the frame was claimed.
+     */
+    boolean sweep(int frame)
+    {
+        steps.increment();
+        while (true)
+        {
+            long state = states.get(frame);
+            if ((state & PINS) != 0)
+                return false;
+            if ((state & REFERENCE) != 0)
+            {
+                if (states.compareAndSet(frame, state, state & ~REFERENCE))
+                    return false;
+            }
+            else if (states.compareAndSet(frame, state, state + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Returns the number of calls to tryClaim(), tryClaimUnreferenced()
+     * and sweep() so far.
+     * @return the number of frames looked at to claim one.
+     */
+    long steps()
+    {
+        return steps.sum();
+    }
+
+    /**
+     * Sets the count returned by steps() back to zero.
+     */
+    void resetSteps()
+    {
+        steps.reset();
+    }
+
+    /**
+     * Clears the reference bit of a frame.
+     * @param frame the frame index.
+     */
+    void clearReference(int frame)
+    {
+        while (true)
+        {
+            long state = states.get(frame);
+            if (states.compareAndSet(frame, state, state & ~REFERENCE))
+                return;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Index over the free pages of a space map, used to find runs of free
+ * pages without scanning the whole map. It is a segment tree whose
+ * leaves are the 64-page words of the map's bitmap; every node
+ * records the longest free run inside the pages it covers and the
+ * free runs touching its two ends. Finding a run and updating the
+ * tree after an allocation or deallocation take logarithmic time in
+ * the number of words, and freed runs merge with their free
+ * neighbours automatically.
+ */
+class FreeSpaceIndex
+{
+    private static final int WORD = 64;
+
+    private long[] words;
+    private int numPages;
+    private int numLeaves;
+
+    // Per node: free pages at the start, at the end, and the longest
+    // free run. Node 1 is the root, node i has children 2i and 2i+1,
+    // and leaf w is node numLeaves + w.
+    private int[] prefix;
+    private int[] suffix;
+    private int[] longest;
+
+    // Free pages seen just before the node being searched, in a run
+    // that starts at or after the search position.
+    private int carry;
+
+    /**
+     * Builds the index over a bitmap in which set bits are allocated
+     * pages. The index reads the array directly, so update() must be
+     * called whenever the bitmap changes.
+     * @param words the bitmap, 64 pages per word, least significant
+     * bit first.
+     * @param numPages number of pages in the bitmap.
+     */
+    FreeSpaceIndex(long[] words, int numPages)
+    {
+        this.words = words;
+        this.numPages = numPages;
+        this.numLeaves = 1;
+        while (numLeaves < words.length)
+            numLeaves *= 2;
+        prefix = new int[2 * numLeaves];
+        suffix = new int[2 * numLeaves];
+        longest = new int[2 * numLeaves];
+
+        for (int w=0; w < words.length; w++)
+            setLeaf(w);
+        for (int i=numLeaves-1; i > 0; i--)
+            combine(i);
+    }
+
+    /**
+     * Refreshes the index after pages in the given range changed in
+     * the bitmap.
+     * @param fromPage first changed page.
+     * @param toPage one past the last changed page.
+     */
+    void update(int fromPage, int toPage)
+    {
+        int lo = numLeaves + fromPage / WORD;
+        int hi = numLeaves + (toPage - 1) / WORD;
+        for (int i=lo; i <= hi; i++)
+            setLeaf(i - numLeaves);
+        while (lo > 1)
+        {
+            lo /= 2;
+            hi /= 2;
+            for (int i=lo; i <= hi; i++)
+                combine(i);
+        }
+    }
+
+    /**
+     * Finds the first run of free pages of the given size that starts
+     * at or after a page.
+     * @param fromPage the page at which to start looking.
+     * @param runSize number of free pages needed.
+     * @return the first page of the run, or -1 if there is none.
+     */
+    int find(int fromPage, int runSize)
+    {
+        if (runSize > longest[1] || fromPage >= numPages)
+            return -1;
+        carry = 0;
+        return find(1, 0, (long)numLeaves * WORD, Math.max(fromPage, 0),
+                    runSize);
+    }
+
+    // Node bounds are longs: the leaves cover the pages rounded up to a
+    // power of two words, which may not fit in an int.
+    private int find(int node, long nodeLo, long nodeHi, int from,
+                     int runSize)
+    {
+        if (nodeHi <= from)
+            return -1;
+
+        if (nodeLo >= from)
+        {
+            if (carry + prefix[node] >= runSize)
+                return (int)(nodeLo - carry);
+            if (longest[node] < runSize)
+            {
+                if (prefix[node] == nodeHi - nodeLo)
+                    carry += prefix[node];
+                else
+                    carry = suffix[node];
+                return -1;
+            }
+        }
+
+        if (node >= numLeaves)
+            return scanLeaf(node - numLeaves, (int)Math.max(from, nodeLo),
+                            runSize);
+
+        long mid = (nodeLo + nodeHi) / 2;
+        int found = find(2 * node, nodeLo, mid, from, runSize);
+        if (found < 0)
+            found = find(2 * node + 1, mid, nodeHi, from, runSize);
+        return found;
+    }
+
+    /**
+     * Looks for the run bit by bit inside one word, continuing the
+     * run counted in carry.
+     */
+    private int scanLeaf(int w, int from, int runSize)
+    {
+        // Pages past the end are allocated, so the scan can stop there.
+        long used = usedBits(w);
+        int end = (int)Math.min((long)(w + 1) * WORD, numPages);
+        for (int page=from; page < end; page++)
+        {
+            if ((used & (1L << (page % WORD))) != 0)
+                carry = 0;
+            else if (++carry == runSize)
+                return page - runSize + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the allocated bits of a word, with pages past the end of
+     * the file treated as allocated.
+     */
+    private long usedBits(int w)
+    {
+        if (w >= words.length)
+            return -1L;
+        long used = words[w];
+        int valid = numPages - w * WORD;
+        if (valid < WORD)
+            used |= -1L << valid;
+        return used;
+    }
+
+    private void setLeaf(int w)
+    {
+        long used = usedBits(w);
+        int node = numLeaves + w;
+        prefix[node] = Long.numberOfTrailingZeros(used);
+        suffix[node] = Long.numberOfLeadingZeros(used);
+
+        // Longest run of free pages: strip one run at a time.
+        long free = ~used;
+        int best = 0;
+        while (free != 0)
+        {
+            int start = Long.numberOfTrailingZeros(free);
+            int run = Long.numberOfTrailingZeros(~(free >>> start));
+            best = Math.max(best, run);
+            free = start + run == WORD ? 0 : free & (-1L << (start + run));
+        }
+        longest[node] = best;
+    }
+
+    private void combine(int node)
+    {
+        int left = 2 * node;
+        int right = left + 1;
+        int half = (numLeaves / Integer.highestOneBit(node)) * (WORD / 2);
+
+        prefix[node] = prefix[left] == half ? half + prefix[right]
+                                            : prefix[left];
+        suffix[node] = suffix[right] == half ? half + suffix[left]
+                                             : suffix[right];
+        longest[node] = Math.max(Math.max(longest[left], longest[right]),
+                                 suffix[left] + prefix[right]);
+    }
+}
@@ -0,0 +1,293 @@
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). The victim is the
+ * unpinned page whose K-th most recent use lies furthest in the past;
+ * pages used fewer than K times go first, oldest last use first. A
+ * page used once during a scan therefore loses to a page that is used
+ * repeatedly, even if the scan touched it more recently. The use
+ * history of evicted pages is kept for as many pages as the pool
+ * holds, so a page that comes back soon is not treated as new.
+ *
+ * Only uses with the RANDOM hint count. A page brought in by a scan
+ * or for a single use has no recorded uses until it is used normally,
+ * so it ranks ahead of every page that has been. A page read ahead
+ * is given one use, at the time it was read, which its first real
+ * use replaces.
+ */
+public class LRUKPolicy implements ReplacementPolicy
+{
+    private final int k;
+    private final ReentrantLock lock;
+    private FrameStates frames;
+
+    // Logical time of each use; 0 means no use.
+    private long now;
+
+    // Per frame: times of the last k uses, most recent first.
+    private long[][] history;
+
+    // Frames holding pages, as a binary min-heap in eviction order,
+    // and the position of each frame in it, or -1 if it is not in the
+    // heap. A frame's history is only changed while it is out of the
+    // heap, so the heap stays in order.
+    private int[] heap;
+    private int heapSize;
+    private int[] position;
+
+    // Frames taken off the heap by victim() because they were pinned.
+    private int[] skipped;
+
+    // Frames read ahead and not used since.
+    private boolean[] speculative;
+    private FrameList free;
+    private LinkedHashMap<Long, long[]> retained;
+
+    /**
+     * Creates an LRU-2 policy.
+     */
+    public LRUKPolicy()
+    {
+        this(2);
+    }
+
+    /**
+     * Creates an LRU-K policy.
+     * @param k number of past uses that decide a page's rank.
+     */
+    public LRUKPolicy(int k)
+    {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be positive");
+        this.k = k;
+        this.lock = new ReentrantLock();
+    }
+
+    public void attach(FrameStates frames)
+    {
+        if (this.frames != null)
+            throw new IllegalStateException("Policy already in use");
+        this.frames = frames;
+
+        final int numFrames = frames.length();
+        history = new long[numFrames][];
+        speculative = new boolean[numFrames];
+        heap = new int[numFrames];
+        position = new int[numFrames];
+        Arrays.fill(position, -1);
+        skipped = new int[numFrames];
+        free = new FrameList(numFrames);
+        for (int i = 0; i < numFrames; i++)
+            free.addLast(i);
+        retained = new LinkedHashMap<Long, long[]>() {
+            protected boolean removeEldestEntry(Map.Entry<Long, long[]> e)
+            {
+                return size() > numFrames;
+            }
+        };
+    }
+
+    /**
+     * Checks whether frame a goes before frame b.
+     */
+    private boolean before(int a, int b)
+    {
+        long[] ha = history[a];
+        long[] hb = history[b];
+        if (ha[k-1] != hb[k-1])
+            return ha[k-1] < hb[k-1];
+        if (ha[0] != hb[0])
+            return ha[0] < hb[0];
+        return a < b;
+    }
+
+    private void place(int frame, int i)
+    {
+        heap[i] = frame;
+        position[frame] = i;
+    }
+
+    private void siftUp(int frame, int i)
+    {
+        while (i > 0)
+        {
+            int parent = (i - 1) / 2;
+            if (!before(frame, heap[parent]))
+                break;
+            place(heap[parent], i);
+            i = parent;
+        }
+        place(frame, i);
+    }
+
+    private void siftDown(int frame, int i)
+    {
+        while (true)
+        {
+            int child = 2 * i + 1;
+            if (child >= heapSize)
+                break;
+            if (child + 1 < heapSize && before(heap[child + 1], heap[child]))
+                child++;
+            if (!before(heap[child], frame))
+                break;
+            place(heap[child], i);
+            i = child;
+        }
+        place(frame, i);
+    }
+
+    private void add(int frame)
+    {
+        siftUp(frame, heapSize++);
+    }
+
+    /**
+     * Takes a frame off the heap.
+     * @return false if it was not on it.
+     */
+    private boolean remove(int frame)
+    {
+        int i = position[frame];
+        if (i < 0)
+            return false;
+        position[frame] = -1;
+        int last = heap[--heapSize];
+        if (i < heapSize)
+        {
+            siftDown(last, i);
+            if (heap[i] == last)
+                siftUp(last, i);
+        }
+        return true;
+    }
+
+    private void use(int frame)
+    {
+        long[] h = history[frame];
+        System.arraycopy(h, 0, h, 1, k - 1);
+        h[0] = ++now;
+    }
+
+    public void loaded(int frame, long pageKey, AccessHint hint)
+    {
+        lock.lock();
+        try
+        {
+            free.remove(frame);
+            long[] h = retained.remove(pageKey);
+            history[frame] = h != null ? h : new long[k];
+            if (hint == AccessHint.RANDOM)
+                use(frame);
+            speculative[frame] = false;
+            add(frame);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void prefetched(int frame, long pageKey)
+    {
+        lock.lock();
+        try
+        {
+            free.remove(frame);
+            long[] h = retained.remove(pageKey);
+            history[frame] = h != null ? h : new long[k];
+            if (h == null)
+            {
+                use(frame);
+                speculative[frame] = true;
+            }
+            add(frame);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void hit(int frame, AccessHint hint)
+    {
+        if (hint != AccessHint.RANDOM)
+            return;
+        lock.lock();
+        try
+        {
+            // Re-insert, since the frame's rank changes.
+            if (remove(frame))
+            {
+                if (speculative[frame])
+                {
+                    history[frame][0] = ++now;
+                    speculative[frame] = false;
+                }
+                else
+                    use(frame);
+                add(frame);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void unpinned(int frame, AccessHint hint)
+    {
+    }
+
+    public int victim()
+    {
+        lock.lock();
+        try
+        {
+            int frame = free.claimFirst(frames);
+            if (frame >= 0)
+                return frame;
+
+            // Pinned frames at the top of the heap are taken off, so
+            // that the next one surfaces, and put back afterwards.
+            int numSkipped = 0;
+            frame = -1;
+            while (heapSize > 0)
+            {
+                int candidate = heap[0];
+                if (frames.tryClaim(candidate))
+                {
+                    frame = candidate;
+                    break;
+                }
+                remove(candidate);
+                skipped[numSkipped++] = candidate;
+            }
+            for (int i=0; i < numSkipped; i++)
+                add(skipped[i]);
+            return frame;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void evicted(int frame, long pageKey)
+    {
+        lock.lock();
+        try
+        {
+            if (remove(frame) && !speculative[frame])
+                retained.put(pageKey, history[frame]);
+            history[frame] = null;
+            speculative[frame] = false;
+            free.addLast(frame);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
@@ -1,22 +1,130 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
- * Class to hold a page's worth of data in memory.
+ * Class to hold a page's worth of data in memory. A page either owns
+ * a heap array, which is then available as data, or is a view of part
+ * of a larger buffer, such as a slice of an off-heap buffer pool, in
+ * which case data is null. Either way its contents can be reached
+ * through buffer(). Pages are PAGESIZE bytes unless the database they
+ * belong to was created with another page size.
  * @author Dave Musicant, with considerable material reused from the
  * UW-Madison Minibase project
  */
 public class Page
 {
     /**
-     * Size of a page in bytes.
+     * Default size of a page in bytes.
      */
     public static final int PAGESIZE = 1024;
 
     /**
-     * Array to actually contain page data.
+     * Smallest and largest page sizes a database can have. Page sizes
+     * must also be powers of two.
+     */
+    public static final int MIN_PAGESIZE = 512;
+    public static final int MAX_PAGESIZE = 65536;
+
+    private static final byte[] ZEROS = new byte[4096];
+
+    /**
+     * Array to actually contain page data, or null if the page is a
+     * view of memory outside the Java heap.
      */
     public byte[] data;
 
+    private final ByteBuffer buffer;
+
     public Page()
     {
-        data = new byte[PAGESIZE];
+        this(PAGESIZE);
+    }
+
+    /**
+     * Creates a page of the given size.
+     * @param size the page size in bytes.
+     * @throws DBFile.BadPageSizeException if the size is not a valid
+     * page size.
+     */
+    public Page(int size)
+    {
+        checkSize(size);
+        data = new byte[size];
+        buffer = ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Creates a page that is a view of part of a buffer.
+     * @param buffer a buffer whose bytes between its position and
+     * limit become the page's contents.
+     * @throws DBFile.BadPageSizeException if the number of bytes
+     * remaining is not a valid page size.
+     */
+    public Page(ByteBuffer buffer)
+    {
+        checkSize(buffer.remaining());
+        this.buffer = buffer.slice();
+        if (this.buffer.hasArray() && this.buffer.arrayOffset() == 0 &&
+            this.buffer.array().length == this.buffer.capacity())
+            data = this.buffer.array();
+        else
+            data = null;
+    }
+
+    /**
+     * Checks that a size is a power of two between MIN_PAGESIZE and
+     * MAX_PAGESIZE.
+     * @param size a page size in bytes.
+     * @throws DBFile.BadPageSizeException if it is not.
+     */
+    static void checkSize(int size)
+    {
+        if (size < MIN_PAGESIZE || size > MAX_PAGESIZE ||
+            (size & (size - 1)) != 0)
+            throw new DBFile.BadPageSizeException();
+    }
+
+    /**
+     * Returns the size of the page.
+     * @return the page size in bytes.
+     */
+    public int size()
+    {
+        return buffer.capacity();
+    }
+
+    /**
+     * Returns a view of the page's contents. Each call returns a new
+     * view, with position 0 and limit size(), so that callers do not
+     * disturb each other's positions.
+     * @return a buffer sharing the page's contents.
+     */
+    public ByteBuffer buffer()
+    {
+        return buffer.duplicate();
+    }
+
+    /**
+     * Checks whether the page is held outside the Java heap.
+     * @return true if the page is a view of a direct buffer.
+     */
+    public boolean isDirect()
+    {
+        return buffer.isDirect();
+    }
+
+    /**
+     * Sets every byte of the page to zero.
+     */
+    void clear()
+    {
+        if (data != null)
+            Arrays.fill(data, (byte)0);
+        else
+        {
+            ByteBuffer view = buffer.duplicate();
+            while (view.hasRemaining())
+                view.put(ZEROS, 0, Math.min(ZEROS.length, view.remaining()));
+        }
     }
 }
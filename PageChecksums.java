@@ -0,0 +1,138 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32C;
+
+/**
+ * Checksums of the pages of a database, kept in a file of their own
+ * next to the data file so that pages keep all of their bytes. The
+ * file has an 8-byte slot per page, holding the CRC-32C of what was
+ * last written to the page with bit 32 set, or zero if the page has
+ * not been written since it was allocated and so cannot be checked.
+ * The slots are also held in memory, so checking a page read costs
+ * no I/O; a slot is written through to the file with the page.
+ */
+class PageChecksums implements Closeable
+{
+    private static final long PRESENT = 1L << 32;
+
+    private final FileChannel channel;
+    private final AtomicLongArray slots;
+
+    private PageChecksums(FileChannel channel, AtomicLongArray slots)
+    {
+        this.channel = channel;
+        this.slots = slots;
+    }
+
+    /**
+     * Computes the CRC-32C of a page's bytes, which the JIT turns into
+     * the processor's CRC instructions where there are any.
+     * @param page the page's buffer, which is not moved.
+     */
+    static int compute(ByteBuffer page)
+    {
+        CRC32C crc = new CRC32C();
+        crc.update(page.duplicate());
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Creates the checksum file of a database, with no page checked.
+     */
+    static PageChecksums create(String fileName, int numPages)
+        throws IOException
+    {
+        FileChannel channel =
+            FileChannel.open(Paths.get(fileName),
+                             StandardOpenOption.CREATE,
+                             StandardOpenOption.TRUNCATE_EXISTING,
+                             StandardOpenOption.READ,
+                             StandardOpenOption.WRITE);
+        DBFile.writeFully(channel, ByteBuffer.allocate(1),
+                          (long)numPages * 8 - 1);
+        return new PageChecksums(channel, new AtomicLongArray(numPages));
+    }
+
+    /**
+     * Opens the checksum file of a database, if it has one.
+     * @return the checksums, or null if there is no checksum file.
+     */
+    static PageChecksums open(String fileName, int numPages)
+        throws IOException
+    {
+        if (!Files.exists(Paths.get(fileName)))
+            return null;
+        FileChannel channel =
+            FileChannel.open(Paths.get(fileName), StandardOpenOption.READ,
+                             StandardOpenOption.WRITE);
+        try
+        {
+            // A short file leaves the pages past its end unchecked.
+            ByteBuffer bytes = ByteBuffer.allocate(numPages * 8);
+            DBFile.readFully(channel, bytes.limit(
+                (int)Math.min(bytes.capacity(), channel.size() / 8 * 8)), 0);
+            AtomicLongArray slots = new AtomicLongArray(numPages);
+            for (int i=0; i < bytes.limit() / 8; i++)
+                slots.set(i, bytes.getLong(i * 8));
+            return new PageChecksums(channel, slots);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks a page read from the database against its checksum.
+     * @return true if the page matches, or has no checksum.
+     */
+    boolean verify(int pageNum, ByteBuffer page)
+    {
+        long slot = slots.get(pageNum);
+        return slot == 0 || (int)slot == compute(page);
+    }
+
+    /**
+     * Records the checksums of a run of pages just written.
+     */
+    void set(int firstPageNum, int[] sums) throws IOException
+    {
+        ByteBuffer bytes = ByteBuffer.allocate(sums.length * 8);
+        for (int i=0; i < sums.length; i++)
+        {
+            long slot = PRESENT | (sums[i] & 0xFFFFFFFFL);
+            slots.set(firstPageNum + i, slot);
+            bytes.putLong(slot);
+        }
+        bytes.flip();
+        DBFile.writeFully(channel, bytes, (long)firstPageNum * 8);
+    }
+
+    /**
+     * Forgets the checksums of a run of pages being deallocated, so
+     * that they are not checked until written again.
+     */
+    void clear(int firstPageNum, int count) throws IOException
+    {
+        for (int i=0; i < count; i++)
+            slots.set(firstPageNum + i, 0);
+        DBFile.writeFully(channel, ByteBuffer.allocate(count * 8),
+                          (long)firstPageNum * 8);
+    }
+
+    void force() throws IOException
+    {
+        channel.force(false);
+    }
+
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,263 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of page images, with two codecs. Deflate, used for
+ * compressed storage in DBFile, compresses best but costs tens of
+ * microseconds a page, mostly in setting up each stream. A simple
+ * LZ77 codec written here, used by the compressed cache of
+ * BufferManager, compresses less but is several times faster, which
+ * is what matters for pages that are only kept in memory.
+ *
+ * The LZ77 codec writes the block format of LZ4: a run of sequences,
+ * each a token byte holding the number of literals in its high four
+ * bits and the match length less four in its low four bits, a count
+ * of 15 being continued in the bytes after it, which are added on up
+ * to and including the first that is not 255; then the literals, then
+ * the match offset in two bytes, low byte first.
+ * The last sequence is literals only. Matches are found through a
+ * hash table of four-byte prefixes, and pages are at most 64K, so
+ * every offset fits in two bytes.
+ *
+ * Each thread keeps its own Deflater, Inflater, hash table and
+ * buffers, since they are costly to make and cannot be shared.
+ */
+class PageCodec
+{
+    private static final ThreadLocal<Deflater> DEFLATER =
+        ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER =
+        ThreadLocal.withInitial(Inflater::new);
+
+    // Bits of the hash of a four-byte prefix, at most; smaller pages
+    // use fewer, so that clearing the table costs less than the page.
+    private static final int HASH_BITS = 12;
+    private static final int MIN_MATCH = 4;
+
+    // No match starts in the last 12 bytes or reaches into the last
+    // 5, as the LZ4 format requires.
+    private static final int MATCH_START_MARGIN = 12;
+    private static final int MATCH_END_MARGIN = 5;
+
+    private static final ThreadLocal<int[]> HASH_TABLE =
+        ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+    private static final ThreadLocal<byte[]> PAGE =
+        ThreadLocal.withInitial(() -> new byte[Page.MAX_PAGESIZE]);
+
+    /**
+     * Compresses a page into out with the calling thread's Deflater.
+     * @param page the page's buffer, which is not moved.
+     * @return the compressed length, or -1 if the page does not
+     * compress into out.
+     */
+    static int compress(ByteBuffer page, byte[] out)
+    {
+        return compress(DEFLATER.get(), page, out);
+    }
+
+    /**
+     * Compresses a page into out with the given Deflater.
+     * @return the compressed length, or -1 if the page does not
+     * compress into out.
+     */
+    static int compress(Deflater deflater, ByteBuffer page, byte[] out)
+    {
+        deflater.reset();
+        deflater.setInput(page.duplicate());
+        deflater.finish();
+        int n = deflater.deflate(out, 0, out.length);
+        return deflater.finished() ? n : -1;
+    }
+
+    /**
+     * Decompresses a page compressed by compress().
+     * @param compressed the compressed bytes, which are consumed.
+     * @param page the page's buffer, which is filled but not moved.
+     * @throws DataFormatException if the bytes are not a compressed
+     * page of the buffer's size.
+     */
+    static void decompress(ByteBuffer compressed, ByteBuffer page)
+        throws DataFormatException
+    {
+        ByteBuffer out = page.duplicate();
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        inflater.inflate(out);
+        if (out.hasRemaining() || !inflater.finished())
+            throw new DataFormatException("Page image is "
+                                          + out.position() + " bytes");
+    }
+
+    private static int readInt(byte[] b, int i)
+    {
+        return (b[i] & 0xFF) | (b[i+1] & 0xFF) << 8 | (b[i+2] & 0xFF) << 16
+            | b[i+3] << 24;
+    }
+
+    /**
+     * Compresses a page into out with the LZ77 codec.
+     * @param page the page's buffer, which is not moved.
+     * @return the compressed length, or -1 if the page does not
+     * compress into out.
+     */
+    static int compressFast(ByteBuffer page, byte[] out)
+    {
+        byte[] src = PAGE.get();
+        int n = page.remaining();
+        page.duplicate().get(src, 0, n);
+        int[] table = HASH_TABLE.get();
+        int hashBits = Math.min(HASH_BITS,
+                                31 - Integer.numberOfLeadingZeros(n));
+        Arrays.fill(table, 0, 1 << hashBits, -1);
+
+        int anchor = 0;
+        int ip = 0;
+        int op = 0;
+        while (ip < n - MATCH_START_MARGIN)
+        {
+            int prefix = readInt(src, ip);
+            int h = (prefix * -1640531535) >>> (32 - hashBits);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || readInt(src, ref) != prefix)
+            {
+                ip++;
+                continue;
+            }
+
+            // Grow the match backwards over the pending literals, then
+            // forwards.
+            while (ip > anchor && ref > 0 && src[ip-1] == src[ref-1])
+            {
+                ip--;
+                ref--;
+            }
+            int length = MIN_MATCH;
+            while (ip + length < n - MATCH_END_MARGIN &&
+                   src[ip + length] == src[ref + length])
+                length++;
+
+            int token = op;
+            op = sequence(out, op, src, anchor, ip - anchor);
+            if (op < 0 || op + 2 + (length - MIN_MATCH) / 255 + 1
+                > out.length)
+                return -1;
+            out[op++] = (byte)(ip - ref);
+            out[op++] = (byte)((ip - ref) >>> 8);
+            int extra = length - MIN_MATCH;
+            out[token] |= (byte)Math.min(extra, 15);
+            if (extra >= 15)
+            {
+                for (extra -= 15; extra >= 255; extra -= 255)
+                    out[op++] = (byte)255;
+                out[op++] = (byte)extra;
+            }
+            ip += length;
+            anchor = ip;
+        }
+        return sequence(out, op, src, anchor, n - anchor);
+    }
+
+    /**
+     * Writes the token and literals of a sequence, leaving the low
+     * bits of the token clear for the match length.
+     * @return the position after the literals, or -1 if they do not
+     * fit in out.
+     */
+    private static int sequence(byte[] out, int op, byte[] src, int from,
+                                int literals)
+    {
+        if (op + 1 + literals / 255 + 1 + literals > out.length)
+            return -1;
+        int token = op++;
+        if (literals >= 15)
+        {
+            out[token] = (byte)0xF0;
+            int rest = literals - 15;
+            for (; rest >= 255; rest -= 255)
+                out[op++] = (byte)255;
+            out[op++] = (byte)rest;
+        }
+        else
+            out[token] = (byte)(literals << 4);
+        System.arraycopy(src, from, out, op, literals);
+        return op + literals;
+    }
+
+    /**
+     * Decompresses a page compressed by compressFast().
+     * @param in the compressed bytes.
+     * @param length the number of compressed bytes.
+     * @param page the page's buffer, which is filled but not moved.
+     * @throws DataFormatException if the bytes are not a compressed
+     * page of the buffer's size.
+     */
+    static void decompressFast(byte[] in, int length, ByteBuffer page)
+        throws DataFormatException
+    {
+        byte[] dst = PAGE.get();
+        int n = page.remaining();
+        int ip = 0;
+        int op = 0;
+        try
+        {
+            while (true)
+            {
+                int token = in[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15)
+                {
+                    int b;
+                    do
+                        literals += b = in[ip++] & 0xFF;
+                    while (b == 255);
+                }
+                if (literals > n - op || literals > length - ip)
+                    throw new DataFormatException("Literals overrun");
+                System.arraycopy(in, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == length)
+                    break;
+
+                if (length - ip < 2)
+                    throw new DataFormatException("Truncated page image");
+                int offset = (in[ip] & 0xFF) | (in[ip+1] & 0xFF) << 8;
+                ip += 2;
+                int match = token & 0xF;
+                if (match == 15)
+                {
+                    int b;
+                    do
+                        match += b = in[ip++] & 0xFF;
+                    while (b == 255);
+                }
+                match += MIN_MATCH;
+                if (offset == 0 || offset > op || match > n - op)
+                    throw new DataFormatException("Bad match");
+                if (offset >= match)
+                {
+                    System.arraycopy(dst, op - offset, dst, op, match);
+                    op += match;
+                }
+                else
+                {
+                    // Byte by byte, since the match overlaps itself.
+                    for (int from = op - offset; match > 0; match--)
+                        dst[op++] = dst[from++];
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e)
+        {
+            throw new DataFormatException("Truncated page image");
+        }
+        if (op != n)
+            throw new DataFormatException("Page image is " + op + " bytes");
+        page.duplicate().put(dst, 0, n);
+    }
+}
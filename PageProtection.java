@@ -0,0 +1,29 @@
+/**
+ * How a database guards its pages against corruption, chosen when the
+ * database is created.
+ */
+public enum PageProtection
+{
+    /**
+     * Pages are written as they are and read back unchecked.
+     */
+    NONE,
+
+    /**
+     * A CRC-32C of each page is stamped when the page is written and
+     * checked when it is read, so a page damaged on disk, or torn by
+     * a crash during its write, is reported rather than returned.
+     * After a crash, a page written since the database was last
+     * synced may also be reported, since its checksum and its bytes
+     * may not both have reached the disk.
+     */
+    CHECKSUMS,
+
+    /**
+     * Checksums, and every page is also written to a double-write
+     * buffer, and forced there, before it is written in place. A page
+     * torn by a crash is restored from its copy when the database is
+     * next opened.
+     */
+    DOUBLE_WRITE
+}
@@ -0,0 +1,159 @@
+import java.util.Arrays;
+
+/**
+ * Hash table from pages to buffer pool frames. A page is identified
+ * by a file id and a page number packed into a single long, and the
+ * table uses open addressing with linear probing over primitive
+ * arrays, so lookups, insertions and removals allocate nothing.
+ */
+class PageTable
+{
+    /**
+     * Value returned by get() and remove() for a page that is not in
+     * the table.
+     */
+    static final int NOT_FOUND = -1;
+
+    private long[] keys;
+    private int[] frames;
+    private int size;
+    private int mask;
+
+    /**
+     * Creates a table sized for the given number of entries.
+     * @param expected number of entries the table will usually hold.
+     */
+    PageTable(int expected)
+    {
+        int capacity = 2;
+        while (capacity < 2 * expected)
+            capacity *= 2;
+        allocate(capacity);
+    }
+
+    /**
+     * Packs a file id and page number into a table key.
+     * @param fileId the id of the file.
+     * @param pageNum the page number within the file.
+     * @return the key for the page.
+     */
+    static long key(int fileId, int pageNum)
+    {
+        return ((long)fileId << 32) | (pageNum & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the file id packed into a table key.
+     */
+    static int fileId(long key)
+    {
+        return (int)(key >>> 32);
+    }
+
+    /**
+     * Returns the number of entries in the table.
+     * @return the number of pages in the table.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Looks up the frame holding a page.
+     * @param key the key of the page.
+     * @return the frame index, or NOT_FOUND.
+     */
+    int get(long key)
+    {
+        for (int slot=slot(key); frames[slot] != NOT_FOUND;
+             slot = (slot + 1) & mask)
+        {
+            if (keys[slot] == key)
+                return frames[slot];
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Records the frame holding a page, replacing any previous entry
+     * for the page.
+     * @param key the key of the page.
+     * @param frame the frame index, which must not be negative.
+     */
+    void put(long key, int frame)
+    {
+        int slot = slot(key);
+        while (frames[slot] != NOT_FOUND)
+        {
+            if (keys[slot] == key)
+            {
+                frames[slot] = frame;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        frames[slot] = frame;
+        if (++size * 2 > keys.length)
+            resize(keys.length * 2);
+    }
+
+    /**
+     * Removes the entry for a page.
+     * @param key the key of the page.
+     * @return the frame the page was in, or NOT_FOUND.
+     */
+    int remove(long key)
+    {
+        int slot = slot(key);
+        while (frames[slot] != NOT_FOUND && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        int frame = frames[slot];
+        if (frame == NOT_FOUND)
+            return NOT_FOUND;
+
+        // Shift later entries of the probe sequence back into the hole
+        // so that no tombstones are needed.
+        int hole = slot;
+        for (int next=(hole + 1) & mask; frames[next] != NOT_FOUND;
+             next = (next + 1) & mask)
+        {
+            int home = slot(keys[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask))
+            {
+                keys[hole] = keys[next];
+                frames[hole] = frames[next];
+                hole = next;
+            }
+        }
+        frames[hole] = NOT_FOUND;
+        size--;
+        return frame;
+    }
+
+    private int slot(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    private void allocate(int capacity)
+    {
+        keys = new long[capacity];
+        frames = new int[capacity];
+        Arrays.fill(frames, NOT_FOUND);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private void resize(int capacity)
+    {
+        long[] oldKeys = keys;
+        int[] oldFrames = frames;
+        allocate(capacity);
+        for (int i=0; i < oldKeys.length; i++)
+            if (oldFrames[i] != NOT_FOUND)
+                put(oldKeys[i], oldFrames[i]);
+    }
+}
@@ -23,14 +23,15 @@ public class Pair<X,Y>
 
     @Override
     public int hashCode() {
-	return Objects.hash(first, second);
+	return 31 * Objects.hashCode(first) + Objects.hashCode(second);
     }
 
     @Override
     public boolean equals(Object o) {
 	if (o instanceof Pair) {
-	    Pair<X,Y> other = (Pair<X,Y>) o;
-	    return (first == other.first && second == other.second);
+	    Pair<?,?> other = (Pair<?,?>) o;
+	    return Objects.equals(first, other.first) &&
+		Objects.equals(second, other.second);
 	}
 	return false;
     }
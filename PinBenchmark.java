@@ -0,0 +1,132 @@
+import java.io.*;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark for many threads pinning and unpinning random pages of a
+ * database larger than the buffer pool, so that most pins miss and
+ * go to the file. The same workload runs once with a platform thread
+ * per task and once with a virtual thread per task, and the pins per
+ * second of each are reported. Virtual threads need Java 21; on older
+ * runtimes only the platform thread run is made.
+ *
+ * Usage: java PinBenchmark [threads [poolSize [numPages [pinsPerThread]]]]
+ */
+public class PinBenchmark
+{
+    private static final String DBNAME = "__pinbench";
+
+    /**
+     * Returns an executor that starts a virtual thread for each task,
+     * or null if the runtime has no virtual threads. Looked up
+     * reflectively so that the benchmark still builds on Java 17.
+     */
+    static ExecutorService virtualExecutor()
+    {
+        try
+        {
+            return (ExecutorService)Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Runs the workload on an executor and returns the pins per
+     * second. Pins that find the pool full are retried and counted
+     * separately.
+     */
+    static double run(ExecutorService executor, BufferManager bm,
+                      int threads, int numPages, int pinsPerThread,
+                      AtomicLong full)
+        throws Exception
+    {
+        Future<?>[] tasks = new Future<?>[threads];
+        long start = System.nanoTime();
+        for (int t=0; t < threads; t++)
+        {
+            long seed = t;
+            tasks[t] = executor.submit(() -> {
+                Random random = new Random(seed);
+                for (int i=0; i < pinsPerThread; i++)
+                {
+                    int pageNum = random.nextInt(numPages);
+                    Page page;
+                    while ((page = bm.pinPage(pageNum, DBNAME, false)) == null)
+                    {
+                        full.incrementAndGet();
+                        Thread.yield();
+                    }
+                    if (page.buffer().getInt(0) != pageNum)
+                        throw new IllegalStateException("Wrong page");
+                    bm.unpinPage(pageNum, DBNAME, false);
+                }
+                return null;
+            });
+        }
+        for (Future<?> task : tasks)
+            task.get();
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        return (double)threads * pinsPerThread * 1e9 / elapsed;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int poolSize = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int numPages = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+        int pinsPerThread =
+            args.length > 3 ? Integer.parseInt(args[3]) : 200;
+
+        DBFile.erase(DBNAME);
+        try (DBFile file = new DBFile(DBNAME, numPages))
+        {
+            file.allocatePages(numPages);
+            Page page = new Page();
+            for (int i=0; i < numPages; i++)
+            {
+                page.buffer().putInt(0, i);
+                file.writePage(i, page);
+            }
+        }
+
+        System.out.printf("%d threads, %d frames, %d pages, %d pins each%n",
+                          threads, poolSize, numPages, pinsPerThread);
+        System.out.printf("%10s %14s %14s%n", "kind", "pins/s",
+                          "pool full");
+        String[] kinds = {"platform", "virtual"};
+        for (String kind : kinds)
+        {
+            ExecutorService executor = kind.equals("platform")
+                ? Executors.newFixedThreadPool(threads)
+                : virtualExecutor();
+            if (executor == null)
+            {
+                System.out.printf("%10s %14s%n", kind,
+                                  "not available in Java " +
+                                  Runtime.version().feature());
+                continue;
+            }
+            BufferManager bm = new BufferManager(poolSize);
+            AtomicLong full = new AtomicLong();
+            try
+            {
+                double rate = run(executor, bm, threads, numPages,
+                                  pinsPerThread, full);
+                System.out.printf("%10s %14.0f %14d%n", kind, rate,
+                                  full.get());
+            }
+            finally
+            {
+                bm.close();
+            }
+        }
+        DBFile.erase(DBNAME);
+    }
+}
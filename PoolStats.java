@@ -0,0 +1,198 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters a buffer manager keeps about itself. Every counter is a
+ * LongAdder, so threads recording events at once do not contend on a
+ * shared cache line, and reading them for a snapshot takes no lock.
+ */
+class PoolStats
+{
+    /**
+     * Histogram of latencies in buckets of powers of two nanoseconds.
+     */
+    static class Histogram
+    {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder items = new LongAdder();
+        private final LongAdder total = new LongAdder();
+
+        Histogram()
+        {
+            for (int i=0; i < buckets.length; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        /**
+         * Records one operation.
+         * @param nanos how long it took.
+         * @param n the number of items, such as pages, it handled.
+         */
+        void record(long nanos, int n)
+        {
+            buckets[63 - Long.numberOfLeadingZeros(nanos | 1)].increment();
+            count.increment();
+            items.add(n);
+            total.add(nanos);
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding a percentile.
+         * @param p the percentile, between 0 and 100.
+         * @return nanoseconds, or 0 if nothing was recorded.
+         */
+        long percentile(double p)
+        {
+            long[] counts = new long[buckets.length];
+            long n = 0;
+            for (int i=0; i < buckets.length; i++)
+                n += counts[i] = buckets[i].sum();
+            long rank = (long)Math.ceil(p / 100 * n);
+            long seen = 0;
+            for (int i=0; i < counts.length; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank && seen > 0)
+                    return i >= 62 ? Long.MAX_VALUE : 2L << i;
+            }
+            return 0;
+        }
+
+        void reset()
+        {
+            for (LongAdder bucket : buckets)
+                bucket.reset();
+            count.reset();
+            items.reset();
+            total.reset();
+        }
+    }
+
+    /**
+     * Reads and writes of one database.
+     */
+    private static class FileCounters
+    {
+        private final Histogram reads = new Histogram();
+        private final Histogram writes = new Histogram();
+    }
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder compressedHits = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictionWrites = new LongAdder();
+    private final LongAdder pinWaits = new LongAdder();
+    private final LongAdder pinWaitNanos = new LongAdder();
+    private final ConcurrentMap<String, FileCounters> files =
+        new ConcurrentHashMap<String, FileCounters>();
+
+    void hit()
+    {
+        hits.increment();
+    }
+
+    void miss()
+    {
+        misses.increment();
+    }
+
+    void compressedHit()
+    {
+        compressedHits.increment();
+    }
+
+    void prefetched(int pages)
+    {
+        prefetches.add(pages);
+    }
+
+    void evicted(boolean written)
+    {
+        evictions.increment();
+        if (written)
+            evictionWrites.increment();
+    }
+
+    void pinWait(long nanos)
+    {
+        pinWaits.increment();
+        pinWaitNanos.add(nanos);
+    }
+
+    void read(String fileName, long nanos, int pages)
+    {
+        file(fileName).reads.record(nanos, pages);
+    }
+
+    void written(String fileName, long nanos, int pages)
+    {
+        file(fileName).writes.record(nanos, pages);
+    }
+
+    private FileCounters file(String fileName)
+    {
+        FileCounters counters = files.get(fileName);
+        if (counters == null)
+            counters = files.computeIfAbsent(fileName,
+                                             name -> new FileCounters());
+        return counters;
+    }
+
+    /**
+     * Takes a snapshot of the counters. Counters updated while the
+     * snapshot is taken may or may not be included.
+     * @param poolSize the size of the pool.
+     * @param sweepSteps the frames looked at by the replacement policy.
+     * @param compressedPages the pages in the compressed cache.
+     * @param compressedBytes the bytes the compressed cache holds.
+     * @return the snapshot.
+     */
+    BufferStats snapshot(int poolSize, long sweepSteps, int compressedPages,
+                         long compressedBytes)
+    {
+        Map<String, BufferStats.FileStats> fileStats =
+            new TreeMap<String, BufferStats.FileStats>();
+        for (Map.Entry<String, FileCounters> entry : files.entrySet())
+        {
+            Histogram reads = entry.getValue().reads;
+            Histogram writes = entry.getValue().writes;
+            fileStats.put(entry.getKey(), new BufferStats.FileStats(
+                reads.count.sum(), reads.items.sum(), reads.total.sum(),
+                reads.percentile(50), reads.percentile(99),
+                writes.count.sum(), writes.items.sum(), writes.total.sum(),
+                writes.percentile(50), writes.percentile(99)));
+        }
+        return new BufferStats(poolSize, hits.sum(), misses.sum(),
+                               prefetches.sum(), evictions.sum(),
+                               evictionWrites.sum(), sweepSteps,
+                               pinWaits.sum(), pinWaitNanos.sum(),
+                               compressedHits.sum(), compressedPages,
+                               compressedBytes, fileStats);
+    }
+
+    /**
+     * Sets every counter back to zero.
+     */
+    void reset()
+    {
+        hits.reset();
+        misses.reset();
+        compressedHits.reset();
+        prefetches.reset();
+        evictions.reset();
+        evictionWrites.reset();
+        pinWaits.reset();
+        pinWaitNanos.reset();
+        for (FileCounters counters : files.values())
+        {
+            counters.reads.reset();
+            counters.writes.reset();
+        }
+    }
+}
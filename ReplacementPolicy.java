@@ -0,0 +1,77 @@
+/**
+ * Page replacement policy of a buffer pool. The buffer manager tells
+ * the policy about every page that enters, is used in, and leaves the
+ * pool, and asks it for a frame to reuse when a page has to be read
+ * in. Policies are called from many threads at once and must do their
+ * own locking.
+ *
+ * Pages are identified by the buffer manager's page table keys, which
+ * stay the same for a page while it is in and out of the pool, so a
+ * policy can remember pages it has evicted.
+ */
+public interface ReplacementPolicy
+{
+    /**
+     * Binds the policy to a pool. Called once, by the buffer manager's
+     * constructor, before any other method.
+     * @param frames the pin counts and reference bits of the pool's
+     * frames.
+     * @throws IllegalStateException if the policy already belongs to
+     * a pool.
+     */
+    void attach(FrameStates frames);
+
+    /**
+     * A page has been read into a frame. The frame is pinned. Pages
+     * loaded with a hint other than RANDOM should not be treated as
+     * part of the working set.
+     * @param frame the frame index.
+     * @param pageKey the key of the page now in the frame.
+     * @param hint how the page that caused the load will be used.
+     */
+    void loaded(int frame, long pageKey, AccessHint hint);
+
+    /**
+     * A page has been read ahead into a frame without anyone asking
+     * for it yet. The frame is pinned. The page should stay long
+     * enough for the reader it was read for to pin it but, if it is
+     * never pinned, go before pages that have been used. Its first
+     * pin, reported to hit(), is its first use.
+     * @param frame the frame index.
+     * @param pageKey the key of the page now in the frame.
+     */
+    void prefetched(int frame, long pageKey);
+
+    /**
+     * A page already in the pool has been pinned again.
+     * @param frame the frame index.
+     * @param hint how the page will be used this time.
+     */
+    void hit(int frame, AccessHint hint);
+
+    /**
+     * The pin count of a frame has dropped to zero, so it can be
+     * replaced. With a hint other than RANDOM, the frame should be
+     * among the first to be replaced.
+     * @param frame the frame index.
+     * @param hint how the page was used by the last caller to unpin it.
+     */
+    void unpinned(int frame, AccessHint hint);
+
+    /**
+     * Chooses a frame to replace and claims it, so that no other thread
+     * can pin or claim it. The buffer manager may still give the frame
+     * up without evicting it, in which case the frame keeps its page.
+     * @return the claimed frame, or -1 if no frame could be claimed.
+     */
+    int victim();
+
+    /**
+     * The page in a frame has left the pool, either because the frame
+     * was replaced or because the page was freed. The frame is empty
+     * until the next call to loaded() for it.
+     * @param frame the frame index.
+     * @param pageKey the key of the page that left.
+     */
+    void evicted(int frame, long pageKey);
+}
@@ -0,0 +1,260 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Space map of a database file, recording which pages are allocated.
+ * The map is loaded into memory once when the database is opened and
+ * kept there as a bitset of 64-bit words, with a FreeSpaceIndex over
+ * it for finding free runs; changes are remembered as a dirty range
+ * and written back by flush().
+ *
+ * New map files use a packed format: a header made of a magic number,
+ * a format version, the number of pages and the page size of the
+ * database, followed by one bit per page. Version 1 of the format had
+ * no page size, and map files written before the packed format
+ * existed hold one byte per page and no header; both are still read
+ * and written in their own layout, and their databases have pages of
+ * Page.PAGESIZE bytes.
+ */
+class SpaceMap
+{
+    public static class BadSpaceMapException extends IOException
+    {
+        public BadSpaceMapException(String explanation)
+        {
+            super(explanation);
+        }
+    }
+
+    /**
+     * First four bytes of a packed map file ("DBSM"). A legacy map
+     * only ever contains the bytes 0 and 1, so it cannot start with
+     * this value.
+     */
+    static final int MAGIC = 0x4442534D;
+
+    /**
+     * Version of the packed format written by this class.
+     */
+    static final int VERSION = 2;
+
+    /**
+     * Size in bytes of the packed format header.
+     */
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * Size in bytes of the header of version 1, which had no page size.
+     */
+    static final int V1_HEADER_SIZE = 12;
+
+    private FileChannel channel;
+    private boolean packed;
+    private int headerSize;
+    private int numPages;
+    private int pageSize;
+    private long[] words;
+    private FreeSpaceIndex index;
+
+    // Pages [dirtyFrom, dirtyTo) may differ from the file.
+    private int dirtyFrom;
+    private int dirtyTo;
+
+    private SpaceMap(FileChannel channel, boolean packed, int headerSize,
+                     int numPages, int pageSize)
+    {
+        this.channel = channel;
+        this.packed = packed;
+        this.headerSize = headerSize;
+        this.numPages = numPages;
+        this.pageSize = pageSize;
+        this.words = new long[(numPages + 63) / 64];
+        this.dirtyFrom = numPages;
+        this.dirtyTo = 0;
+    }
+
+    /**
+     * Writes an empty packed map with the given number of pages to a
+     * freshly created file.
+     * @param channel the open, empty map file.
+     * @param numPages number of pages in the database.
+     * @param pageSize page size of the database in bytes.
+     * @return the in-memory map.
+     * @throws IOException passed through from underlying file system.
+     */
+    static SpaceMap create(FileChannel channel, int numPages, int pageSize)
+        throws IOException
+    {
+        SpaceMap map = new SpaceMap(channel, true, HEADER_SIZE, numPages,
+                                    pageSize);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(numPages)
+            .putInt(pageSize).flip();
+        DBFile.writeFully(channel, header, 0);
+        DBFile.writeFully(channel, ByteBuffer.allocate((numPages + 7) / 8),
+                          HEADER_SIZE);
+        map.index = new FreeSpaceIndex(map.words, numPages);
+        return map;
+    }
+
+    /**
+     * Loads an existing map file, in either the packed or the legacy
+     * format.
+     * @param channel the open map file.
+     * @return the in-memory map.
+     * @throws BadSpaceMapException if the header is not understood.
+     * @throws IOException passed through from underlying file system.
+     */
+    static SpaceMap open(FileChannel channel) throws IOException
+    {
+        long length = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (length >= V1_HEADER_SIZE)
+        {
+            header.limit((int)Math.min(length, HEADER_SIZE));
+            DBFile.readFully(channel, header, 0);
+        }
+
+        if (length < V1_HEADER_SIZE || header.getInt(0) != MAGIC)
+        {
+            // Legacy layout: one byte per page.
+            SpaceMap map = new SpaceMap(channel, false, 0, (int)length,
+                                        Page.PAGESIZE);
+            byte[] bytes = new byte[(int)length];
+            DBFile.readFully(channel, ByteBuffer.wrap(bytes), 0);
+            for (int i=0; i < bytes.length; i++)
+                if (bytes[i] != 0)
+                    map.words[i / 64] |= 1L << (i % 64);
+            map.index = new FreeSpaceIndex(map.words, map.numPages);
+            return map;
+        }
+
+        int version = header.getInt(4);
+        if (version != 1 && version != VERSION)
+            throw new BadSpaceMapException("Unsupported space map version "
+                                           + version);
+        int headerSize = version == 1 ? V1_HEADER_SIZE : HEADER_SIZE;
+        int numPages = header.getInt(8);
+        if (numPages < 0 || length < headerSize + (numPages + 7L) / 8)
+            throw new BadSpaceMapException("Truncated space map");
+        int pageSize = version == 1 ? Page.PAGESIZE : header.getInt(12);
+        try
+        {
+            Page.checkSize(pageSize);
+        }
+        catch (DBFile.BadPageSizeException e)
+        {
+            throw new BadSpaceMapException("Bad page size " + pageSize);
+        }
+
+        SpaceMap map = new SpaceMap(channel, true, headerSize, numPages,
+                                    pageSize);
+        ByteBuffer bytes = ByteBuffer.allocate(map.words.length * 8);
+        bytes.limit((numPages + 7) / 8);
+        DBFile.readFully(channel, bytes, headerSize);
+        bytes.clear();
+        bytes.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(map.words);
+        map.index = new FreeSpaceIndex(map.words, numPages);
+        return map;
+    }
+
+    /**
+     * Returns the number of pages covered by the map.
+     * @return the number of pages.
+     */
+    int size()
+    {
+        return numPages;
+    }
+
+    /**
+     * Returns the page size of the database.
+     * @return the page size in bytes.
+     */
+    int pageSize()
+    {
+        return pageSize;
+    }
+
+    /**
+     * Checks whether a page is allocated.
+     * @param pageNum a page number within the map.
+     * @return true if the page is allocated.
+     */
+    boolean isAllocated(int pageNum)
+    {
+        return (words[pageNum / 64] & (1L << (pageNum % 64))) != 0;
+    }
+
+    /**
+     * Finds the first run of free pages of the given size starting at
+     * or after a page.
+     * @param fromPage the page at which to start looking.
+     * @param runSize number of free pages needed.
+     * @return the first page of the run, or -1 if there is none.
+     */
+    int findFreeRun(int fromPage, int runSize)
+    {
+        return index.find(fromPage, runSize);
+    }
+
+    /**
+     * Marks a run of pages as allocated or free. The change is only
+     * in memory until the next flush().
+     * @param startPageNum first page of the run.
+     * @param runSize number of pages in the run.
+     * @param allocated the new state of the pages.
+     */
+    void set(int startPageNum, int runSize, boolean allocated)
+    {
+        int end = startPageNum + runSize;
+        for (int w=startPageNum / 64; w <= (end - 1) / 64; w++)
+        {
+            int lo = Math.max(startPageNum - w * 64, 0);
+            int hi = Math.min(end - w * 64, 64);
+            long mask = (-1L << lo) & (hi == 64 ? -1L : ~(-1L << hi));
+            if (allocated)
+                words[w] |= mask;
+            else
+                words[w] &= ~mask;
+        }
+        index.update(startPageNum, end);
+        dirtyFrom = Math.min(dirtyFrom, startPageNum);
+        dirtyTo = Math.max(dirtyTo, startPageNum + runSize);
+    }
+
+    /**
+     * Writes any changes made since the last flush back to the map
+     * file, as a single write covering the changed range.
+     * @throws IOException passed through from underlying file system.
+     */
+    void flush() throws IOException
+    {
+        if (dirtyFrom >= dirtyTo)
+            return;
+
+        if (packed)
+        {
+            int firstByte = dirtyFrom / 8;
+            int lastByte = (dirtyTo - 1) / 8;
+            ByteBuffer update = ByteBuffer.allocate(lastByte - firstByte + 1);
+            for (int i=firstByte; i <= lastByte; i++)
+                update.put((byte)(words[i / 8] >>> (i % 8 * 8)));
+            update.flip();
+            DBFile.writeFully(channel, update, headerSize + firstByte);
+        }
+        else
+        {
+            ByteBuffer update = ByteBuffer.allocate(dirtyTo - dirtyFrom);
+            for (int i=dirtyFrom; i < dirtyTo; i++)
+                update.put((byte)(isAllocated(i) ? 1 : 0));
+            update.flip();
+            DBFile.writeFully(channel, update, dirtyFrom);
+        }
+
+        dirtyFrom = numPages;
+        dirtyTo = 0;
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 2Q replacement (Johnson and Shasha), full version. Pages seen for
+ * the first time go into a FIFO queue, A1in, and are evicted from it
+ * without ever reaching the main LRU queue, Am, unless they are used
+ * again after leaving: A1out remembers the keys of recently evicted
+ * A1in pages, and a page found there on its way back in goes to Am.
+ * A scan thus only ever cycles through A1in.
+ *
+ * Pages brought in with a hint other than RANDOM are kept on a
+ * separate cold list, replaced before anything else, until they are
+ * used normally; they never enter A1out. Pages read ahead join A1in
+ * like any new page, but do not enter A1out if they leave unused.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy
+{
+    private final ReentrantLock lock;
+    private FrameStates frames;
+    private int maxIn;
+    private int maxOut;
+
+    private FrameList cold;
+    private FrameList in;
+    private FrameList main;
+    private FrameList free;
+    private LinkedHashSet<Long> out;
+
+    // Frames read ahead and not used since.
+    private boolean[] speculative;
+
+    public TwoQueuePolicy()
+    {
+        lock = new ReentrantLock();
+    }
+
+    /**
+     * Sizes the queues as recommended by the authors: A1in holds a
+     * quarter of the pool and A1out remembers half a pool's worth of
+     * pages.
+     */
+    public void attach(FrameStates frames)
+    {
+        if (this.frames != null)
+            throw new IllegalStateException("Policy already in use");
+        this.frames = frames;
+
+        int numFrames = frames.length();
+        maxIn = Math.max(1, numFrames / 4);
+        maxOut = Math.max(1, numFrames / 2);
+        cold = new FrameList(numFrames);
+        in = new FrameList(numFrames);
+        main = new FrameList(numFrames);
+        free = new FrameList(numFrames);
+        for (int i = 0; i < numFrames; i++)
+            free.addLast(i);
+        out = new LinkedHashSet<Long>();
+        speculative = new boolean[numFrames];
+    }
+
+    public void loaded(int frame, long pageKey, AccessHint hint)
+    {
+        lock.lock();
+        try
+        {
+            free.remove(frame);
+            if (hint != AccessHint.RANDOM)
+                cold.addLast(frame);
+            else if (out.remove(pageKey))
+                main.addLast(frame);
+            else
+                in.addLast(frame);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void prefetched(int frame, long pageKey)
+    {
+        lock.lock();
+        try
+        {
+            free.remove(frame);
+            in.addLast(frame);
+            speculative[frame] = true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void hit(int frame, AccessHint hint)
+    {
+        lock.lock();
+        try
+        {
+            boolean firstUse = speculative[frame];
+            speculative[frame] = false;
+            if (hint != AccessHint.RANDOM)
+            {
+                if (firstUse)
+                {
+                    in.remove(frame);
+                    cold.addLast(frame);
+                }
+            }
+            else if (main.contains(frame))
+                main.addLast(frame);
+            else if (cold.contains(frame))
+            {
+                cold.remove(frame);
+                in.addLast(frame);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void unpinned(int frame, AccessHint hint)
+    {
+    }
+
+    public int victim()
+    {
+        lock.lock();
+        try
+        {
+            int frame = free.claimFirst(frames);
+            if (frame < 0)
+                frame = cold.claimFirst(frames);
+            if (frame < 0 && in.size() > maxIn)
+                frame = in.claimFirst(frames);
+            if (frame < 0)
+                frame = main.claimFirst(frames);
+            if (frame < 0)
+                frame = in.claimFirst(frames);
+            return frame;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void evicted(int frame, long pageKey)
+    {
+        lock.lock();
+        try
+        {
+            if (in.contains(frame) && speculative[frame])
+                in.remove(frame);
+            else if (in.contains(frame))
+            {
+                in.remove(frame);
+                out.add(pageKey);
+                if (out.size() > maxOut)
+                {
+                    Iterator<Long> oldest = out.iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+            }
+            else
+            {
+                cold.remove(frame);
+                main.remove(frame);
+            }
+            speculative[frame] = false;
+            free.addLast(frame);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
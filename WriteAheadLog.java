@@ -0,0 +1,810 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead log of changes to pages. Changes are made in
+ * transactions through BufferManager.update(), which logs the bytes
+ * of the page before and after each change. The log is written
+ * sequentially and forced to disk when a transaction commits, and a
+ * page is never written back before the log records of its changes
+ * are on disk, so committing costs one sequential write no matter how
+ * many pages were changed. Transactions committing at the same time
+ * share a force of the log (group commit): while one thread forces
+ * the log, the others queue their records and the next force covers
+ * them all.
+ *
+ * Opening a log recovers the databases it names: every change in it
+ * is applied again, then the changes of transactions that neither
+ * committed nor aborted are undone, newest first. Since records hold
+ * whole byte ranges, both steps can be repeated safely, and a crash
+ * during recovery is recovered from by opening the log again. The log
+ * is then emptied. Changes from before the last checkpoint are only
+ * redone from where the checkpoint says they may be missing from the
+ * databases; see BufferManager.checkpoint(). Changes to logged pages
+ * should only be made through update(), and two transactions should
+ * not change the same bytes while both are running.
+ *
+ * Each record is laid out as its length, its log sequence number
+ * (LSN), its type, the id of its transaction, a payload and a CRC-32C
+ * of everything from the LSN on. An update's payload is the database
+ * name, page number, offset, length and the bytes before and after.
+ * The LSN of a record is its position in the log, counted from the
+ * first record ever written to it, so LSNs keep growing when the log
+ * is emptied or records are discarded from its front. A checkpoint's
+ * payload is the LSN that recovery redoes changes from.
+ */
+public class WriteAheadLog implements Closeable
+{
+    public static class BadLogException extends IOException
+    {
+        public BadLogException(String explanation)
+        {
+            super(explanation);
+        }
+    }
+
+    public static class TransactionEndedException
+        extends RuntimeException {};
+
+    /**
+     * A set of changes that are made durable together by commit(), or
+     * undone together by BufferManager.abort(). A transaction is used
+     * by one thread at a time.
+     */
+    public static class Transaction
+    {
+        private final long id;
+        private final List<Update> updates = new ArrayList<Update>();
+        private boolean ended;
+
+        // LSN of the transaction's first record, or 0 before it has
+        // one. Guarded by the log's appendLock.
+        private long firstLsn;
+
+        private Transaction(long id)
+        {
+            this.id = id;
+        }
+
+        /**
+         * Returns the id of the transaction.
+         * @return an id unique among the transactions of the log.
+         */
+        public long id()
+        {
+            return id;
+        }
+
+        /**
+         * Checks whether the transaction has committed or aborted.
+         * @return true if it has.
+         */
+        public boolean isEnded()
+        {
+            return ended;
+        }
+    }
+
+    /**
+     * A change made by a transaction, as much of it as is needed to
+     * undo it.
+     */
+    static class Update
+    {
+        final String fileName;
+        final int pageNum;
+        final int offset;
+        final byte[] before;
+
+        Update(String fileName, int pageNum, int offset, byte[] before)
+        {
+            this.fileName = fileName;
+            this.pageNum = pageNum;
+            this.offset = offset;
+            this.before = before;
+        }
+    }
+
+    /**
+     * A record read back from the log.
+     */
+    private static class Record
+    {
+        long lsn;
+        int length;
+        byte type;
+        long txnId;
+        String fileName;
+        int pageNum;
+        int offset;
+        byte[] before;
+        byte[] after;
+        long redoLsn;
+    }
+
+    /**
+     * First four bytes of a log file ("DBWL").
+     */
+    static final int MAGIC = 0x4442574C;
+    static final int VERSION = 1;
+
+    /**
+     * Size in bytes of the header: magic number, version and the LSN
+     * of the first record in the file.
+     */
+    static final int HEADER_SIZE = 16;
+
+    static final byte UPDATE = 1;
+    static final byte COMMIT = 2;
+    static final byte ABORT = 3;
+    static final byte CHECKPOINT = 4;
+
+    // Length, LSN, type, transaction id and CRC.
+    private static final int RECORD_OVERHEAD = 4 + 8 + 1 + 8 + 4;
+
+    private final String name;
+
+    // The log file and the LSN of the first record in it. Both change
+    // when records are discarded, and are guarded by flushLock once
+    // the log is open.
+    private FileChannel channel;
+    private long baseLsn;
+
+    // Records not yet written, the LSN the next record gets, and the
+    // first LSNs of the transactions that have logged changes but not
+    // ended. All are guarded by appendLock, as is the checksum.
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long endLsn;
+    private final Map<Long, Long> active = new HashMap<Long, Long>();
+    private final CRC32C crc = new CRC32C();
+
+    // Every record with an LSN below durableLsn is on disk. Held while
+    // writing and forcing the log.
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private volatile long durableLsn;
+
+    // Held while discarding records, one checkpoint at a time.
+    private final ReentrantLock truncateLock = new ReentrantLock();
+
+    private final AtomicLong nextTxnId = new AtomicLong(1);
+
+    /**
+     * Opens the log with the given name, creating it if it does not
+     * exist, and recovers the databases named in it.
+     * @param name name of the log file.
+     * @throws BadLogException if the file is not a log.
+     * @throws IOException passed through from underlying file system.
+     */
+    public WriteAheadLog(String name) throws IOException
+    {
+        this.name = name;
+        channel = FileChannel.open(Paths.get(name),
+                                   StandardOpenOption.CREATE,
+                                   StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        try
+        {
+            long end = 1;
+            if (channel.size() > 0)
+            {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                try
+                {
+                    DBFile.readFully(channel, header, 0);
+                }
+                catch (EOFException e)
+                {
+                    throw new BadLogException("Truncated log header");
+                }
+                if (header.getInt(0) != MAGIC)
+                    throw new BadLogException("Not a log: " + name);
+                if (header.getInt(4) != VERSION)
+                    throw new BadLogException("Unsupported log version "
+                                              + header.getInt(4));
+                baseLsn = header.getLong(8);
+                end = recover();
+            }
+            reset(end);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Empties the log, so that its next record gets the given LSN.
+     */
+    private void reset(long lsn) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(lsn).flip();
+        DBFile.writeFully(channel, header, 0);
+        channel.truncate(HEADER_SIZE);
+        channel.force(true);
+        baseLsn = lsn;
+        endLsn = lsn;
+        durableLsn = lsn;
+    }
+
+    /**
+     * Returns the name of the log.
+     * @return the name the log was opened with.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Starts a transaction.
+     * @return the new transaction.
+     */
+    public Transaction begin()
+    {
+        return new Transaction(nextTxnId.getAndIncrement());
+    }
+
+    /**
+     * Commits a transaction: its changes are durable once this
+     * returns.
+     * @param tx the transaction.
+     * @throws TransactionEndedException if the transaction has already
+     * committed or aborted.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void commit(Transaction tx) throws IOException
+    {
+        checkActive(tx);
+        long lsn = append(COMMIT, tx, new byte[0]);
+        tx.ended = true;
+        tx.updates.clear();
+        flush(lsn);
+    }
+
+    /**
+     * Returns the LSN below which every record is on disk.
+     * @return the LSN of the first record that may not be on disk.
+     */
+    public long durableLsn()
+    {
+        return durableLsn;
+    }
+
+    /**
+     * Returns the LSN of the first record kept in the log, which
+     * moves on when a checkpoint discards records.
+     * @return the LSN the log starts at.
+     */
+    public long startLsn()
+    {
+        flushLock.lock();
+        try
+        {
+            return baseLsn;
+        }
+        finally
+        {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the LSN the next record will get.
+     * @return the end of the log.
+     */
+    public long endLsn()
+    {
+        appendLock.lock();
+        try
+        {
+            return endLsn;
+        }
+        finally
+        {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Forces every record written so far to disk and closes the log.
+     * The log is not emptied: when it is opened again, the databases
+     * are recovered from it.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            flush(endLsn() - 1);
+        }
+        finally
+        {
+            flushLock.lock();
+            try
+            {
+                channel.close();
+            }
+            finally
+            {
+                flushLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Logs a change to a page.
+     * @param undo whether the change undoes the transaction's last
+     * change, which is then forgotten, rather than being a change of
+     * its own.
+     * @return the LSN of the record.
+     */
+    long logUpdate(Transaction tx, String fileName, int pageNum, int offset,
+                   byte[] before, byte[] after, boolean undo)
+        throws IOException
+    {
+        checkActive(tx);
+        byte[] nameBytes = fileName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload =
+            ByteBuffer.allocate(2 + nameBytes.length + 12 + 2 * after.length);
+        payload.putShort((short)nameBytes.length).put(nameBytes)
+            .putInt(pageNum).putInt(offset).putInt(after.length)
+            .put(before).put(after);
+        long lsn = append(UPDATE, tx, payload.array());
+        if (undo)
+            tx.updates.remove(tx.updates.size() - 1);
+        else
+            tx.updates.add(new Update(fileName, pageNum, offset, before));
+        return lsn;
+    }
+
+    /**
+     * Returns the change a transaction made last and has not undone.
+     * @return the change, or null if there is none.
+     */
+    Update lastUpdate(Transaction tx)
+    {
+        return tx.updates.isEmpty() ? null
+            : tx.updates.get(tx.updates.size() - 1);
+    }
+
+    /**
+     * Ends a transaction whose changes have all been undone. The abort
+     * record need not be forced: if it is lost, recovery undoes the
+     * transaction again.
+     */
+    void logAbort(Transaction tx) throws IOException
+    {
+        checkActive(tx);
+        append(ABORT, tx, new byte[0]);
+        tx.ended = true;
+    }
+
+    private static void checkActive(Transaction tx)
+    {
+        if (tx.ended)
+            throw new TransactionEndedException();
+    }
+
+    /**
+     * Logs a checkpoint, forces the log, and discards the records that
+     * recovery can no longer need: those before redoLsn, unless they
+     * belong to a transaction that has not ended. Transactions that
+     * ended before the checkpoint record have their end records forced
+     * with it, so their changes are not undone if a crash follows.
+     * @param redoLsn the LSN from which changes may be missing from
+     * the databases.
+     * @return the LSN of the checkpoint record.
+     */
+    long checkpoint(long redoLsn) throws IOException
+    {
+        truncateLock.lock();
+        try
+        {
+            long keep = redoLsn;
+            long lsn;
+            appendLock.lock();
+            try
+            {
+                for (long first : active.values())
+                    keep = Math.min(keep, first);
+                lsn = append(CHECKPOINT, null,
+                             ByteBuffer.allocate(8).putLong(redoLsn).array());
+            }
+            finally
+            {
+                appendLock.unlock();
+            }
+            flush(lsn);
+            truncate(keep);
+            return lsn;
+        }
+        finally
+        {
+            truncateLock.unlock();
+        }
+    }
+
+    /**
+     * Discards the records before the given LSN, which must be on
+     * disk. The records kept are copied to a new file, which then
+     * replaces the log. Most of the copying is done while records go
+     * on being written to the old file; only what was written in the
+     * meantime is copied with the log held, just before the swap.
+     */
+    private void truncate(long lsn) throws IOException
+    {
+        FileChannel from;
+        long base;
+        long copied;
+        flushLock.lock();
+        try
+        {
+            if (lsn <= baseLsn)
+                return;
+            from = channel;
+            base = baseLsn;
+            copied = durableLsn;
+        }
+        finally
+        {
+            flushLock.unlock();
+        }
+
+        Path path = Paths.get(name);
+        Path temp = Paths.get(name + ".tmp");
+        FileChannel to = FileChannel.open(temp,
+                                          StandardOpenOption.CREATE,
+                                          StandardOpenOption.TRUNCATE_EXISTING,
+                                          StandardOpenOption.READ,
+                                          StandardOpenOption.WRITE);
+        boolean swapped = false;
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(lsn).flip();
+            DBFile.writeFully(to, header, 0);
+            copy(from, HEADER_SIZE + (lsn - base), to, HEADER_SIZE,
+                 copied - lsn);
+
+            flushLock.lock();
+            try
+            {
+                copy(from, HEADER_SIZE + (copied - base), to,
+                     HEADER_SIZE + (copied - lsn), durableLsn - copied);
+                to.force(true);
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+                syncDirectory(path);
+                channel = to;
+                baseLsn = lsn;
+                swapped = true;
+            }
+            finally
+            {
+                flushLock.unlock();
+            }
+        }
+        finally
+        {
+            if (swapped)
+                from.close();
+            else
+            {
+                to.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Copies bytes from one file to another.
+     */
+    private static void copy(FileChannel from, long fromPosition,
+                             FileChannel to, long toPosition, long count)
+        throws IOException
+    {
+        to.position(toPosition);
+        while (count > 0)
+        {
+            long n = from.transferTo(fromPosition, count, to);
+            if (n <= 0)
+                throw new EOFException("Log ended while being copied");
+            fromPosition += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Forces the directory holding a file, so that a rename of the
+     * file survives a crash. Not every platform can open a directory;
+     * there the rename is left to the file system.
+     */
+    private static void syncDirectory(Path path)
+    {
+        Path dir = path.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(dir,
+                                                    StandardOpenOption.READ))
+        {
+            channel.force(true);
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    /**
+     * Adds a record to the records waiting to be written.
+     * @param tx the transaction of the record, or null for a
+     * checkpoint.
+     * @return the LSN of the record.
+     */
+    private long append(byte type, Transaction tx, byte[] payload)
+    {
+        if (payload.length > Integer.MAX_VALUE - RECORD_OVERHEAD)
+            throw new IllegalArgumentException("Record too large");
+        int length = RECORD_OVERHEAD + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(length);
+        appendLock.lock();
+        try
+        {
+            long lsn = endLsn;
+            record.putInt(length).putLong(lsn).put(type)
+                .putLong(tx == null ? 0 : tx.id).put(payload);
+            crc.reset();
+            crc.update(record.array(), 4, length - 8);
+            record.putInt((int)crc.getValue());
+            pending.write(record.array(), 0, length);
+            endLsn += length;
+
+            if (type == UPDATE && tx.firstLsn == 0)
+            {
+                tx.firstLsn = lsn;
+                active.put(tx.id, lsn);
+            }
+            else if (type == COMMIT || type == ABORT)
+                active.remove(tx.id);
+            return lsn;
+        }
+        finally
+        {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Makes sure that the record with the given LSN, and every record
+     * before it, is on disk. One thread at a time writes and forces
+     * everything appended so far; threads that arrive meanwhile find
+     * their records written by the time they get their turn, or write
+     * them all in the next batch.
+     * @param lsn the LSN of a record.
+     * @throws IOException passed through from underlying file system.
+     */
+    void flush(long lsn) throws IOException
+    {
+        if (lsn < durableLsn)
+            return;
+        flushLock.lock();
+        try
+        {
+            if (lsn < durableLsn)
+                return;
+            byte[] batch;
+            long end;
+            appendLock.lock();
+            try
+            {
+                batch = pending.toByteArray();
+                pending.reset();
+                end = endLsn;
+            }
+            finally
+            {
+                appendLock.unlock();
+            }
+
+            try
+            {
+                long start = end - batch.length;
+                DBFile.writeFully(channel, ByteBuffer.wrap(batch),
+                                  HEADER_SIZE + (start - baseLsn));
+                channel.force(false);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // Put the batch back so that the next flush retries it.
+                appendLock.lock();
+                try
+                {
+                    ByteArrayOutputStream restored =
+                        new ByteArrayOutputStream();
+                    restored.writeBytes(batch);
+                    restored.writeBytes(pending.toByteArray());
+                    pending = restored;
+                }
+                finally
+                {
+                    appendLock.unlock();
+                }
+                throw e;
+            }
+            durableLsn = end;
+        }
+        finally
+        {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the records in the file, up to the first one that is
+     * incomplete or damaged, which is where the log was when the
+     * system stopped.
+     */
+    private List<Record> readRecords() throws IOException
+    {
+        List<Record> records = new ArrayList<Record>();
+        long size = channel.size();
+        channel.position(HEADER_SIZE);
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Channels.newInputStream(channel)));
+        long position = HEADER_SIZE;
+        CRC32C check = new CRC32C();
+        while (size - position >= RECORD_OVERHEAD)
+        {
+            int length = in.readInt();
+            if (length < RECORD_OVERHEAD || length > size - position)
+                break;
+            byte[] body = new byte[length - 8];
+            in.readFully(body);
+            int sum = in.readInt();
+            check.reset();
+            check.update(body);
+            if ((int)check.getValue() != sum)
+                break;
+
+            ByteBuffer b = ByteBuffer.wrap(body);
+            Record record = new Record();
+            record.length = length;
+            record.lsn = b.getLong();
+            if (record.lsn != baseLsn + (position - HEADER_SIZE))
+                break;
+            record.type = b.get();
+            record.txnId = b.getLong();
+            if (record.type == UPDATE)
+            {
+                byte[] nameBytes = new byte[b.getShort() & 0xFFFF];
+                b.get(nameBytes);
+                record.fileName = new String(nameBytes,
+                                             StandardCharsets.UTF_8);
+                record.pageNum = b.getInt();
+                record.offset = b.getInt();
+                record.before = new byte[b.getInt()];
+                record.after = new byte[record.before.length];
+                b.get(record.before).get(record.after);
+            }
+            else if (record.type == CHECKPOINT)
+                record.redoLsn = b.getLong();
+            records.add(record);
+            position += length;
+        }
+        return records;
+    }
+
+    /**
+     * Redoes the changes in the log from the last checkpoint's redo
+     * point on, then undoes the changes of transactions that did not
+     * end, and writes the pages back.
+     * @return the LSN after the last record recovered.
+     */
+    private long recover() throws IOException
+    {
+        List<Record> records = readRecords();
+        Set<Long> ended = new HashSet<Long>();
+        long redoLsn = baseLsn;
+        for (Record record : records)
+        {
+            if (record.type == COMMIT || record.type == ABORT)
+                ended.add(record.txnId);
+            else if (record.type == CHECKPOINT)
+                redoLsn = record.redoLsn;
+        }
+
+        Map<String, DBFile> files = new HashMap<String, DBFile>();
+        Map<String, Page> pages = new LinkedHashMap<String, Page>();
+        try
+        {
+            for (Record record : records)
+                if (record.type == UPDATE && record.lsn >= redoLsn)
+                    apply(record, record.after, files, pages);
+            for (int i=records.size() - 1; i >= 0; i--)
+            {
+                Record record = records.get(i);
+                if (record.type == UPDATE && !ended.contains(record.txnId))
+                    apply(record, record.before, files, pages);
+            }
+
+            for (Map.Entry<String, Page> entry : pages.entrySet())
+            {
+                if (entry.getValue() == null)
+                    continue;
+                String key = entry.getKey();
+                int split = key.lastIndexOf('#');
+                files.get(key.substring(0, split)).writePage(
+                    Integer.parseInt(key.substring(split + 1)),
+                    entry.getValue());
+            }
+            for (DBFile file : files.values())
+                file.sync();
+        }
+        finally
+        {
+            for (DBFile file : files.values())
+                file.close();
+        }
+
+        if (records.isEmpty())
+            return baseLsn;
+        Record last = records.get(records.size() - 1);
+        return last.lsn + last.length;
+    }
+
+    /**
+     * Copies bytes of a logged change into the page it changed,
+     * reading the page the first time it is needed. Changes to pages
+     * that no longer exist are skipped.
+     */
+    private static void apply(Record record, byte[] bytes,
+                              Map<String, DBFile> files,
+                              Map<String, Page> pages)
+        throws IOException
+    {
+        String key = record.fileName + "#" + record.pageNum;
+        if (!pages.containsKey(key))
+        {
+            DBFile file = files.get(record.fileName);
+            if (file == null)
+            {
+                file = new DBFile(record.fileName);
+                files.put(record.fileName, file);
+            }
+            Page page = null;
+            if (file.getNumPages() > 0)
+            {
+                try
+                {
+                    page = new Page(file.getPageSize());
+                    file.readPage(record.pageNum, page);
+                }
+                catch (DBFile.BadPageNumberException |
+                       DBFile.PageNotAllocatedException e)
+                {
+                    page = null;
+                }
+            }
+            pages.put(key, page);
+        }
+        Page page = pages.get(key);
+        if (page == null || record.offset < 0 ||
+            record.offset > page.size() - bytes.length)
+            return;
+        ByteBuffer buffer = page.buffer();
+        buffer.position(record.offset);
+        buffer.put(bytes);
+    }
+}
@@ -0,0 +1,92 @@
+package minibase;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single-threaded pins, as the hit, miss-clean and miss-dirty
+ * benchmarks of BufferBenchmark measure them: the cost of a pin and
+ * unpin of a page in the pool, and of one that misses and replaces a
+ * clean or a dirty page.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HitMissBenchmarks
+{
+    private static final int HIT_PAGES = 512;
+
+    private BufferManager hitPool;
+    private BufferManager missPool;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        BufferBenchmark.createDatabase();
+        hitPool = new BufferManager(1024);
+        for (int i=0; i < HIT_PAGES; i++)
+        {
+            BufferBenchmark.pin(hitPool, i);
+            hitPool.unpinPage(i, BufferBenchmark.DBNAME, false);
+        }
+        missPool = new BufferManager(64);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        hitPool.close();
+        missPool.flushAllPages();
+        missPool.close();
+        DBFile.erase(BufferBenchmark.DBNAME);
+    }
+
+    @Benchmark
+    public int hit() throws IOException
+    {
+        int pageNum = next++ % HIT_PAGES;
+        BufferBenchmark.pin(hitPool, pageNum);
+        hitPool.unpinPage(pageNum, BufferBenchmark.DBNAME, false);
+        return pageNum;
+    }
+
+    @Benchmark
+    public int missClean() throws IOException
+    {
+        return miss(false);
+    }
+
+    @Benchmark
+    public int missDirty() throws IOException
+    {
+        return miss(true);
+    }
+
+    /**
+     * Pins the pages in turn, so that with 64 frames every pin misses.
+     */
+    private int miss(boolean dirty) throws IOException
+    {
+        int pageNum = next++ % BufferBenchmark.NUM_PAGES;
+        BufferBenchmark.pin(missPool, pageNum);
+        missPool.unpinPage(pageNum, BufferBenchmark.DBNAME, dirty);
+        return pageNum;
+    }
+}
@@ -0,0 +1,97 @@
+package minibase;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Threads sharing one pool, as the uniform, zipf and sequential
+ * benchmarks of BufferBenchmark run them: each pins and unpins pages
+ * chosen uniformly at random, with a Zipfian skew, or in page order.
+ * Four threads are used; run with -t to try other counts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class WorkloadBenchmarks
+{
+    @Param({"64", "256", "1024"})
+    public int poolSize;
+
+    @Param({"uniform", "zipf", "sequential"})
+    public String pattern;
+
+    private BufferManager bm;
+    private BufferBenchmark.Zipf zipf;
+
+    /**
+     * The page choice of one thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        private static final AtomicInteger seeds = new AtomicInteger();
+
+        private Random random;
+        private int pageNum;
+
+        @Setup(Level.Trial)
+        public void setUp()
+        {
+            random = new Random(seeds.getAndIncrement());
+            pageNum = random.nextInt(BufferBenchmark.NUM_PAGES);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        BufferBenchmark.createDatabase();
+        bm = new BufferManager(poolSize);
+        zipf = new BufferBenchmark.Zipf(BufferBenchmark.NUM_PAGES, 0.99);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        bm.close();
+        DBFile.erase(BufferBenchmark.DBNAME);
+    }
+
+    @Benchmark
+    public int pin(Cursor cursor) throws IOException
+    {
+        int pageNum;
+        if (pattern.equals("uniform"))
+            pageNum = cursor.random.nextInt(BufferBenchmark.NUM_PAGES);
+        else if (pattern.equals("zipf"))
+            pageNum = zipf.next(cursor.random);
+        else
+            pageNum = (cursor.pageNum + 1) % BufferBenchmark.NUM_PAGES;
+        cursor.pageNum = pageNum;
+        while (bm.pinPage(pageNum, BufferBenchmark.DBNAME, false) == null)
+            Thread.yield();
+        bm.unpinPage(pageNum, BufferBenchmark.DBNAME, false);
+        return pageNum;
+    }
+}